@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hashing of an 8 MB upload part in the 64 KB reads of the
+ * request, on one thread: each checksum on its own, and the single pass of
+ * PartChecksums (SHA-256 and {@link Crc32c}) with and without the MD5 that
+ * the SDK adds on the same thread. Run with -t set to the number of parts in
+ * flight to see how it scales across cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChecksumBenchmark {
+    private static final int PART_SIZE = 8 * 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final byte[] part = new byte[PART_SIZE];
+
+    @Setup
+    public void setUp() {
+        new Random(42).nextBytes(part);
+    }
+
+    @Benchmark
+    public byte[] md5() throws NoSuchAlgorithmException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int offset = 0; offset < PART_SIZE; offset += READ_SIZE) {
+            md5.update(part, offset, READ_SIZE);
+        }
+        return md5.digest();
+    }
+
+    @Benchmark
+    public byte[] sha256() throws NoSuchAlgorithmException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        for (int offset = 0; offset < PART_SIZE; offset += READ_SIZE) {
+            sha256.update(part, offset, READ_SIZE);
+        }
+        return sha256.digest();
+    }
+
+    @Benchmark
+    public long crc32c() {
+        Crc32c crc32c = new Crc32c();
+        for (int offset = 0; offset < PART_SIZE; offset += READ_SIZE) {
+            crc32c.update(part, offset, READ_SIZE);
+        }
+        return crc32c.getValue();
+    }
+
+    @Benchmark
+    public long partChecksums() throws NoSuchAlgorithmException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        Crc32c crc32c = new Crc32c();
+        for (int offset = 0; offset < PART_SIZE; offset += READ_SIZE) {
+            sha256.update(part, offset, READ_SIZE);
+            crc32c.update(part, offset, READ_SIZE);
+        }
+        return sha256.digest()[0] ^ crc32c.getValue();
+    }
+
+    @Benchmark
+    public long partChecksumsWithMd5() throws NoSuchAlgorithmException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        Crc32c crc32c = new Crc32c();
+        for (int offset = 0; offset < PART_SIZE; offset += READ_SIZE) {
+            md5.update(part, offset, READ_SIZE);
+            sha256.update(part, offset, READ_SIZE);
+            crc32c.update(part, offset, READ_SIZE);
+        }
+        return md5.digest()[0] ^ sha256.digest()[0] ^ crc32c.getValue();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the copy of a document into the cache, as done by
+ * Util.copyContentUriToFile before a small upload, with the loop of
+ * {@link TransferHelpers#copy} at several buffer sizes and with NIO channels.
+ * A content provider usually hands out a file descriptor, so files stand for
+ * the document here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CopyBenchmark {
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    // The size used by the sample, then larger ones
+    @Param({"2046", "8192", "65536"})
+    public int bufferSize;
+
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = File.createTempFile("copy-source", null);
+        target = File.createTempFile("copy-target", null);
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        try (OutputStream out = new FileOutputStream(source)) {
+            out.write(data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long streams() throws IOException {
+        try (FileInputStream in = new FileInputStream(source);
+                FileOutputStream out = new FileOutputStream(target)) {
+            return TransferHelpers.copy(in, out, new byte[bufferSize]);
+        }
+    }
+
+    @Benchmark
+    public long directBuffer() throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+                FileChannel out = new FileOutputStream(target).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            long copied = 0;
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += out.write(buffer);
+                }
+                buffer.clear();
+            }
+            return copied;
+        }
+    }
+
+    /*
+     * Lets the kernel copy; the buffer size does not apply.
+     */
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+                FileChannel out = new FileOutputStream(target).getChannel()) {
+            long size = in.size();
+            long copied = 0;
+            while (copied < size) {
+                copied += in.transferTo(copied, size - copied, out);
+            }
+            return copied;
+        }
+    }
+}
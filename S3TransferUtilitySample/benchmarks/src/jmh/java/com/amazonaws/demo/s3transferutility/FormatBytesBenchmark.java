@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TransferHelpers#formatBytes}, which formats the bytes of
+ * every row of the transfer lists on each update, against a variant that
+ * does the rounding itself instead of calling String.format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatBytesBenchmark {
+    private static final String[] QUANTIFIERS = {
+            "KB", "MB", "GB", "TB"
+    };
+
+    // Sizes from a few bytes to a few gigabytes, like those of the lists
+    private final long[] sizes = new long[1024];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = (long) Math.pow(2, random.nextDouble() * 32);
+        }
+    }
+
+    @Benchmark
+    public void formatBytes(Blackhole blackhole) {
+        for (long size : sizes) {
+            blackhole.consume(TransferHelpers.formatBytes(size));
+        }
+    }
+
+    @Benchmark
+    public void formatBytesByHand(Blackhole blackhole) {
+        for (long size : sizes) {
+            blackhole.consume(formatByHand(size));
+        }
+    }
+
+    /*
+     * The same text as formatBytes, rounding half up to two decimals.
+     */
+    private static String formatByHand(long bytes) {
+        double value = bytes;
+        for (String quantifier : QUANTIFIERS) {
+            value /= 1024;
+            if (value < 512) {
+                long hundredths = Math.round(value * 100);
+                StringBuilder text = new StringBuilder(12).append(hundredths / 100).append('.');
+                long fraction = hundredths % 100;
+                if (fraction < 10) {
+                    text.append('0');
+                }
+                return text.append(fraction).append(' ').append(quantifier).toString();
+            }
+        }
+        return "";
+    }
+}
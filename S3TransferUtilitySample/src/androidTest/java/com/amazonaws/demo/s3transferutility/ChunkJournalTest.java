@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that a {@link ChunkJournal} reads back what was appended, and
+ * stops at a record that a crash tore or damaged.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ChunkJournalTest {
+    // The size of one record on disk
+    private static final int RECORD_SIZE = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsAppendedRecords() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        ChunkJournal journal = new ChunkJournal(file);
+        assertEquals(0, journal.read().size());
+        journal.append(0, 1024, 0x12345678);
+        journal.append(1 << 20, 512, -1);
+        journal.close();
+        // Appending after a close opens the journal again
+        journal.append(5L << 32, 7, 0);
+
+        List<ChunkJournal.Entry> entries = new ChunkJournal(file).read();
+        assertEquals(3, entries.size());
+        assertEntry(entries.get(0), 0, 1024, 0x12345678);
+        assertEntry(entries.get(1), 1 << 20, 512, -1);
+        assertEntry(entries.get(2), 5L << 32, 7, 0);
+        journal.close();
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        ChunkJournal journal = new ChunkJournal(file);
+        journal.append(0, 100, 1);
+        journal.append(100, 100, 2);
+        journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(2 * RECORD_SIZE - 3);
+        }
+
+        List<ChunkJournal.Entry> entries = journal.read();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), 0, 100, 1);
+    }
+
+    @Test
+    public void stopsAtDamagedRecord() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        ChunkJournal journal = new ChunkJournal(file);
+        journal.append(0, 100, 1);
+        journal.append(100, 100, 2);
+        journal.append(200, 100, 3);
+        journal.close();
+        // Flips a bit in the length of the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(RECORD_SIZE + 9);
+            int b = raf.read();
+            raf.seek(RECORD_SIZE + 9);
+            raf.write(b ^ 1);
+        }
+
+        List<ChunkJournal.Entry> entries = journal.read();
+        assertEquals(1, entries.size());
+        assertEntry(entries.get(0), 0, 100, 1);
+    }
+
+    @Test
+    public void rewriteReplacesRecords() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        ChunkJournal journal = new ChunkJournal(file);
+        journal.append(0, 100, 1);
+        journal.append(100, 100, 2);
+        journal.rewrite(Arrays.asList(new ChunkJournal.Entry(100, 100, 2)));
+        journal.append(200, 100, 3);
+        journal.close();
+
+        List<ChunkJournal.Entry> entries = journal.read();
+        assertEquals(2, entries.size());
+        assertEntry(entries.get(0), 100, 100, 2);
+        assertEntry(entries.get(1), 200, 100, 3);
+        assertEquals(2 * RECORD_SIZE, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        journal.delete();
+        assertFalse(file.exists());
+        assertEquals(0, journal.read().size());
+    }
+
+    private static void assertEntry(ChunkJournal.Entry entry, long offset, int length,
+            int crc) {
+        assertEquals(offset, entry.offset);
+        assertEquals(length, entry.length);
+        assertEquals(crc, entry.crc);
+    }
+}
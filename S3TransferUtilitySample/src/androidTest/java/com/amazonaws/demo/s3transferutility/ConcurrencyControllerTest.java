@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.SystemClock;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how a {@link ConcurrencyController} hands out permits and moves its
+ * limit on congestion and on rising throughput.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ConcurrencyControllerTest {
+
+    @Test
+    public void limitStaysInRange() {
+        assertEquals(1, new ConcurrencyController("test", 0, 4).getLimit());
+        assertEquals(4, new ConcurrencyController("test", 10, 4).getLimit());
+        ConcurrencyController none = new ConcurrencyController("test", 2, 0);
+        assertEquals(1, none.getMaxLimit());
+        assertEquals(1, none.getLimit());
+    }
+
+    @Test
+    public void acquireWaitsForAPermit() throws InterruptedException {
+        ConcurrencyController controller = new ConcurrencyController("test", 2, 4);
+        ConcurrencyController.Permit first = controller.acquire();
+        controller.acquire();
+        CountDownLatch acquired = acquireInBackground(controller);
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        first.close();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closingTwiceReleasesOnce() throws InterruptedException {
+        ConcurrencyController controller = new ConcurrencyController("test", 2, 4);
+        ConcurrencyController.Permit permit = controller.acquire();
+        permit.close();
+        permit.close();
+        controller.acquire();
+        controller.acquire();
+        assertFalse(acquireInBackground(controller).await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void interruptedAcquireGivesNoPermit() {
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 1);
+        controller.acquire();
+        Thread.currentThread().interrupt();
+        assertNull(controller.acquire());
+        // The interrupt is kept for the caller to see
+        assertTrue(Thread.interrupted());
+    }
+
+    @Test
+    public void congestionHalvesTheLimitOncePerWindow() {
+        ConcurrencyController controller = new ConcurrencyController("test", 8, 16);
+        failRequest(controller, serviceException(503, "SlowDown"));
+        assertEquals(4, controller.getLimit());
+        // The rest of the same burst of errors changes nothing
+        failRequest(controller, serviceException(503, "SlowDown"));
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    public void otherFailuresKeepTheLimit() {
+        ConcurrencyController controller = new ConcurrencyController("test", 8, 16);
+        failRequest(controller, serviceException(404, "NoSuchKey"));
+        failRequest(controller, new AmazonClientException("reset", new IOException("reset")));
+        assertEquals(8, controller.getLimit());
+    }
+
+    @Test
+    public void recognizesCongestion() {
+        assertTrue(ConcurrencyController.isCongestion(serviceException(503, "ServiceUnavailable")));
+        assertTrue(ConcurrencyController.isCongestion(serviceException(429, "TooManyRequests")));
+        assertTrue(ConcurrencyController.isCongestion(serviceException(400, "SlowDown")));
+        assertTrue(ConcurrencyController.isCongestion(
+                new AmazonClientException("timeout", new SocketTimeoutException())));
+        assertTrue(ConcurrencyController.isCongestion(new SocketTimeoutException()));
+        assertFalse(ConcurrencyController.isCongestion(serviceException(403, "AccessDenied")));
+        assertFalse(ConcurrencyController.isCongestion(new IOException("closed")));
+    }
+
+    @MediumTest
+    @Test
+    public void saturatedWindowRaisesTheLimit() {
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 4);
+        ConcurrencyController.Permit permit = controller.acquire();
+        permit.addBytes(1024 * 1024);
+        // The first window ends with the first request closed after it
+        SystemClock.sleep(2100);
+        permit.close();
+        assertEquals(2, controller.getLimit());
+    }
+
+    private static CountDownLatch acquireInBackground(final ConcurrencyController controller) {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            assertNotNull(controller.acquire());
+            acquired.countDown();
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+
+    private static void failRequest(ConcurrencyController controller, Exception e) {
+        ConcurrencyController.Permit permit = controller.acquire();
+        permit.fail(e);
+        permit.close();
+    }
+
+    private static AmazonServiceException serviceException(int status, String code) {
+        AmazonServiceException e = new AmazonServiceException(code);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link Crc32c} against the known values of RFC 3720, the eight
+ * bytes at a time paths against a byte at a time, and the checksum of a
+ * whole combined from its pieces against reading it in one go.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class Crc32cTest {
+
+    @Test
+    public void knownValues() {
+        assertEquals(0xE3069283L, crc("123456789".getBytes(Charset.forName("US-ASCII"))));
+        assertEquals(0x8A9136AAL, crc(new byte[32]));
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xff);
+        assertEquals(0x62A8AB43L, crc(ones));
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = (byte) i;
+        }
+        assertEquals(0x46DD794EL, crc(ascending));
+        assertEquals(0L, crc(new byte[0]));
+    }
+
+    @Test
+    public void slicedMatchesByteAtATime() {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        // Every length and misalignment around the eight byte steps
+        for (int off = 0; off < 9; off++) {
+            for (int len = 0; len < 40; len++) {
+                Crc32c bytewise = new Crc32c();
+                for (int i = off; i < off + len; i++) {
+                    bytewise.update(data[i]);
+                }
+                Crc32c sliced = new Crc32c();
+                sliced.update(data, off, len);
+                assertEquals(bytewise.getValue(), sliced.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void buffersMatchArrays() {
+        byte[] data = new byte[1000];
+        new Random(2).nextBytes(data);
+        long expected = crc(Arrays.copyOfRange(data, 3, 998));
+
+        Crc32c heap = new Crc32c();
+        ByteBuffer wrapped = ByteBuffer.wrap(data, 3, 995);
+        heap.update(wrapped);
+        assertEquals(expected, heap.getValue());
+        assertEquals(998, wrapped.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).position(3).limit(998);
+        Crc32c inPlace = new Crc32c();
+        inPlace.update(direct);
+        assertEquals(expected, inPlace.getValue());
+        assertEquals(998, direct.position());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        byte[] data = "123456789".getBytes(Charset.forName("US-ASCII"));
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, 4);
+        crc.reset();
+        crc.update(data, 0, data.length);
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+
+    @Test
+    public void combineMatchesWhole() {
+        byte[] data = new byte[3000];
+        new Random(3).nextBytes(data);
+        long whole = crc(data);
+        for (int split : new int[] {0, 1, 7, 8, 512, 1499, 2999, 3000}) {
+            long first = crc(Arrays.copyOfRange(data, 0, split));
+            long second = crc(Arrays.copyOfRange(data, split, data.length));
+            assertEquals(whole, Crc32c.combine(first, second, data.length - split));
+        }
+    }
+
+    @Test
+    public void combineFoldsManyParts() {
+        // The way the checksum of a multipart object is built from its parts
+        byte[] data = new byte[10000];
+        new Random(4).nextBytes(data);
+        long combined = crc(new byte[0]);
+        for (int off = 0; off < data.length; off += 1024) {
+            int end = Math.min(off + 1024, data.length);
+            long part = crc(Arrays.copyOfRange(data, off, end));
+            combined = Crc32c.combine(combined, part, end - off);
+        }
+        assertEquals(crc(data), combined);
+    }
+
+    @Test
+    public void combineLongSecondPiece() {
+        // A length with many bits set goes through every step of the loop
+        byte[] data = new byte[(1 << 20) + 0x5555];
+        new Random(5).nextBytes(data);
+        long first = crc(Arrays.copyOfRange(data, 0, 5));
+        long second = crc(Arrays.copyOfRange(data, 5, data.length));
+        assertEquals(crc(data), Crc32c.combine(first, second, data.length - 5));
+    }
+
+    private static long crc(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,848 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for S3 that runs in the test process, so that transfers can be
+ * tried and timed without a network or an AWS account. It answers the path
+ * style requests the SDK makes: PUT, GET with or without a range, HEAD and
+ * DELETE of objects, ListObjectsV2, and multipart uploads (initiate, upload
+ * part, list parts, complete and abort). Buckets need not be created, and
+ * signatures are not checked. Objects are kept in memory.
+ *
+ * The latency of each request, the bandwidth of the link each way and the
+ * share of requests that fail with 503 SlowDown can be set at any time.
+ */
+public class FakeS3Server implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final Pattern PART_PATTERN = Pattern.compile(
+            "<Part>\\s*<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]*)</ETag>\\s*</Part>");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // Objects by bucket + "/" + key, in key order for listing
+    private final ConcurrentSkipListMap<String, StoredObject> objects =
+            new ConcurrentSkipListMap<>();
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+
+    private final Link uplink = new Link();
+    private final Link downlink = new Link();
+    private final Random random = new Random(0);
+    private volatile long latencyMs;
+    private volatile double errorRate;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private static class StoredObject {
+        final byte[] data;
+        final String eTag;
+        final long lastModified = System.currentTimeMillis();
+        // Content-Type, Content-Encoding and user metadata
+        final Map<String, String> headers;
+
+        StoredObject(byte[] data, String eTag, Map<String, String> headers) {
+            this.data = data;
+            this.eTag = eTag;
+            this.headers = headers;
+        }
+    }
+
+    private static class MultipartUpload {
+        final String bucket;
+        final String key;
+        final Map<String, String> headers;
+        final ConcurrentSkipListMap<Integer, StoredObject> parts = new ConcurrentSkipListMap<>();
+
+        MultipartUpload(String bucket, String key, Map<String, String> headers) {
+            this.bucket = bucket;
+            this.key = key;
+            this.headers = headers;
+        }
+    }
+
+    private static class Request {
+        String method;
+        String bucket;
+        String key;
+        final Map<String, String> query = new HashMap<>();
+        // Names in lower case
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body;
+    }
+
+    private static class Response {
+        final int status;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body = new byte[0];
+        // Set for HEAD, which tells the length without sending the body
+        long contentLength = -1;
+
+        Response(int status) {
+            this.status = status;
+        }
+    }
+
+    /**
+     * A link of limited bandwidth shared by all the connections one way.
+     */
+    private static class Link {
+        private volatile long bytesPerSecond;
+        private long freeAt;
+
+        void send(int bytes) throws IOException {
+            long rate = bytesPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                freeAt = Math.max(freeAt, now) + bytes * 1000000000L / rate;
+                waitNanos = freeAt - now;
+            }
+            sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     */
+    public FakeS3Server() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(this::acceptConnections);
+    }
+
+    /**
+     * @return the URL to give the S3 client as its endpoint
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Delays the answer to each request.
+     */
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * Limits the bandwidth each way, shared by all the connections, or
+     * removes the limit when 0.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        uplink.bytesPerSecond = bytesPerSecond;
+        downlink.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Answers this share of the requests, between 0 and 1, with 503 SlowDown
+     * once their body is read.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * @return the content of the object, or null if there is no such object
+     */
+    public byte[] getObject(String bucket, String key) {
+        StoredObject object = objects.get(bucket + "/" + key);
+        return object != null ? object.data : null;
+    }
+
+    /**
+     * Stores an object directly, without a request.
+     */
+    public void putObject(String bucket, String key, byte[] data) {
+        objects.put(bucket + "/" + key, new StoredObject(data, md5Hex(data),
+                new HashMap<String, String>()));
+    }
+
+    /**
+     * Forgets every object and multipart upload.
+     */
+    public void clear() {
+        objects.clear();
+        uploads.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+        }
+    }
+
+    /*
+     * Answers the requests of one connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            while (true) {
+                Request request = readRequestHead(in);
+                if (request == null) {
+                    return;
+                }
+                if ("100-continue".equalsIgnoreCase(request.headers.get("expect"))) {
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(UTF_8));
+                    out.flush();
+                }
+                request.body = readBody(in, request.headers);
+                requestCount.incrementAndGet();
+
+                Response response;
+                if (errorRate > 0 && nextRandom() < errorRate) {
+                    errorCount.incrementAndGet();
+                    response = error(503, "SlowDown", "Please reduce your request rate.");
+                } else {
+                    response = handle(request);
+                }
+                if (latencyMs > 0) {
+                    sleep(latencyMs, 0);
+                }
+                writeResponse(out, request, response);
+                if ("close".equalsIgnoreCase(request.headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+
+    private synchronized double nextRandom() {
+        return random.nextDouble();
+    }
+
+    private Response handle(Request request) {
+        if (request.bucket.isEmpty()) {
+            return error(400, "InvalidRequest", "Only path style requests are supported.");
+        }
+        if (request.key.isEmpty()) {
+            switch (request.method) {
+                case "GET":
+                    if (request.query.containsKey("location")) {
+                        return xml(200, "<LocationConstraint xmlns=\""
+                                + "http://s3.amazonaws.com/doc/2006-03-01/\"/>");
+                    }
+                    return listObjects(request);
+                case "PUT":
+                case "HEAD":
+                    return new Response(200);
+                default:
+                    return error(405, "MethodNotAllowed", "Not supported on buckets.");
+            }
+        }
+        String uploadId = request.query.get("uploadId");
+        switch (request.method) {
+            case "PUT":
+                return uploadId != null ? uploadPart(request, uploadId) : putObject(request);
+            case "GET":
+                return uploadId != null ? listParts(request, uploadId) : getObject(request, true);
+            case "HEAD":
+                return getObject(request, false);
+            case "POST":
+                if (request.query.containsKey("uploads")) {
+                    return initiateUpload(request);
+                }
+                if (uploadId != null) {
+                    return completeUpload(request, uploadId);
+                }
+                return error(405, "MethodNotAllowed", "Not supported on objects.");
+            case "DELETE":
+                if (uploadId != null) {
+                    return uploads.remove(uploadId) != null
+                            ? new Response(204)
+                            : error(404, "NoSuchUpload", "The upload does not exist.");
+                }
+                objects.remove(request.bucket + "/" + request.key);
+                return new Response(204);
+            default:
+                return error(405, "MethodNotAllowed", "Not supported.");
+        }
+    }
+
+    private Response putObject(Request request) {
+        StoredObject object = new StoredObject(request.body, md5Hex(request.body),
+                objectHeaders(request));
+        objects.put(request.bucket + "/" + request.key, object);
+        Response response = new Response(200);
+        response.headers.put("ETag", quote(object.eTag));
+        return response;
+    }
+
+    private Response getObject(Request request, boolean withBody) {
+        StoredObject object = objects.get(request.bucket + "/" + request.key);
+        if (object == null) {
+            return error(404, "NoSuchKey", "The specified key does not exist.");
+        }
+        long length = object.data.length;
+        long first = 0;
+        long last = length - 1;
+        Response response;
+        String range = request.headers.get("range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            if (bounds[0].isEmpty()) {
+                first = Math.max(0, length - Long.parseLong(bounds[1]));
+            } else {
+                first = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    last = Math.min(last, Long.parseLong(bounds[1]));
+                }
+            }
+            if (first >= length || first > last) {
+                return error(416, "InvalidRange", "The requested range is not satisfiable");
+            }
+            response = new Response(206);
+            response.headers.put("Content-Range",
+                    "bytes " + first + "-" + last + "/" + length);
+        } else {
+            response = new Response(200);
+        }
+        response.headers.putAll(object.headers);
+        response.headers.put("ETag", quote(object.eTag));
+        response.headers.put("Last-Modified", httpDate(object.lastModified));
+        response.headers.put("Accept-Ranges", "bytes");
+        if (withBody) {
+            response.body = new byte[(int) (last - first + 1)];
+            System.arraycopy(object.data, (int) first, response.body, 0, response.body.length);
+        } else {
+            response.contentLength = last - first + 1;
+        }
+        return response;
+    }
+
+    private Response listObjects(Request request) {
+        String prefix = valueOr(request.query.get("prefix"), "");
+        String delimiter = request.query.get("delimiter");
+        String after = valueOr(request.query.get("continuation-token"),
+                valueOr(request.query.get("start-after"), ""));
+        int maxKeys = Integer.parseInt(valueOr(request.query.get("max-keys"), "1000"));
+
+        String bucketPrefix = request.bucket + "/";
+        NavigableMap<String, StoredObject> candidates = objects.tailMap(
+                bucketPrefix + (after.compareTo(prefix) > 0 ? after : prefix), true);
+        StringBuilder contents = new StringBuilder();
+        StringBuilder commonPrefixes = new StringBuilder();
+        String lastCommonPrefix = null;
+        String lastKey = null;
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            if (!entry.getKey().startsWith(bucketPrefix + prefix)) {
+                break;
+            }
+            String key = entry.getKey().substring(bucketPrefix.length());
+            if (key.equals(after)) {
+                continue;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            int end = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (end >= 0) {
+                String commonPrefix = key.substring(0, end + delimiter.length());
+                if (!commonPrefix.equals(lastCommonPrefix)) {
+                    commonPrefixes.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix))
+                            .append("</Prefix></CommonPrefixes>");
+                    lastCommonPrefix = commonPrefix;
+                    count++;
+                }
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents><Key>").append(escape(key))
+                        .append("</Key><LastModified>").append(isoDate(object.lastModified))
+                        .append("</LastModified><ETag>").append(escape(quote(object.eTag)))
+                        .append("</ETag><Size>").append(object.data.length)
+                        .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                count++;
+            }
+            lastKey = key;
+        }
+        StringBuilder xml = new StringBuilder("<ListBucketResult xmlns=\""
+                + "http://s3.amazonaws.com/doc/2006-03-01/\">")
+                .append("<Name>").append(escape(request.bucket)).append("</Name>")
+                .append("<Prefix>").append(escape(prefix)).append("</Prefix>")
+                .append("<KeyCount>").append(count).append("</KeyCount>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>")
+                .append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>").append(escape(lastKey))
+                    .append("</NextContinuationToken>");
+        }
+        xml.append(contents).append(commonPrefixes).append("</ListBucketResult>");
+        return xml(200, xml.toString());
+    }
+
+    private Response initiateUpload(Request request) {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId,
+                new MultipartUpload(request.bucket, request.key, objectHeaders(request)));
+        return xml(200, "<InitiateMultipartUploadResult xmlns=\""
+                + "http://s3.amazonaws.com/doc/2006-03-01/\">"
+                + "<Bucket>" + escape(request.bucket) + "</Bucket>"
+                + "<Key>" + escape(request.key) + "</Key>"
+                + "<UploadId>" + uploadId + "</UploadId>"
+                + "</InitiateMultipartUploadResult>");
+    }
+
+    private Response uploadPart(Request request, String uploadId) {
+        MultipartUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return error(404, "NoSuchUpload", "The upload does not exist.");
+        }
+        int partNumber = Integer.parseInt(valueOr(request.query.get("partNumber"), "0"));
+        if (partNumber < 1 || partNumber > 10000) {
+            return error(400, "InvalidArgument", "Part number must be from 1 to 10000.");
+        }
+        StoredObject part = new StoredObject(request.body, md5Hex(request.body),
+                new HashMap<String, String>());
+        upload.parts.put(partNumber, part);
+        Response response = new Response(200);
+        response.headers.put("ETag", quote(part.eTag));
+        return response;
+    }
+
+    private Response listParts(Request request, String uploadId) {
+        MultipartUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return error(404, "NoSuchUpload", "The upload does not exist.");
+        }
+        int marker = Integer.parseInt(valueOr(request.query.get("part-number-marker"), "0"));
+        int maxParts = Integer.parseInt(valueOr(request.query.get("max-parts"), "1000"));
+        StringBuilder parts = new StringBuilder();
+        int count = 0;
+        int next = marker;
+        boolean truncated = false;
+        for (Map.Entry<Integer, StoredObject> entry
+                : upload.parts.tailMap(marker, false).entrySet()) {
+            if (count == maxParts) {
+                truncated = true;
+                break;
+            }
+            StoredObject part = entry.getValue();
+            parts.append("<Part><PartNumber>").append(entry.getKey())
+                    .append("</PartNumber><LastModified>").append(isoDate(part.lastModified))
+                    .append("</LastModified><ETag>").append(escape(quote(part.eTag)))
+                    .append("</ETag><Size>").append(part.data.length).append("</Size></Part>");
+            next = entry.getKey();
+            count++;
+        }
+        return xml(200, "<ListPartsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">"
+                + "<Bucket>" + escape(upload.bucket) + "</Bucket>"
+                + "<Key>" + escape(upload.key) + "</Key>"
+                + "<UploadId>" + uploadId + "</UploadId>"
+                + "<PartNumberMarker>" + marker + "</PartNumberMarker>"
+                + "<NextPartNumberMarker>" + next + "</NextPartNumberMarker>"
+                + "<MaxParts>" + maxParts + "</MaxParts>"
+                + "<IsTruncated>" + truncated + "</IsTruncated>"
+                + parts + "</ListPartsResult>");
+    }
+
+    private Response completeUpload(Request request, String uploadId) {
+        MultipartUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return error(404, "NoSuchUpload", "The upload does not exist.");
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        int count = 0;
+        Matcher matcher = PART_PATTERN.matcher(new String(request.body, UTF_8));
+        while (matcher.find()) {
+            StoredObject part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+            String eTag = matcher.group(2).replace("&quot;", "").replace("\"", "");
+            if (part == null || !part.eTag.equals(eTag)) {
+                return error(400, "InvalidPart", "A part was not found or its ETag differs.");
+            }
+            data.write(part.data, 0, part.data.length);
+            byte[] digest = fromHex(part.eTag);
+            digests.write(digest, 0, digest.length);
+            count++;
+        }
+        if (count == 0) {
+            return error(400, "MalformedXML", "No parts were listed.");
+        }
+        uploads.remove(uploadId);
+        String eTag = md5Hex(digests.toByteArray()) + "-" + count;
+        objects.put(upload.bucket + "/" + upload.key,
+                new StoredObject(data.toByteArray(), eTag, upload.headers));
+        return xml(200, "<CompleteMultipartUploadResult xmlns=\""
+                + "http://s3.amazonaws.com/doc/2006-03-01/\">"
+                + "<Location>" + getEndpoint() + "/" + escape(upload.bucket) + "/"
+                + escape(upload.key) + "</Location>"
+                + "<Bucket>" + escape(upload.bucket) + "</Bucket>"
+                + "<Key>" + escape(upload.key) + "</Key>"
+                + "<ETag>" + escape(quote(eTag)) + "</ETag>"
+                + "</CompleteMultipartUploadResult>");
+    }
+
+    /*
+     * The headers of the request that are stored with the object.
+     */
+    private static Map<String, String> objectHeaders(Request request) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            String name = header.getKey();
+            if (name.equals("content-type")) {
+                headers.put("Content-Type", header.getValue());
+            } else if (name.equals("content-encoding")) {
+                // Signed streaming bodies add aws-chunked, which is not stored
+                String encoding = header.getValue().replaceAll("aws-chunked,?", "").trim();
+                if (!encoding.isEmpty()) {
+                    headers.put("Content-Encoding", encoding);
+                }
+            } else if (name.startsWith("x-amz-meta-")) {
+                headers.put(name, header.getValue());
+            }
+        }
+        return headers;
+    }
+
+    private static Response xml(int status, String xml) {
+        Response response = new Response(status);
+        response.headers.put("Content-Type", "application/xml");
+        response.body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(UTF_8);
+        return response;
+    }
+
+    private static Response error(int status, String code, String message) {
+        return xml(status, "<Error><Code>" + code + "</Code><Message>" + message
+                + "</Message><RequestId>" + UUID.randomUUID() + "</RequestId></Error>");
+    }
+
+    /*
+     * Reads the request line and the headers, or returns null at the end of
+     * the connection.
+     */
+    private static Request readRequestHead(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        String[] parts = line.split(" ");
+        if (parts.length < 3) {
+            throw new IOException("Malformed request line " + line);
+        }
+        Request request = new Request();
+        request.method = parts[0];
+        String target = parts[1];
+        int queryStart = target.indexOf('?');
+        String path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+        if (queryStart >= 0) {
+            for (String param : target.substring(queryStart + 1).split("&")) {
+                if (param.isEmpty()) {
+                    continue;
+                }
+                int equals = param.indexOf('=');
+                request.query.put(decodeQuery(equals >= 0 ? param.substring(0, equals) : param),
+                        equals >= 0 ? decodeQuery(param.substring(equals + 1)) : "");
+            }
+        }
+        path = path.startsWith("/") ? path.substring(1) : path;
+        int slash = path.indexOf('/');
+        request.bucket = decodePath(slash >= 0 ? path.substring(0, slash) : path);
+        request.key = slash >= 0 ? decodePath(path.substring(slash + 1)) : "";
+
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    private byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        byte[] body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (true) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new EOFException("Truncated chunked body");
+                }
+                int length = Integer.parseInt(size.split(";")[0].trim(), 16);
+                if (length == 0) {
+                    // Skips the trailers
+                    while ((size = readLine(in)) != null && !size.isEmpty()) {
+                    }
+                    break;
+                }
+                out.write(readFully(in, length));
+                readLine(in);
+            }
+            body = out.toByteArray();
+        } else {
+            String contentLength = headers.get("content-length");
+            body = readFully(in, contentLength != null ? Integer.parseInt(contentLength) : 0);
+        }
+        String contentSha = headers.get("x-amz-content-sha256");
+        if (contentSha != null && contentSha.startsWith("STREAMING-")) {
+            body = decodeAwsChunked(body);
+        }
+        return body;
+    }
+
+    /*
+     * Reads the body at the speed of the uplink.
+     */
+    private byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(data, read, Math.min(BUFFER_SIZE, length - read));
+            if (count < 0) {
+                throw new EOFException("Truncated body");
+            }
+            uplink.send(count);
+            read += count;
+        }
+        return data;
+    }
+
+    /*
+     * Takes the data out of a body signed chunk by chunk, made of chunks of
+     * the form "size;chunk-signature=...\r\ndata\r\n" ending with an empty one.
+     */
+    private static byte[] decodeAwsChunked(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int position = 0;
+        while (position < body.length) {
+            int lineEnd = indexOfCrlf(body, position);
+            if (lineEnd < 0) {
+                throw new IOException("Malformed aws-chunked body");
+            }
+            String header = new String(body, position, lineEnd - position, UTF_8);
+            int length = Integer.parseInt(header.split(";")[0].trim(), 16);
+            if (length == 0) {
+                break;
+            }
+            out.write(body, lineEnd + 2, length);
+            position = lineEnd + 2 + length + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOfCrlf(byte[] data, int from) {
+        for (int i = from; i + 1 < data.length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeResponse(OutputStream out, Request request, Response response)
+            throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(response.status)
+                .append(response.status < 300 ? " OK" : " Error").append("\r\n");
+        response.headers.put("x-amz-request-id", Long.toHexString(requestCount.get()));
+        response.headers.put("Date", httpDate(System.currentTimeMillis()));
+        long contentLength = response.contentLength >= 0
+                ? response.contentLength
+                : response.body.length;
+        if (response.status != 204) {
+            response.headers.put("Content-Length", Long.toString(contentLength));
+        }
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(UTF_8));
+        if (!request.method.equals("HEAD")) {
+            for (int written = 0; written < response.body.length; written += BUFFER_SIZE) {
+                int count = Math.min(BUFFER_SIZE, response.body.length - written);
+                downlink.send(count);
+                out.write(response.body, written, count);
+            }
+        }
+        out.flush();
+    }
+
+    /*
+     * Reads a line ending with CRLF, or returns null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r'
+                        ? bytes.length - 1
+                        : bytes.length;
+                return new String(bytes, 0, length, UTF_8);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString("UTF-8") : null;
+    }
+
+    /*
+     * Decodes %XX escapes only; a + in a path is a +.
+     */
+    private static String decodePath(String path) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%' && i + 2 < path.length()) {
+                out.write(Integer.parseInt(path.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                byte[] bytes = String.valueOf(c).getBytes(UTF_8);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static String decodeQuery(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5Hex(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String valueOr(String value, String fallback) {
+        return value != null ? value : fallback;
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static String isoDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static void sleep(long millis, int nanos) throws IOException {
+        if (millis <= 0 && nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the buckets and percentiles of a {@link Histogram}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int value = 0; value < 32; value++) {
+            histogram.record(value);
+        }
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(15, histogram.getValueAtPercentile(50));
+        assertEquals(31, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsKeepValuesWithinASixteenth() {
+        int last = -1;
+        for (long value = 0; value >= 0 && value < Long.MAX_VALUE / 2; value = value * 5 / 4 + 1) {
+            for (long v : new long[] {value, value + 1, 2 * value - 1}) {
+                int index = Histogram.indexOf(v);
+                long highest = Histogram.highestOf(index);
+                assertTrue(v + " above its bucket", highest >= v);
+                assertTrue(v + " bucket too wide", highest - v <= v / 16);
+                assertEquals(index, Histogram.indexOf(highest));
+                assertEquals(index + 1, Histogram.indexOf(highest + 1));
+            }
+            int index = Histogram.indexOf(value);
+            assertTrue(index >= last);
+            last = index;
+        }
+        // The largest value still has a bucket
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesAreUpperBoundsCappedAtTheMax() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue("median " + median, median >= 500 && median <= 500 + 500 / 16);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMean());
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        Histogram copy = new Histogram(histogram);
+        histogram.record(1000);
+        assertEquals(1, copy.getCount());
+        assertEquals(10, copy.getMax());
+        assertEquals(10, copy.getValueAtPercentile(100));
+        assertEquals(2, histogram.getCount());
+    }
+
+    @Test
+    public void jsonHasOnlyTheNonEmptyBuckets() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(100);
+        JSONObject json = histogram.toJson();
+        assertEquals(3, json.getLong("count"));
+        assertEquals(106, json.getLong("sum"));
+        assertEquals(100, json.getLong("max"));
+        assertEquals(5, json.getInt("subBucketBits"));
+        JSONArray buckets = json.getJSONArray("buckets");
+        assertEquals(4, buckets.length());
+        assertEquals(3, buckets.getLong(0));
+        assertEquals(2, buckets.getLong(1));
+        assertEquals(Histogram.indexOf(100), buckets.getLong(2));
+        assertEquals(1, buckets.getLong(3));
+    }
+}
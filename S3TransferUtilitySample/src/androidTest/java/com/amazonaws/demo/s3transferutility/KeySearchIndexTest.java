@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the prefix searches and folder listings of a {@link KeySearchIndex}
+ * against what ListObjects would return.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class KeySearchIndexTest {
+    private static final String[] KEYS = {
+            "a.txt",
+            "docs/",
+            "docs/a.pdf",
+            "docs/b/c.pdf",
+            "docs/b/d.pdf",
+            "docs/readme",
+            "docs0",
+            "photos/2020/x.jpg",
+            "photos/y.jpg",
+            "z\uFFFF",
+            "z\uFFFF\uFFFF"
+    };
+
+    private final KeySearchIndex index = new KeySearchIndex(KEYS, sizes());
+
+    @Test
+    public void searchFindsKeysWithThePrefix() {
+        assertEquals(Arrays.asList("docs/", "docs/a.pdf", "docs/b/c.pdf", "docs/b/d.pdf",
+                "docs/readme", "docs0"), keys(index.search("", "docs")));
+        assertEquals(Arrays.asList("b/c.pdf", "b/d.pdf"),
+                names(index.search("docs/", "b")));
+        assertEquals(0, index.search("", "nothing").size());
+        assertEquals(KEYS.length, index.search("", "").size());
+    }
+
+    @Test
+    public void searchHandlesTheLastCharacter() {
+        // No string sorts after every key that starts with the highest char
+        assertEquals(Arrays.asList("z\uFFFF", "z\uFFFF\uFFFF"),
+                keys(index.search("", "z\uFFFF")));
+    }
+
+    @Test
+    public void searchReportsSizes() {
+        KeySearchIndex.Listing listing = index.search("docs/b/", "d");
+        assertEquals(1, listing.size());
+        assertEquals(sizeOf("docs/b/d.pdf"), listing.getSize(0));
+        assertFalse(listing.isFolder(0));
+    }
+
+    @Test
+    public void listFolderGroupsSubfolders() {
+        KeySearchIndex.Listing root = index.listFolder("", '/');
+        assertEquals(Arrays.asList("a.txt", "docs/", "docs0", "photos/", "z\uFFFF",
+                "z\uFFFF\uFFFF"), keys(root));
+        // "docs/" is both an object and the prefix of other keys, and is
+        // listed once, as a folder
+        assertTrue(root.isFolder(1));
+        assertEquals(0, root.getSize(1));
+        assertFalse(root.isFolder(2));
+        assertTrue(root.isFolder(3));
+
+        KeySearchIndex.Listing docs = index.listFolder("docs/", '/');
+        assertEquals(Arrays.asList("", "a.pdf", "b/", "readme"), names(docs));
+        assertTrue(docs.isFolder(2));
+        assertEquals(sizeOf("docs/readme"), docs.getSize(3));
+
+        assertEquals(Arrays.asList("2020/", "y.jpg"),
+                names(index.listFolder("photos/", '/')));
+        assertEquals(0, index.listFolder("missing/", '/').size());
+    }
+
+    @Test
+    public void listFolderGrowsPastSixteenRows() {
+        String[] keys = new String[40];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.format("f%02d", i);
+        }
+        KeySearchIndex many = new KeySearchIndex(keys, new long[keys.length]);
+        assertEquals(Arrays.asList(keys), keys(many.listFolder("", '/')));
+    }
+
+    private static long[] sizes() {
+        long[] sizes = new long[KEYS.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = sizeOf(KEYS[i]);
+        }
+        return sizes;
+    }
+
+    private static long sizeOf(String key) {
+        return 100 + key.length();
+    }
+
+    private static List<String> keys(KeySearchIndex.Listing listing) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < listing.size(); i++) {
+            keys.add(listing.getKey(i));
+        }
+        return keys;
+    }
+
+    private static List<String> names(KeySearchIndex.Listing listing) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < listing.size(); i++) {
+            names.add(listing.getName(i));
+        }
+        return names;
+    }
+}
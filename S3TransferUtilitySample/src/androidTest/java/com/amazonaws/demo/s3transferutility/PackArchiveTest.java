@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the tar headers, pax records and index of the archives laid out by
+ * {@link PackArchive}, and the checks on member names.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackArchiveTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BLOCK = PackArchive.BLOCK_SIZE;
+    private static final long TIME = 1500000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void laysOutIndexMembersAndEnd() throws Exception {
+        List<PackArchive.Member> members = Arrays.asList(
+                new PackArchive.Member("a.txt", 0),
+                new PackArchive.Member("b/c.bin", 1000),
+                new PackArchive.Member("d.bin", 512));
+        List<PackArchive.Segment> segments = PackArchive.layOut(members, TIME);
+
+        // The segments follow each other and every header is valid
+        long offset = 0;
+        for (PackArchive.Segment segment : segments) {
+            assertEquals(offset, segment.offset);
+            assertEquals(0, segment.length % BLOCK);
+            offset += segment.length;
+        }
+        byte[] indexHeader = segments.get(0).bytes;
+        assertHeader(indexHeader, PackArchive.INDEX_NAME, segments.get(1).length, '0');
+
+        // The index gives the offset of each member, right after its header
+        JSONArray index = new JSONObject(new String(segments.get(1).bytes, UTF_8).trim())
+                .getJSONArray("members");
+        assertEquals(members.size(), index.length());
+        for (int i = 0; i < members.size(); i++) {
+            PackArchive.Member member = members.get(i);
+            PackArchive.Segment header = segments.get(2 + 2 * i);
+            PackArchive.Segment content = segments.get(3 + 2 * i);
+            assertHeader(header.bytes, member.name, member.size, '0');
+            assertEquals(i, content.member);
+            assertNull(content.bytes);
+            assertEquals(content.offset, member.offset);
+            assertEquals(PackArchive.padded(member.size), content.length);
+            assertEquals(member.name, index.getJSONObject(i).getString("name"));
+            assertEquals(member.offset, index.getJSONObject(i).getLong("offset"));
+            assertEquals(member.size, index.getJSONObject(i).getLong("size"));
+        }
+
+        // Two zero blocks end the archive
+        PackArchive.Segment end = segments.get(segments.size() - 1);
+        assertArrayEquals(new byte[2 * BLOCK], end.bytes);
+    }
+
+    @Test
+    public void sameMembersGiveSameBytes() throws Exception {
+        List<PackArchive.Segment> first = PackArchive.layOut(
+                Collections.singletonList(new PackArchive.Member("a", 10)), TIME);
+        List<PackArchive.Segment> second = PackArchive.layOut(
+                Collections.singletonList(new PackArchive.Member("a", 10)), TIME);
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).offset, second.get(i).offset);
+            assertArrayEquals(first.get(i).bytes, second.get(i).bytes);
+        }
+    }
+
+    @Test
+    public void indexGrowsToFitManyMembers() throws Exception {
+        List<PackArchive.Member> members = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            members.add(new PackArchive.Member("file-" + i, i));
+        }
+        List<PackArchive.Segment> segments = PackArchive.layOut(members, TIME);
+        PackArchive.Segment index = segments.get(1);
+        assertTrue(index.length > BLOCK);
+        JSONArray array = new JSONObject(new String(index.bytes, UTF_8).trim())
+                .getJSONArray("members");
+        assertEquals(200, array.length());
+        assertEquals(segments.get(3).offset, array.getJSONObject(0).getLong("offset"));
+    }
+
+    @Test
+    public void longNameUsesThePrefixField() throws Exception {
+        String dir = repeat('d', 60) + "/" + repeat('e', 60);
+        String name = repeat('n', 90);
+        byte[] header = memberHeaders(dir + "/" + name, 5);
+        assertEquals(BLOCK, header.length);
+        assertHeader(header, name, 5, '0');
+        assertEquals(dir, readString(header, 345, 155));
+    }
+
+    @Test
+    public void nameWithoutSplitUsesPax() throws Exception {
+        String name = "dir/" + repeat('x', 150);
+        byte[] headers = memberHeaders(name, 7);
+
+        // A pax header whose record gives the whole name, then the header of
+        // the member with the end of the name
+        String record = "164 path=" + name + "\n";
+        assertEquals(3 * BLOCK, headers.length);
+        assertHeader(Arrays.copyOfRange(headers, 0, BLOCK), "PaxHeader", record.length(), 'x');
+        assertEquals(record, new String(headers, BLOCK, record.length(), UTF_8));
+        byte[] header = Arrays.copyOfRange(headers, 2 * BLOCK, 3 * BLOCK);
+        assertHeader(header, name.substring(name.length() - 100), 7, '0');
+    }
+
+    @Test
+    public void paxRecordLengthCountsItsOwnDigits() throws Exception {
+        // Around the names whose record length gains a digit
+        for (int length = 101; length < 1100; length++) {
+            String name = repeat('p', length);
+            byte[] headers = memberHeaders(name, 0);
+            long size = Long.parseLong(readString(headers, 124, 12), 8);
+            String record = new String(headers, BLOCK, (int) size, UTF_8);
+            assertEquals(record.length(),
+                    Integer.parseInt(record.substring(0, record.indexOf(' '))));
+            assertEquals(" path=" + name + "\n", record.substring(record.indexOf(' ')));
+        }
+    }
+
+    @Test
+    public void multibyteNamesCountBytes() throws Exception {
+        // 30 characters of 3 bytes each fit in the 100 byte name field
+        String dir = repeat('\u00e9', 10);
+        String name = dir + "/" + repeat('\u6587', 30);
+        byte[] header = memberHeaders(name, 1);
+        assertEquals(BLOCK, header.length);
+        assertHeader(header, repeat('\u6587', 30), 1, '0');
+        assertEquals(dir, readString(header, 345, 155));
+
+        // 40 of them do not, and the pax record counts them in bytes
+        String longName = repeat('\u6587', 40);
+        byte[] headers = memberHeaders(longName, 1);
+        assertEquals(3 * BLOCK, headers.length);
+        byte[] record = ("130 path=" + longName + "\n").getBytes(UTF_8);
+        assertEquals(130, record.length);
+        assertHeader(Arrays.copyOfRange(headers, 0, BLOCK), "PaxHeader", record.length, 'x');
+        assertArrayEquals(record, Arrays.copyOfRange(headers, BLOCK, BLOCK + record.length));
+    }
+
+    @Test
+    public void rejectsUnsafeNames() {
+        assertTrue(PackArchive.isSafeName("a/b.txt"));
+        assertTrue(PackArchive.isSafeName("a.b/c"));
+        assertFalse(PackArchive.isSafeName(""));
+        assertFalse(PackArchive.isSafeName("/etc/passwd"));
+        assertFalse(PackArchive.isSafeName("../x"));
+        assertFalse(PackArchive.isSafeName("a/../../x"));
+        assertFalse(PackArchive.isSafeName("a\0b"));
+    }
+
+    @Test
+    public void memberFileStaysInThePackFolder() throws IOException {
+        File dir = folder.getRoot();
+        assertEquals(new File(new File(dir, "photos"), "a/b.jpg"),
+                PackArchive.memberFile(dir, "photos" + PackArchive.SUFFIX, "a/b.jpg"));
+        for (String name : new String[] {"../x", "/x", "a/../../x", "."}) {
+            try {
+                PackArchive.memberFile(dir, "photos" + PackArchive.SUFFIX, name);
+                fail("Accepted " + name);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    /*
+     * Returns the headers that come before the content of a single member.
+     */
+    private static byte[] memberHeaders(String name, long size) throws IOException {
+        List<PackArchive.Segment> segments = PackArchive.layOut(
+                Collections.singletonList(new PackArchive.Member(name, size)), TIME);
+        return segments.get(2).bytes;
+    }
+
+    private static void assertHeader(byte[] header, String name, long size, char type) {
+        assertEquals(BLOCK, header.length);
+        assertEquals(name, readString(header, 0, 100));
+        assertEquals(size, Long.parseLong(readString(header, 124, 12), 8));
+        assertEquals(TIME, Long.parseLong(readString(header, 136, 12), 8));
+        assertEquals(type, (char) header[156]);
+        assertEquals("ustar", readString(header, 257, 6));
+        assertEquals("00", new String(header, 263, 2, UTF_8));
+
+        // The checksum counts the checksum field as spaces
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        assertEquals(sum, Long.parseLong(readString(header, 148, 8).trim(), 8));
+    }
+
+    private static String readString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -17,7 +17,6 @@ package com.amazonaws.demo.s3transferutility;
 
 import android.content.Context;
 import android.support.test.InstrumentationRegistry;
-import android.support.test.espresso.DataInteraction;
 import android.support.test.espresso.IdlingPolicies;
 import android.support.test.espresso.IdlingRegistry;
 import android.support.test.espresso.ViewInteraction;
@@ -43,14 +42,13 @@ import org.junit.runner.RunWith;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
-import static android.support.test.espresso.Espresso.onData;
 import static android.support.test.espresso.Espresso.onView;
 import static android.support.test.espresso.action.ViewActions.click;
 import static android.support.test.espresso.assertion.ViewAssertions.matches;
 import static android.support.test.espresso.matcher.ViewMatchers.withId;
 import static android.support.test.espresso.matcher.ViewMatchers.withText;
 
-import static org.hamcrest.Matchers.anything;
+import static org.hamcrest.Matchers.allOf;
 import static org.junit.Assert.assertNotNull;
 
 @LargeTest
@@ -123,9 +121,7 @@ public class TestMainActivity {
         Log.d(TAG,"click Download button");
         button2.perform(click());
 
-        DataInteraction linearLayout = onData(anything())
-                .inAdapterView(withId(android.R.id.list))
-                .atPosition(0);
+        ViewInteraction linearLayout = onView(allOf(withId(R.id.key), withText(TEST_FILE_NAME)));
         Log.d(TAG,"Select downloading file");
         linearLayout.perform(click());
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the waits a {@link TokenBucket} hands out. The bucket runs on the
+ * real clock, so each wait is checked within a range: the time the test
+ * itself takes can only add credit, and so shorten a wait.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class TokenBucketTest {
+
+    @Test
+    public void noLimitNeverWaits() {
+        TokenBucket bucket = new TokenBucket(0);
+        assertEquals(0, bucket.take(Integer.MAX_VALUE));
+        assertEquals(0, bucket.take(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void debtIsPaidForByWaiting() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertWait(500, bucket.take(500));
+        // The debt adds up, so the next caller waits for both
+        assertWait(1500, bucket.take(1000));
+    }
+
+    @Test
+    public void creditIsCappedAtAQuarterSecond() {
+        TokenBucket bucket = new TokenBucket(4000);
+        SystemClock.sleep(600);
+        // 2400 bytes of idle time, of which 1000 are kept
+        assertEquals(0, bucket.take(1000));
+        assertWait(250, bucket.take(1000));
+    }
+
+    @Test
+    public void newRateRepricesTheDebt() {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertWait(1000, bucket.take(1000));
+        bucket.setRate(2000);
+        assertWait(500, bucket.take(0));
+        bucket.setRate(0);
+        assertEquals(0, bucket.take(1000));
+    }
+
+    @Test
+    public void lowerRateCapsTheCredit() {
+        TokenBucket bucket = new TokenBucket(4000);
+        SystemClock.sleep(300);
+        bucket.setRate(400);
+        assertEquals(0, bucket.take(100));
+        assertWait(100, bucket.take(40));
+    }
+
+    /*
+     * Checks a wait against the expected one, allowing for up to 50 ms of
+     * time spent in the test.
+     */
+    private static void assertWait(long expectedMs, long waitNanos) {
+        long waitMs = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        assertTrue("waited " + waitMs + " ms instead of " + expectedMs,
+                waitMs <= expectedMs && waitMs >= expectedMs - 50);
+    }
+}
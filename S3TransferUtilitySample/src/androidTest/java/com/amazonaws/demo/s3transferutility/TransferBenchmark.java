@@ -0,0 +1,318 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times uploads and downloads against a {@link FakeS3Server}, through the S3
+ * client of {@link Util} and the TransferUtility, MultipartUploader and
+ * RangedDownloader that use it. No network or AWS account is needed.
+ *
+ * The link is set with instrumentation arguments, for example
+ * {@code -e latencyMs 50 -e bandwidthKBps 2048 -e errorRate 0.02}. Each
+ * result is logged and appended to benchmarks/results.jsonl in the external
+ * files directory of the app so that runs can be compared, and with
+ * {@code -e minMBps 4} a result slower than that fails its test.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class TransferBenchmark {
+    private static final String TAG = TransferBenchmark.class.getSimpleName();
+
+    private static final String BUCKET = "benchmark";
+    private static final long MB = 1024 * 1024;
+
+    private static final int SMALL_FILE_COUNT = 20;
+    private static final int SMALL_FILE_SIZE = 256 * 1024;
+    private static final long LARGE_FILE_SIZE = 32 * MB;
+    private static final long PART_SIZE = 8 * MB;
+
+    private static final long TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long POLL_INTERVAL_MS = 50;
+
+    private static Context context;
+    private static FakeS3Server server;
+    private static AmazonS3Client s3;
+    private static TransferUtility transferUtility;
+    private static File workDir;
+
+    private static long latencyMs;
+    private static long bandwidthKBps;
+    private static double errorRate;
+    private static double minMBps;
+
+    private final Random random = new Random(42);
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        context = InstrumentationRegistry.getTargetContext();
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        latencyMs = Long.parseLong(arguments.getString("latencyMs", "0"));
+        bandwidthKBps = Long.parseLong(arguments.getString("bandwidthKBps", "0"));
+        errorRate = Double.parseDouble(arguments.getString("errorRate", "0"));
+        minMBps = Double.parseDouble(arguments.getString("minMBps", "0"));
+
+        server = new FakeS3Server();
+        server.setLatencyMs(latencyMs);
+        server.setBandwidth(bandwidthKBps * 1024);
+        server.setErrorRate(errorRate);
+
+        Util util = new Util(
+                new StaticCredentialsProvider(new BasicAWSCredentials("benchmark", "benchmark")),
+                "us-east-1", server.getEndpoint());
+        s3 = util.getS3Client(context);
+        transferUtility = util.getTransferUtility(context);
+        workDir = new File(context.getCacheDir(), "benchmark");
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        server.close();
+        deleteTree(workDir);
+    }
+
+    @Before
+    public void cleanBefore() {
+        server.clear();
+        deleteTree(workDir);
+        workDir.mkdirs();
+    }
+
+    @Test
+    public void uploadSmallFiles() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < SMALL_FILE_COUNT; i++) {
+            files.add(writeRandomFile("small-" + i, SMALL_FILE_SIZE));
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<TransferObserver> observers = new ArrayList<>();
+        for (File file : files) {
+            observers.add(transferUtility.upload(BUCKET, file.getName(), file));
+        }
+        for (TransferObserver observer : observers) {
+            assertEquals(TransferState.COMPLETED, awaitFinished(observer));
+        }
+        report("uploadSmallFiles", SMALL_FILE_COUNT * (long) SMALL_FILE_SIZE, start);
+
+        for (File file : files) {
+            assertArrayEquals(md5(file), md5(server.getObject(BUCKET, file.getName())));
+        }
+    }
+
+    @Test
+    public void downloadSmallFiles() throws Exception {
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < SMALL_FILE_COUNT; i++) {
+            byte[] data = randomBytes(SMALL_FILE_SIZE);
+            server.putObject(BUCKET, "small-" + i, data);
+            contents.add(data);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<TransferObserver> observers = new ArrayList<>();
+        for (int i = 0; i < SMALL_FILE_COUNT; i++) {
+            observers.add(transferUtility.download(BUCKET, "small-" + i,
+                    new File(workDir, "small-" + i)));
+        }
+        for (TransferObserver observer : observers) {
+            assertEquals(TransferState.COMPLETED, awaitFinished(observer));
+        }
+        report("downloadSmallFiles", SMALL_FILE_COUNT * (long) SMALL_FILE_SIZE, start);
+
+        for (int i = 0; i < SMALL_FILE_COUNT; i++) {
+            assertArrayEquals(md5(contents.get(i)), md5(new File(workDir, "small-" + i)));
+        }
+    }
+
+    @Test
+    public void uploadLargeFileInParts() throws Exception {
+        File file = writeRandomFile("large", LARGE_FILE_SIZE);
+        MultipartUploader uploader = new MultipartUploader(context, s3, BUCKET,
+                new File(workDir, "multipart"), PART_SIZE, PART_SIZE,
+                new ConcurrencyController("Parts", 4, 16), 3);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        ParallelTransfer upload = uploader.upload("large", file);
+        assertEquals(TransferState.COMPLETED, awaitFinished(upload));
+        report("uploadLargeFileInParts", LARGE_FILE_SIZE, start);
+
+        assertArrayEquals(md5(file), md5(server.getObject(BUCKET, "large")));
+    }
+
+    @Test
+    public void downloadLargeFileInRanges() throws Exception {
+        byte[] data = randomBytes((int) LARGE_FILE_SIZE);
+        server.putObject(BUCKET, "large", data);
+        RangedDownloader downloader = new RangedDownloader(context, s3, BUCKET,
+                new File(workDir, "ranged"), PART_SIZE, PART_SIZE,
+                new ConcurrencyController("Ranges", 4, 16), 3);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        File file = new File(workDir, "large");
+        ParallelTransfer download = downloader.download("large", file);
+        assertEquals(TransferState.COMPLETED, awaitFinished(download));
+        report("downloadLargeFileInRanges", LARGE_FILE_SIZE, start);
+
+        assertArrayEquals(md5(data), md5(file));
+    }
+
+    private interface StateSource {
+        TransferState getState();
+    }
+
+    private static TransferState awaitFinished(final TransferObserver observer)
+            throws InterruptedException {
+        return awaitFinished(() -> {
+            observer.refresh();
+            return observer.getState();
+        });
+    }
+
+    private static TransferState awaitFinished(ParallelTransfer transfer)
+            throws InterruptedException {
+        return awaitFinished(transfer::getState);
+    }
+
+    /*
+     * Waits until the transfer is completed, failed or canceled.
+     */
+    private static TransferState awaitFinished(StateSource source)
+            throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        TransferState state = source.getState();
+        while (state != TransferState.COMPLETED
+                && state != TransferState.FAILED
+                && state != TransferState.CANCELED
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(POLL_INTERVAL_MS);
+            state = source.getState();
+        }
+        return state;
+    }
+
+    /*
+     * Logs the throughput, appends it to the results file, and checks it
+     * against the minimum if one was given.
+     */
+    private void report(String name, long bytes, long startNanos) throws Exception {
+        double seconds = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1e9;
+        double mbps = bytes / (double) MB / seconds;
+        Log.i(TAG, String.format(Locale.US,
+                "%s: %.2f MB/s (%d bytes in %.2f s, %d requests, %d errors)",
+                name, mbps, bytes, seconds, server.getRequestCount(), server.getErrorCount()));
+
+        JSONObject result = new JSONObject()
+                .put("name", name)
+                .put("time", System.currentTimeMillis())
+                .put("bytes", bytes)
+                .put("seconds", seconds)
+                .put("mbps", mbps)
+                .put("latencyMs", latencyMs)
+                .put("bandwidthKBps", bandwidthKBps)
+                .put("errorRate", errorRate)
+                .put("requests", server.getRequestCount())
+                .put("errors", server.getErrorCount());
+        File results = new File(context.getExternalFilesDir("benchmarks"), "results.jsonl");
+        try (OutputStream out = new FileOutputStream(results, true)) {
+            out.write((result.toString() + "\n").getBytes("UTF-8"));
+        }
+
+        assertTrue(name + " ran at " + mbps + " MB/s, below " + minMBps, mbps >= minMBps);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private File writeRandomFile(String name, long length) throws IOException {
+        File file = new File(workDir, name);
+        byte[] buffer = new byte[(int) Math.min(length, MB)];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < length; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, length - written));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] md5(byte[] data) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+    private static byte[] md5(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caps the rate at which transfers send and receive data. There is one
+ * limit for all transfers together and one for each transfer, each applied
+ * separately to uploads and downloads, and both depend on whether the
+ * active network is metered. A limit of 0 means no limit.
+ *
+ * Only the threads of the limited transfers wait; other traffic of the app
+ * is not held up.
+ */
+class BandwidthLimiter {
+    // How long the metered state of the network is trusted
+    private static final long NETWORK_CHECK_INTERVAL_MS = 1000;
+
+    private final ConnectivityManager connectivityManager;
+    private final long meteredRate;
+    private final long unmeteredRate;
+    private final long meteredTransferRate;
+    private final long unmeteredTransferRate;
+
+    private final TokenBucket uploadBucket = new TokenBucket(0);
+    private final TokenBucket downloadBucket = new TokenBucket(0);
+
+    // Guarded by this
+    private final Map<String, Transfer> transfers = new HashMap<>();
+    private boolean metered;
+    private long lastNetworkCheck = Long.MIN_VALUE;
+
+    /**
+     * @param context Android context
+     * @param meteredRate bytes per second for all transfers on a metered
+     *            network
+     * @param unmeteredRate bytes per second for all transfers on an
+     *            unmetered network
+     * @param meteredTransferRate bytes per second for each transfer on a
+     *            metered network
+     * @param unmeteredTransferRate bytes per second for each transfer on an
+     *            unmetered network
+     */
+    BandwidthLimiter(Context context, long meteredRate, long unmeteredRate,
+            long meteredTransferRate, long unmeteredTransferRate) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.meteredRate = meteredRate;
+        this.unmeteredRate = unmeteredRate;
+        this.meteredTransferRate = meteredTransferRate;
+        this.unmeteredTransferRate = unmeteredTransferRate;
+        checkNetwork(true);
+    }
+
+    /**
+     * Whether any limit is set at all.
+     */
+    boolean isEnabled() {
+        return meteredRate > 0 || unmeteredRate > 0
+                || meteredTransferRate > 0 || unmeteredTransferRate > 0;
+    }
+
+    /**
+     * Starts limiting the data of a transfer. Requests for the same object,
+     * such as the parts of a multipart upload, share one limit.
+     *
+     * @param name identifies the transfer, for instance the path of its
+     *            object
+     * @param upload whether the data is sent rather than received
+     * @return the Throttle to pass the data through; it must be closed
+     */
+    synchronized Throttle open(String name, boolean upload) {
+        checkNetwork(false);
+        String id = (upload ? "up:" : "down:") + name;
+        Transfer transfer = transfers.get(id);
+        if (transfer == null) {
+            transfer = new Transfer(id, upload);
+            transfer.bucket.setRate(metered ? meteredTransferRate : unmeteredTransferRate);
+            transfers.put(id, transfer);
+        }
+        transfer.users++;
+        return new Throttle(transfer);
+    }
+
+    private synchronized void release(Transfer transfer) {
+        if (--transfer.users == 0) {
+            transfers.remove(transfer.id);
+        }
+    }
+
+    /*
+     * Moves the buckets to the limits of the current network. Called with
+     * the lock held.
+     */
+    private void checkNetwork(boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now - lastNetworkCheck < NETWORK_CHECK_INTERVAL_MS) {
+            return;
+        }
+        lastNetworkCheck = now;
+        boolean isMetered = connectivityManager != null
+                && connectivityManager.isActiveNetworkMetered();
+        if (!force && isMetered == metered) {
+            return;
+        }
+        metered = isMetered;
+        uploadBucket.setRate(metered ? meteredRate : unmeteredRate);
+        downloadBucket.setRate(metered ? meteredRate : unmeteredRate);
+        for (Transfer transfer : transfers.values()) {
+            transfer.bucket.setRate(metered ? meteredTransferRate : unmeteredTransferRate);
+        }
+    }
+
+    private static class Transfer {
+        final String id;
+        final boolean upload;
+        final TokenBucket bucket = new TokenBucket(0);
+
+        // The open Throttles, guarded by the limiter
+        int users;
+
+        Transfer(String id, boolean upload) {
+            this.id = id;
+            this.upload = upload;
+        }
+    }
+
+    /**
+     * Paces the data of one request of a transfer.
+     */
+    class Throttle {
+        private final Transfer transfer;
+        private boolean closed;
+
+        Throttle(Transfer transfer) {
+            this.transfer = transfer;
+        }
+
+        /**
+         * Waits until the bytes may be used under both the limit of the
+         * transfer and the limit of all transfers.
+         *
+         * @throws InterruptedIOException if the transfer is stopped while
+         *             waiting
+         */
+        void acquire(int bytes) throws InterruptedIOException {
+            TokenBucket total;
+            synchronized (BandwidthLimiter.this) {
+                checkNetwork(false);
+                total = transfer.upload ? uploadBucket : downloadBucket;
+            }
+            long waitNanos = Math.max(transfer.bucket.take(bytes), total.take(bytes));
+            if (waitNanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while limiting bandwidth");
+            }
+        }
+
+        void close() {
+            synchronized (BandwidthLimiter.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(transfer);
+        }
+    }
+}
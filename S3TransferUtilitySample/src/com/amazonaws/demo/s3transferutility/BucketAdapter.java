@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Shows the objects and folders of a {@link KeySearchIndex.Listing} in a
+ * RecyclerView.
+ */
+class BucketAdapter extends RecyclerView.Adapter<BucketAdapter.ViewHolder> {
+
+    interface OnItemClickListener {
+        void onObjectClick(String key, long size);
+
+        void onFolderClick(String folder);
+    }
+
+    private final OnItemClickListener clickListener;
+    private KeySearchIndex.Listing listing;
+
+    BucketAdapter(OnItemClickListener clickListener) {
+        this.clickListener = clickListener;
+    }
+
+    void setListing(KeySearchIndex.Listing listing) {
+        this.listing = listing;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemCount() {
+        return listing == null ? 0 : listing.size();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.bucket_item, parent, false);
+        final ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            if (listing.isFolder(position)) {
+                clickListener.onFolderClick(listing.getKey(position));
+            } else {
+                clickListener.onObjectClick(listing.getKey(position),
+                        listing.getSize(position));
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.key.setText(listing.getName(position));
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView key;
+
+        ViewHolder(View view) {
+            super(view);
+            key = view.findViewById(R.id.key);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * An object in the bucket as recorded by the {@link BucketIndex}.
+ */
+class BucketEntry {
+    final String key;
+    final long size;
+    final String eTag;
+    final long lastModified;
+
+    BucketEntry(String key, long size, String eTag, long lastModified) {
+        this.key = key;
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    BucketEntry(S3ObjectSummary summary) {
+        this(summary.getKey(), summary.getSize(), summary.getETag(),
+                summary.getLastModified() != null ? summary.getLastModified().getTime() : 0);
+    }
+
+    boolean hasSameContents(BucketEntry other) {
+        return size == other.size
+                && lastModified == other.lastModified
+                && (eTag == null ? other.eTag == null : eTag.equals(other.eTag));
+    }
+}
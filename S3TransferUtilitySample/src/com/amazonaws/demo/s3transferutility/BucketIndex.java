@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local copy of the bucket listings shown by the download picker. The
+ * picker searches the keys loaded from here by {@link #getKeyIndex}, so it
+ * opens at once and without a LIST request.
+ * The copy is brought up to date by {@link #applyPage}, one page of a
+ * ListObjectsV2 listing at a time, writing only the objects that were added,
+ * changed or removed since the previous listing.
+ */
+public class BucketIndex extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "bucket_index.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // When each bucket was last listed completely
+    private static final String PREFERENCES_NAME = "bucket_index";
+
+    private static final String[] ENTRY_COLUMNS = {
+            "key", "size", "etag", "last_modified"
+    };
+
+    private final SharedPreferences refreshTimes;
+
+    // The keys of each bucket loaded for searching, until the index changes
+    private final Map<String, KeySearchIndex> keyIndexes = new HashMap<>();
+
+    // Counts the changes to the index, so a load that raced one is not kept
+    private int keyIndexGeneration;
+
+    BucketIndex(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        refreshTimes = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        // Lets the picker read while a refresh is writing
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE objects ("
+                + "bucket TEXT NOT NULL, "
+                + "key TEXT NOT NULL, "
+                + "size INTEGER NOT NULL, "
+                + "etag TEXT, "
+                + "last_modified INTEGER NOT NULL, "
+                + "PRIMARY KEY (bucket, key))");
+        // Where an interrupted refresh continues
+        db.execSQL("CREATE TABLE listings ("
+                + "bucket TEXT PRIMARY KEY, "
+                + "resume_after TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The index is only a cache of the bucket, so it is simply rebuilt
+        db.execSQL("DROP TABLE IF EXISTS objects");
+        db.execSQL("DROP TABLE IF EXISTS listings");
+        onCreate(db);
+    }
+
+    /**
+     * Returns the keys of the bucket loaded into memory for searching. They
+     * are loaded on the first call and kept until the index changes, so this
+     * should be called off the main thread.
+     */
+    KeySearchIndex getKeyIndex(String bucket) {
+        int generation;
+        synchronized (keyIndexes) {
+            KeySearchIndex keyIndex = keyIndexes.get(bucket);
+            if (keyIndex != null) {
+                return keyIndex;
+            }
+            generation = keyIndexGeneration;
+        }
+
+        String[] keys;
+        long[] sizes;
+        try (Cursor cursor = getReadableDatabase().query("objects",
+                new String[] { "key", "size" }, "bucket = ?", new String[] { bucket },
+                null, null, "key")) {
+            keys = new String[cursor.getCount()];
+            sizes = new long[keys.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                keys[i] = cursor.getString(0);
+                sizes[i] = cursor.getLong(1);
+            }
+        }
+        if (!isSorted(keys)) {
+            sortTogether(keys, sizes);
+        }
+
+        KeySearchIndex keyIndex = new KeySearchIndex(keys, sizes);
+        synchronized (keyIndexes) {
+            if (generation == keyIndexGeneration) {
+                keyIndexes.put(bucket, keyIndex);
+            }
+        }
+        return keyIndex;
+    }
+
+    /**
+     * Whether the bucket was listed completely within the given time.
+     */
+    boolean isFresh(String bucket, long maxAgeMs) {
+        long refreshed = refreshTimes.getLong(bucket, 0);
+        return System.currentTimeMillis() - refreshed < maxAgeMs;
+    }
+
+    /**
+     * Makes the next {@link #isFresh} call return false for every bucket, for
+     * instance because an upload has just added an object.
+     */
+    void invalidate() {
+        refreshTimes.edit().clear().apply();
+    }
+
+    /**
+     * @return the last key of the page an interrupted refresh stopped after,
+     *         or "" if the next refresh starts at the beginning
+     */
+    String getResumeAfter(String bucket) {
+        try (Cursor cursor = getReadableDatabase().query("listings",
+                new String[] { "resume_after" }, "bucket = ?", new String[] { bucket },
+                null, null, null)) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Reconciles the index with one page of a listing. Objects of the page
+     * that are new or changed are written, and indexed objects in the range
+     * the page covers that are missing from it are removed.
+     *
+     * @param bucket the bucket
+     * @param afterKey the last key of the previous page, or "" for the first
+     *            page
+     * @param page the objects of the page in listing order
+     * @param lastPage whether the listing ends with this page
+     * @return the number of objects added, changed or removed
+     */
+    int applyPage(String bucket, String afterKey, List<BucketEntry> page, boolean lastPage) {
+        // An empty page in the middle of a listing covers no range
+        if (page.isEmpty() && !lastPage) {
+            return 0;
+        }
+        String lastKey = page.isEmpty() ? null : page.get(page.size() - 1).key;
+
+        SQLiteDatabase db = getWritableDatabase();
+        int changes = 0;
+        db.beginTransaction();
+        try {
+            Map<String, BucketEntry> indexed = new HashMap<>();
+            String selection = lastPage
+                    ? "bucket = ? AND key > ?"
+                    : "bucket = ? AND key > ? AND key <= ?";
+            String[] selectionArgs = lastPage
+                    ? new String[] { bucket, afterKey }
+                    : new String[] { bucket, afterKey, lastKey };
+            try (Cursor cursor = db.query("objects", ENTRY_COLUMNS, selection, selectionArgs,
+                    null, null, null)) {
+                while (cursor.moveToNext()) {
+                    BucketEntry entry = readEntry(cursor);
+                    indexed.put(entry.key, entry);
+                }
+            }
+
+            ContentValues values = new ContentValues();
+            for (BucketEntry entry : page) {
+                BucketEntry old = indexed.remove(entry.key);
+                if (old != null && old.hasSameContents(entry)) {
+                    continue;
+                }
+                values.clear();
+                values.put("bucket", bucket);
+                values.put("key", entry.key);
+                values.put("size", entry.size);
+                values.put("etag", entry.eTag);
+                values.put("last_modified", entry.lastModified);
+                db.insertWithOnConflict("objects", null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                changes++;
+            }
+            for (String key : indexed.keySet()) {
+                db.delete("objects", "bucket = ? AND key = ?", new String[] { bucket, key });
+                changes++;
+            }
+
+            values.clear();
+            values.put("bucket", bucket);
+            values.put("resume_after", lastPage ? null : lastKey);
+            db.insertWithOnConflict("listings", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (changes > 0) {
+            synchronized (keyIndexes) {
+                keyIndexes.remove(bucket);
+                keyIndexGeneration++;
+            }
+        }
+
+        if (lastPage) {
+            refreshTimes.edit().putLong(bucket, System.currentTimeMillis()).apply();
+        }
+        return changes;
+    }
+
+    /*
+     * SQLite orders keys by their UTF-8 bytes, which only differs from the
+     * order of String.compareTo for keys with characters outside the Basic
+     * Multilingual Plane.
+     */
+    private static boolean isSorted(String[] keys) {
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i - 1].compareTo(keys[i]) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sortTogether(String[] keys, long[] sizes) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final String[] unsorted = keys.clone();
+        final long[] unsortedSizes = sizes.clone();
+        Arrays.sort(order, (a, b) -> unsorted[a].compareTo(unsorted[b]));
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = unsorted[order[i]];
+            sizes[i] = unsortedSizes[order[i]];
+        }
+    }
+
+    private static BucketEntry readEntry(Cursor cursor) {
+        return new BucketEntry(cursor.getString(0), cursor.getLong(1), cursor.getString(2),
+                cursor.getLong(3));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chunks of a ranged download that are known to be on disk, each with
+ * its offset in the file, its length and its CRC-32C. A record is appended
+ * only after the bytes of its chunk were forced to the file, and is synced
+ * before the chunk counts as written. Every record carries a checksum of
+ * its own, so a record torn by a crash ends the journal instead of being
+ * trusted.
+ *
+ * The journal only says what was written; whether the file still holds it
+ * is checked against the CRC-32C when the download is resumed.
+ */
+class ChunkJournal {
+    // offset, length, CRC-32C of the chunk, CRC-32C of the first three
+    private static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+
+    /**
+     * One chunk that was written.
+     */
+    static class Entry {
+        final long offset;
+        final int length;
+        final int crc;
+
+        Entry(long offset, int length, int crc) {
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private final File file;
+
+    // Opened on the first append, guarded by this
+    private FileOutputStream out;
+
+    ChunkJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the records up to the first one that is incomplete or damaged.
+     */
+    synchronized List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            return entries;
+        }
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        Crc32c check = new Crc32c();
+        try (InputStream in = new FileInputStream(file)) {
+            while (readFully(in, record)) {
+                check.reset();
+                check.update(record, 0, RECORD_SIZE - 4);
+                buffer.clear();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                if (buffer.getInt() != (int) check.getValue()) {
+                    break;
+                }
+                entries.add(new Entry(offset, length, crc));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records a chunk whose bytes have been forced to the file, and waits
+     * until the record is on disk too.
+     */
+    synchronized void append(long offset, int length, int crc) throws IOException {
+        if (out == null) {
+            out = new FileOutputStream(file, true);
+        }
+        out.write(encode(offset, length, crc));
+        out.getFD().sync();
+    }
+
+    /**
+     * Replaces the records with the given ones. The new records are written
+     * to a temporary file first, so a crash leaves either journal whole.
+     */
+    synchronized void rewrite(List<Entry> entries) throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp, false)) {
+            for (Entry entry : entries) {
+                tmpOut.write(encode(entry.offset, entry.length, entry.crc));
+            }
+            tmpOut.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to write chunk journal " + file);
+        }
+    }
+
+    /**
+     * Forgets every record.
+     */
+    synchronized void delete() {
+        close();
+        file.delete();
+    }
+
+    synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Every record was synced when it was appended
+            }
+            out = null;
+        }
+    }
+
+    private static byte[] encode(long offset, int length, int crc) {
+        byte[] record = new byte[RECORD_SIZE];
+        Crc32c check = new Crc32c();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putLong(offset).putInt(length).putInt(crc);
+        check.update(record, 0, RECORD_SIZE - 4);
+        buffer.putInt((int) check.getValue());
+        return record;
+    }
+
+    private static boolean readFully(InputStream in, byte[] record) throws IOException {
+        int offset = 0;
+        for (int len; offset < record.length
+                && (len = in.read(record, offset, record.length - offset)) != -1; ) {
+            offset += len;
+        }
+        return offset == record.length;
+    }
+}
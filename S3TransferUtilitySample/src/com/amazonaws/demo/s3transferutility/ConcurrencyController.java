@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Decides how many requests of an engine are in flight, additive increase
+ * and multiplicative decrease style. Every request holds a {@link Permit}
+ * and reports how many bytes it moved. Once per window the aggregate
+ * throughput is compared with the previous window:
+ * <ul>
+ * <li>if the limit was reached and the extra request added at least half of
+ * what one request moves on its own, one more request is allowed;</li>
+ * <li>if the throughput fell clearly, the link is congested and the limit is
+ * cut by a quarter;</li>
+ * <li>otherwise the limit holds, and a few windows later one more request is
+ * tried again in case the link got better.</li>
+ * </ul>
+ * A request that fails with 503 SlowDown, 429 or a timeout halves the limit
+ * at once, at most once per window.
+ */
+class ConcurrencyController {
+    private static final String TAG = ConcurrencyController.class.getSimpleName();
+
+    private static final long WINDOW_MS = 2000;
+
+    // Windows without a change before one more request is tried again
+    private static final int PROBE_WINDOWS = 5;
+
+    private final String name;
+    private final int minLimit = 1;
+    private final int maxLimit;
+
+    // Guarded by this
+    private int limit;
+    private int inFlight;
+    private boolean saturated;
+    private long windowStart = SystemClock.elapsedRealtime();
+    private long windowBytes;
+    private double windowRequestRates;
+    private int windowRequests;
+    private double lastThroughput;
+    private int stableWindows;
+    private long lastDecrease;
+
+    /**
+     * @param name names the engine in the log
+     * @param initialLimit how many requests are in flight at first
+     * @param maxLimit the most requests ever in flight
+     */
+    ConcurrencyController(String name, int initialLimit, int maxLimit) {
+        this.name = name;
+        this.maxLimit = Math.max(maxLimit, minLimit);
+        limit = Math.max(minLimit, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * @return the most requests ever in flight, for sizing thread pools
+     */
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Waits until one more request may be in flight.
+     *
+     * @return the Permit to report on and close, or null if interrupted
+     */
+    synchronized Permit acquire() {
+        while (inFlight >= limit) {
+            saturated = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        inFlight++;
+        if (inFlight == limit) {
+            saturated = true;
+        }
+        return new Permit();
+    }
+
+    private synchronized void release(long bytes, long durationMs, Exception failure) {
+        inFlight--;
+        long now = SystemClock.elapsedRealtime();
+        if (failure != null && isCongestion(failure)) {
+            // One burst of errors halves the limit only once
+            if (now - lastDecrease >= WINDOW_MS) {
+                setLimit((int) (limit * 0.5), "congestion: " + failure.getMessage());
+                lastDecrease = now;
+                startWindow(now, 0);
+            }
+        } else {
+            windowBytes += bytes;
+            if (bytes > 0 && durationMs > 0) {
+                windowRequestRates += bytes * 1000.0 / durationMs;
+                windowRequests++;
+            }
+            if (now - windowStart >= WINDOW_MS) {
+                endWindow(now);
+            }
+        }
+        notifyAll();
+    }
+
+    private void endWindow(long now) {
+        double throughput = windowBytes * 1000.0 / (now - windowStart);
+        double perRequest = windowRequests > 0 ? windowRequestRates / windowRequests : 0;
+
+        if (lastThroughput > 0 && throughput < lastThroughput * 0.8) {
+            if (now - lastDecrease >= WINDOW_MS) {
+                setLimit((int) (limit * 0.75), "throughput fell");
+                lastDecrease = now;
+            }
+            stableWindows = 0;
+        } else if (saturated && (lastThroughput == 0
+                || throughput - lastThroughput >= perRequest * 0.5
+                || ++stableWindows >= PROBE_WINDOWS)) {
+            setLimit(limit + 1, "throughput rose");
+            stableWindows = 0;
+        }
+        startWindow(now, throughput);
+    }
+
+    private void startWindow(long now, double throughput) {
+        windowStart = now;
+        windowBytes = 0;
+        windowRequestRates = 0;
+        windowRequests = 0;
+        lastThroughput = throughput;
+        saturated = inFlight >= limit;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        newLimit = Math.max(minLimit, Math.min(newLimit, maxLimit));
+        if (newLimit != limit) {
+            Log.d(TAG, name + " concurrency " + limit + " -> " + newLimit + " (" + reason + ")");
+            limit = newLimit;
+        }
+    }
+
+    /**
+     * Whether the failure means the link or S3 is overloaded, rather than
+     * that the request itself was wrong.
+     */
+    static boolean isCongestion(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return ase.getStatusCode() == 503 || ase.getStatusCode() == 429
+                    || "SlowDown".equals(ase.getErrorCode());
+        }
+        Throwable cause = e instanceof AmazonClientException ? e.getCause() : e;
+        return cause instanceof SocketTimeoutException;
+    }
+
+    /**
+     * One request in flight. It must be closed once the request is over.
+     */
+    class Permit {
+        private final long start = SystemClock.elapsedRealtime();
+        private long bytes;
+        private Exception failure;
+        private boolean closed;
+
+        /**
+         * Counts bytes the request moved.
+         */
+        void addBytes(long count) {
+            bytes += count;
+        }
+
+        /**
+         * Records why the request failed.
+         */
+        void fail(Exception e) {
+            failure = e;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(bytes, SystemClock.elapsedRealtime() - start, failure);
+        }
+    }
+}
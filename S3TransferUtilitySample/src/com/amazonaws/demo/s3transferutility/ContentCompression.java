@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * How compressed objects are stored: gzip, marked by their Content-Encoding,
+ * with their original length in the user metadata.
+ */
+final class ContentCompression {
+    static final String ENCODING = "gzip";
+
+    // User metadata holding the length before compression
+    static final String UNCOMPRESSED_LENGTH = "uncompressed-length";
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    // Text formats that are worth compressing when the type is unknown
+    private static final String[] COMPRESSIBLE_EXTENSIONS = {
+            ".json", ".ndjson", ".csv", ".tsv", ".log", ".txt", ".xml"
+    };
+
+    private ContentCompression() {
+    }
+
+    /**
+     * Whether content of the given type or name shrinks enough to be worth
+     * compressing. Images, video and archives are compressed already.
+     *
+     * @param mimeType the MIME type, or null if unknown
+     * @param name the file name
+     */
+    static boolean isCompressible(String mimeType, String name) {
+        if (mimeType != null && !mimeType.equals("application/octet-stream")) {
+            return mimeType.startsWith("text/")
+                    || mimeType.equals("application/json")
+                    || mimeType.equals("application/xml")
+                    || mimeType.endsWith("+json")
+                    || mimeType.endsWith("+xml");
+        }
+        String lowerCaseName = name.toLowerCase(Locale.US);
+        for (String extension : COMPRESSIBLE_EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The metadata of an object holding the compressed form of content of
+     * the given length.
+     */
+    static ObjectMetadata newMetadata(long uncompressedLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentEncoding(ENCODING);
+        metadata.addUserMetadata(UNCOMPRESSED_LENGTH, Long.toString(uncompressedLength));
+        return metadata;
+    }
+
+    static boolean isCompressed(ObjectMetadata metadata) {
+        return ENCODING.equalsIgnoreCase(metadata.getContentEncoding());
+    }
+
+    /**
+     * @return the length of the object before compression, or -1 if it was
+     *         not recorded
+     */
+    static long getUncompressedLength(ObjectMetadata metadata) {
+        String length = metadata.getUserMetaDataOf(UNCOMPRESSED_LENGTH);
+        try {
+            return length != null ? Long.parseLong(length) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decompresses the content of a compressed object as it is read. The
+     * HTTP stack may have decompressed it already, so the gzip header is
+     * looked for first.
+     */
+    static InputStream decompress(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] magic = new byte[2];
+        int read = 0;
+        for (int len; read < 2 && (len = pushback.read(magic, read, 2 - read)) != -1; ) {
+            read += len;
+        }
+        pushback.unread(magic, 0, read);
+        if (read == 2 && ((magic[0] & 0xff) | (magic[1] & 0xff) << 8) == GZIP_MAGIC) {
+            return new GZIPInputStream(pushback, 64 * 1024);
+        }
+        return pushback;
+    }
+
+    /**
+     * Collects compressed output until it makes a part, and hands it to the
+     * request and to its checksums without copying it.
+     */
+    static class PartBuffer extends ByteArrayOutputStream {
+        // How much of the part has gone to its checksums
+        private int checksummed;
+
+        PartBuffer(int size) {
+            super(size);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        /**
+         * Hands the bytes written since the last call to the checksums of
+         * the part. A larger array may replace the current one as the part
+         * grows, but the bytes already handed over stay where they are.
+         */
+        void checksumNewBytes(PartChecksums.Part checksums) {
+            checksums.update(buf, checksummed, count - checksummed);
+            checksummed = count;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            checksummed = 0;
+        }
+    }
+}
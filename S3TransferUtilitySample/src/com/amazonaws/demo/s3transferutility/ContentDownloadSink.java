@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Downloads straight into a document of a storage provider or an entry of
+ * the MediaStore, through its file descriptor. Entries made by
+ * {@link #createDownload} stay pending, hidden from other apps, until the
+ * download is complete.
+ *
+ * Providers that back the document with a real file can write it at any
+ * offset, so its ranges are written in parallel. The others stream the
+ * content through a pipe, and the object is then written in one go.
+ */
+public class ContentDownloadSink extends DownloadSink {
+    private static final String TAG = ContentDownloadSink.class.getSimpleName();
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final Uri uri;
+
+    // Null until the descriptor of the document has been looked at
+    private Boolean seekable;
+
+    ContentDownloadSink(Context context, Uri uri) {
+        this.context = context.getApplicationContext();
+        this.resolver = context.getContentResolver();
+        this.uri = uri;
+    }
+
+    /**
+     * Makes a pending entry in the shared Downloads collection.
+     *
+     * @param context Android context
+     * @param name the file name of the entry
+     * @return the sink
+     * @throws IOException if the entry cannot be made
+     */
+    @RequiresApi(29)
+    public static ContentDownloadSink createDownload(Context context, String name)
+            throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, getMimeType(name));
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri uri = context.getContentResolver()
+                .insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) {
+            throw new IOException("Unable to add " + name + " to Downloads");
+        }
+        return new ContentDownloadSink(context, uri);
+    }
+
+    /**
+     * Makes a new document in a folder the user picked.
+     *
+     * @param context Android context
+     * @param treeUri the folder, as returned by ACTION_OPEN_DOCUMENT_TREE
+     * @param name the display name of the document
+     * @return the sink
+     * @throws IOException if the document cannot be made
+     */
+    @RequiresApi(21)
+    public static ContentDownloadSink createDocument(Context context, Uri treeUri, String name)
+            throws IOException {
+        Uri folderUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        Uri uri;
+        try {
+            uri = DocumentsContract.createDocument(context.getContentResolver(), folderUri,
+                    getMimeType(name), name);
+        } catch (SecurityException e) {
+            throw new IOException("Permission to write to " + treeUri + " was revoked", e);
+        }
+        if (uri == null) {
+            throw new IOException("Unable to create " + name + " in " + treeUri);
+        }
+        return new ContentDownloadSink(context, uri);
+    }
+
+    @Override
+    public String getPath() {
+        return uri.toString();
+    }
+
+    @Override
+    public synchronized boolean isSeekable() throws IOException {
+        if (seekable == null) {
+            try (ParcelFileDescriptor pfd = openFileDescriptor("rw")) {
+                // The size is only known when the descriptor refers to a file.
+                seekable = pfd.getStatSize() >= 0;
+            }
+        }
+        return seekable;
+    }
+
+    /**
+     * @return the length of the document, or -1 if it is not known
+     */
+    @Override
+    public long length() throws IOException {
+        try (ParcelFileDescriptor pfd = openFileDescriptor("r")) {
+            return pfd.getStatSize();
+        }
+    }
+
+    @Override
+    public void setLength(long length) throws IOException {
+        try (FileChannel channel = openChannel(true)) {
+            long size = channel.size();
+            if (size > length) {
+                channel.truncate(length);
+            } else if (size < length) {
+                // Writing the last byte grows the document
+                channel.write(ByteBuffer.allocate(1), length - 1);
+            }
+        }
+    }
+
+    @Override
+    public FileChannel openChannel(boolean write) throws IOException {
+        // Closing the channel closes the stream, and with it the descriptor
+        if (write) {
+            return new ParcelFileDescriptor.AutoCloseOutputStream(openFileDescriptor("rw"))
+                    .getChannel();
+        }
+        return new ParcelFileDescriptor.AutoCloseInputStream(openFileDescriptor("r"))
+                .getChannel();
+    }
+
+    @Override
+    public FileOutputStream openStream() throws IOException {
+        return new ParcelFileDescriptor.AutoCloseOutputStream(openFileDescriptor("wt"));
+    }
+
+    @Override
+    public void delete() {
+        try {
+            if (Build.VERSION.SDK_INT >= 19 && DocumentsContract.isDocumentUri(context, uri)) {
+                DocumentsContract.deleteDocument(resolver, uri);
+            } else {
+                resolver.delete(uri, null, null);
+            }
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "Unable to delete " + uri, e);
+        }
+    }
+
+    @Override
+    public void publish() throws IOException {
+        if (Build.VERSION.SDK_INT < 29 || !MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        try {
+            resolver.update(uri, values, null, null);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to publish " + uri, e);
+        }
+    }
+
+    private ParcelFileDescriptor openFileDescriptor(String mode) throws IOException {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = resolver.openFileDescriptor(uri, mode);
+        } catch (SecurityException e) {
+            throw new IOException("Permission to write " + uri + " was revoked", e);
+        }
+        if (pfd == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        return pfd;
+    }
+
+    private static String getMimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        String mimeType = dot >= 0
+                ? MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                        name.substring(dot + 1).toLowerCase(Locale.US))
+                : null;
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+}
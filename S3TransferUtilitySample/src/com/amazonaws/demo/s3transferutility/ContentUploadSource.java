@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploads a document straight from its content provider, without copying it
+ * into the app's storage first. Each part opens the document's file
+ * descriptor and seeks its channel to the part's offset.
+ *
+ * Only documents backed by a real file can be read this way. Providers that
+ * stream their content through a pipe cannot seek, and {@link #open} rejects
+ * them.
+ */
+public class ContentUploadSource extends UploadSource {
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final long length;
+    private final long lastModified;
+
+    private ContentUploadSource(ContentResolver resolver, Uri uri, long length,
+            long lastModified) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Opens a document for uploading.
+     *
+     * @param context Android context
+     * @param uri the content URI of the document
+     * @return the source
+     * @throws IOException if the document cannot be read, or it cannot be
+     *             read at arbitrary offsets
+     */
+    public static ContentUploadSource open(Context context, Uri uri) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        long length;
+        try (ParcelFileDescriptor pfd = openFileDescriptor(resolver, uri)) {
+            // The size is only known when the descriptor refers to a file.
+            length = pfd.getStatSize();
+        }
+        if (length < 0) {
+            throw new IOException("Content is not seekable: " + uri);
+        }
+        return new ContentUploadSource(resolver, uri, length, queryLastModified(resolver, uri));
+    }
+
+    @Override
+    public String getPath() {
+        return uri.toString();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public InputStream openStream(long offset, long length) throws IOException {
+        ParcelFileDescriptor.AutoCloseInputStream in =
+                new ParcelFileDescriptor.AutoCloseInputStream(openFileDescriptor(resolver, uri));
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new RangeInputStream(in, length);
+    }
+
+    private static ParcelFileDescriptor openFileDescriptor(ContentResolver resolver, Uri uri)
+            throws IOException {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = resolver.openFileDescriptor(uri, "r");
+        } catch (SecurityException e) {
+            throw new IOException("Permission to read " + uri + " was revoked", e);
+        }
+        if (pfd == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        return pfd;
+    }
+
+    private static long queryLastModified(ContentResolver resolver, Uri uri) {
+        if (Build.VERSION.SDK_INT < 19) {
+            return 0;
+        }
+        final String[] projection = { DocumentsContract.Document.COLUMN_LAST_MODIFIED };
+        try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int columnIndex = cursor.getColumnIndex(
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (columnIndex >= 0 && !cursor.isNull(columnIndex)) {
+                    return cursor.getLong(columnIndex);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // The provider does not know the column.
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-32C (Castagnoli) checksum, which java.util.zip only has from Java
+ * 9 on. Eight bytes are folded in per step with eight lookup tables
+ * ("slicing-by-8"), which is several times faster than a byte at a time.
+ */
+final class Crc32c implements Checksum {
+    // The reversed Castagnoli polynomial
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLES[0][n];
+            for (int k = 1; k < 8; k++) {
+                crc = TABLES[0][crc & 0xff] ^ (crc >>> 8);
+                TABLES[k][n] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = TABLES[0][(crc ^ b) & 0xff] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0];
+        final int[] t1 = TABLES[1];
+        final int[] t2 = TABLES[2];
+        final int[] t3 = TABLES[3];
+        final int[] t4 = TABLES[4];
+        final int[] t5 = TABLES[5];
+        final int[] t6 = TABLES[6];
+        final int[] t7 = TABLES[7];
+        int c = crc;
+        int end = off + len;
+        for (; end - off >= 8; off += 8) {
+            int lo = c ^ ((b[off] & 0xff)
+                    | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16
+                    | (b[off + 3] & 0xff) << 24);
+            int hi = (b[off + 4] & 0xff)
+                    | (b[off + 5] & 0xff) << 8
+                    | (b[off + 6] & 0xff) << 16
+                    | (b[off + 7] & 0xff) << 24;
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff] ^ t1[(hi >>> 16) & 0xff]
+                    ^ t0[hi >>> 24];
+        }
+        for (; off < end; off++) {
+            c = t0[(c ^ b[off]) & 0xff] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer, which is
+     * left at its limit. Direct and mapped buffers are read in place.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        final int[] t0 = TABLES[0];
+        final int[] t1 = TABLES[1];
+        final int[] t2 = TABLES[2];
+        final int[] t3 = TABLES[3];
+        final int[] t4 = TABLES[4];
+        final int[] t5 = TABLES[5];
+        final int[] t6 = TABLES[6];
+        final int[] t7 = TABLES[7];
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int c = crc;
+        while (buffer.remaining() >= 8) {
+            int lo = c ^ buffer.getInt();
+            int hi = buffer.getInt();
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff] ^ t1[(hi >>> 16) & 0xff]
+                    ^ t0[hi >>> 24];
+        }
+        while (buffer.hasRemaining()) {
+            c = t0[(c ^ buffer.get()) & 0xff] ^ (c >>> 8);
+        }
+        buffer.order(order);
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+
+    /**
+     * Combines the checksums of two consecutive pieces of content into the
+     * checksum of the whole, without reading the content again. This is the
+     * matrix method of zlib's crc32_combine.
+     *
+     * @param crc1 the checksum of the first piece
+     * @param crc2 the checksum of the second piece
+     * @param length2 the length of the second piece
+     * @return the checksum of both pieces one after the other
+     */
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        // The operator that appends one zero bit, then two, four and so on
+        int[] odd = new int[32];
+        int[] even = new int[32];
+        odd[0] = POLYNOMIAL;
+        for (int n = 1, row = 1; n < 32; n++, row <<= 1) {
+            odd[n] = row;
+        }
+        square(even, odd);
+        square(odd, even);
+
+        int crc = (int) crc1;
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc ^ (int) crc2) & 0xffffffffL;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
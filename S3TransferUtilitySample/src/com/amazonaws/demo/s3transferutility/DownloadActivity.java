@@ -15,46 +15,49 @@
 
 package com.amazonaws.demo.s3transferutility;
 
-import android.app.ListActivity;
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.support.annotation.RequiresApi;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.widget.Button;
-import android.widget.ProgressBar;
-import android.widget.RadioButton;
-import android.widget.SimpleAdapter;
-import android.widget.TextView;
 import android.widget.Toast;
 
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 
 import java.io.File;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 
 /**
  * DownloadActivity displays a list of download records and a bunch of buttons
  * for managing the downloads.
  */
-public class DownloadActivity extends ListActivity {
-    private static final String TAG = "DownloadActivity";
+public class DownloadActivity extends Activity {
+    private static final String TAG = DownloadActivity.class.getSimpleName();
 
     private static final int DOWNLOAD_SELECTION_REQUEST_CODE = 1;
 
     private static final int DOWNLOAD_IN_BACKGROUND_SELECTION_REQUEST_CODE = 2;
 
-    // Indicates no row element has been selected
-    private static final int INDEX_NOT_CHECKED = -1;
+    private static final int FOLDER_REQUEST_CODE = 3;
+
+    private static final int DOWNLOAD_TO_FOLDER_SELECTION_REQUEST_CODE = 4;
+
+    private static final String STATE_FOLDER_URI = "folderUri";
+
+    // Transfer callbacks are turned into at most one list update per interval
+    private static final long UPDATE_INTERVAL_MS = 100;
 
     private Button btnDownload;
     private Button btnDownloadInBackground;
+    private Button btnDownloadToFolder;
     private Button btnPause;
     private Button btnResume;
     private Button btnCancel;
@@ -62,127 +65,144 @@ public class DownloadActivity extends ListActivity {
     private Button btnPauseAll;
     private Button btnCancelAll;
 
+    // The folder picked for the next download to a folder
+    private Uri folderUri;
+
     // This is the main class for interacting with the Transfer Manager
     static TransferUtility transferUtility;
 
-    // The SimpleAdapter adapts the data about transfers to rows in the UI
-    static SimpleAdapter simpleAdapter;
+    // The TransferAdapter shows one row per transfer
+    static TransferAdapter transferAdapter;
 
-    // A List of all transfers
-    static List<TransferObserver> observers;
+    // Collects the transfers that changed between two list updates
+    static TransferUpdateThrottler updateThrottler;
+
+    // Downloads large objects in ranges
+    static RangedDownloader rangedDownloader;
+
+    // Starts downloads a few at a time, the ones the user waits for first
+    static TransferScheduler transferScheduler;
+
+    // The transfer records, kept in memory
+    static TransferSnapshot transferSnapshot;
+
+    // Marks the downloads that changed for the next list update
+    private static final TransferSnapshot.Listener snapshotListener = (type, id, state) -> {
+        if (type == TransferType.DOWNLOAD) {
+            updateThrottler.markChanged(id);
+        }
+    };
+
+    // The downloads that changed since the list was last brought up to date
+    private TransferSnapshot.Changes changes;
+    private final SparseBooleanArray changedIds = new SparseBooleanArray();
 
-    /**
-     * This map is used to provide data to the SimpleAdapter above. See the
-     * fillMap() function for how it relates observers to rows in the displayed
-     * activity.
-     */
-    static ArrayList<HashMap<String, Object>> transferRecordMaps;
-    static int checkedIndex;
     static Util util;
 
+    // Whether the clients above are set up, and whether the activity is in
+    // the foreground
+    private boolean clientsReady;
+    private boolean resumed;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_download);
-        // Initializes TransferUtility, always do this before using it.
-        util = new Util();
-        transferUtility = util.getTransferUtility(this);
-        checkedIndex = INDEX_NOT_CHECKED;
-        transferRecordMaps = new ArrayList<>();
+        if (savedInstanceState != null) {
+            // The picked folder outlives an activity recreated while the
+            // object is being selected
+            folderUri = savedInstanceState.getParcelable(STATE_FOLDER_URI);
+        }
+        final Util readyUtil = new Util();
+        util = readyUtil;
         initUI();
+        // The clients are set up in the background so that the screen shows
+        // at once; the list fills in when they are ready
+        util.whenReady(this, () -> {
+            transferUtility = readyUtil.getTransferUtility(this);
+            rangedDownloader = readyUtil.getRangedDownloader(this);
+            transferScheduler = readyUtil.getTransferScheduler(this);
+            transferSnapshot = readyUtil.getTransferSnapshot(this);
+            clientsReady = true;
+            updateButtonAvailability();
+            if (resumed) {
+                showTransfers();
+            }
+        }, e -> Toast.makeText(this, "Unable to set up the S3 clients, check "
+                + "awsconfiguration.json: " + e.getMessage(), Toast.LENGTH_LONG).show());
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
+        if (clientsReady) {
+            showTransfers();
+        }
+    }
+
+    private void showTransfers() {
         initData();
+        // Scheduled downloads are added to the list as they start, one by one
+        transferSnapshot.addListener(snapshotListener);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_FOLDER_URI, folderUri);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Clear transfer listeners to prevent memory leak, or
-        // else this activity won't be garbage collected.
-        if (observers != null && !observers.isEmpty()) {
-            for (TransferObserver observer : observers) {
-                observer.cleanTransferListener();
-            }
+        resumed = false;
+        if (!clientsReady) {
+            return;
+        }
+        transferSnapshot.removeListener(snapshotListener);
+        updateThrottler.cancel();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (changes != null) {
+            transferSnapshot.untrack(changes);
         }
     }
 
     /**
-     * Gets all relevant transfers from the Transfer Service for populating the
-     * UI
+     * Lists the transfers from the snapshot the first time, and afterwards
+     * updates only the rows of the transfers that changed in the meantime.
      */
-    static void initData() {
-        transferRecordMaps.clear();
-        // Uses TransferUtility to get all previous download records.
-        observers = transferUtility.getTransfersWithType(TransferType.DOWNLOAD);
-        TransferListener listener = new DownloadListener();
-        for (TransferObserver observer : observers) {
-            observer.refresh();
-            HashMap<String, Object> map = new HashMap<>();
-            util.fillMap(map, observer, false);
-            transferRecordMaps.add(map);
-
-            // Sets listeners to in progress transfers
-            if (TransferState.WAITING.equals(observer.getState())
-                    || TransferState.WAITING_FOR_NETWORK.equals(observer.getState())
-                    || TransferState.IN_PROGRESS.equals(observer.getState())) {
-                observer.setTransferListener(listener);
-            }
+    private void initData() {
+        if (changes == null) {
+            changes = transferSnapshot.track(TransferType.DOWNLOAD);
+            transferAdapter.setRows(transferSnapshot.getRows(TransferType.DOWNLOAD));
+            return;
         }
-        simpleAdapter.notifyDataSetChanged();
+        transferSnapshot.takeChanges(changes, changedIds);
+        updateRows(changedIds);
+        changedIds.clear();
     }
 
     private void initUI() {
-        // This adapter takes the data in transferRecordMaps and displays it,
-        // with the keys of the map being related to the columns in the adapter
-        simpleAdapter = new SimpleAdapter(this, transferRecordMaps,
-                R.layout.record_item, new String[] {
-                        "checked", "fileName", "progress", "bytes", "state", "percentage"
-                },
-                new int[] {
-                        R.id.radioButton1, R.id.textFileName, R.id.progressBar1, R.id.textBytes,
-                        R.id.textState, R.id.textPercentage
-                });
-        simpleAdapter.setViewBinder((view, data, textRepresentation) -> {
-            switch (view.getId()) {
-                case R.id.radioButton1:
-                    RadioButton radio = (RadioButton) view;
-                    radio.setChecked((Boolean) data);
-                    return true;
-                case R.id.progressBar1:
-                    ProgressBar progress = (ProgressBar) view;
-                    progress.setProgress((Integer) data);
-                    return true;
-                case R.id.textFileName:
-                case R.id.textBytes:
-                case R.id.textState:
-                case R.id.textPercentage:
-                    TextView text = (TextView) view;
-                    text.setText(data.toString());
-                    return true;
-            }
-            return false;
-        });
-        setListAdapter(simpleAdapter);
-
-        // Updates checked index when an item is clicked
-        getListView().setOnItemClickListener((adapterView, view, pos, id) -> {
-            if (checkedIndex != pos) {
-                transferRecordMaps.get(pos).put("checked", true);
-                if (checkedIndex >= 0) {
-                    transferRecordMaps.get(checkedIndex).put("checked", false);
-                }
-                checkedIndex = pos;
-                updateButtonAvailability();
-                simpleAdapter.notifyDataSetChanged();
-            }
-        });
+        // Updates the buttons when a row is checked
+        transferAdapter = new TransferAdapter(util, checkedId -> updateButtonAvailability());
+        RecyclerView recyclerView = findViewById(R.id.transferList);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.addItemDecoration(
+                new DividerItemDecoration(this, layoutManager.getOrientation()));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(transferAdapter);
+        updateThrottler = new TransferUpdateThrottler(UPDATE_INTERVAL_MS,
+                DownloadActivity::updateRows);
 
         btnDownload = findViewById(R.id.buttonDownload);
         btnDownloadInBackground = findViewById(R.id.buttonDownloadInBackground);
+        btnDownloadToFolder = findViewById(R.id.buttonDownloadToFolder);
         btnPause = findViewById(R.id.buttonPause);
         btnResume = findViewById(R.id.buttonResume);
         btnCancel = findViewById(R.id.buttonCancel);
@@ -204,11 +224,19 @@ public class DownloadActivity extends ListActivity {
             startActivityForResult(intent, DOWNLOAD_IN_BACKGROUND_SELECTION_REQUEST_CODE);
         });
 
+        // Lets the user pick a folder, on the device or in a cloud provider,
+        // and then an object to download straight into it
+        btnDownloadToFolder.setEnabled(Build.VERSION.SDK_INT >= 21);
+        btnDownloadToFolder.setOnClickListener(view -> {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+            startActivityForResult(intent, FOLDER_REQUEST_CODE);
+        });
+
         btnPause.setOnClickListener(view -> {
             // Make sure the user has selected a transfer
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                Boolean paused = transferUtility.pause(observers.get(checkedIndex)
-                        .getId());
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                boolean paused = transferScheduler.pause(TransferType.DOWNLOAD, id);
                 /*
                  * If paused does not return true, it is likely because the
                  * user is trying to pause a download that is not in a
@@ -226,19 +254,20 @@ public class DownloadActivity extends ListActivity {
 
         btnResume.setOnClickListener(view -> {
             // Make sure the user has selected a transfer
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                TransferObserver resumed = transferUtility.resume(observers.get(checkedIndex)
-                        .getId());
-                // Sets a new transfer listener to the original observer.
-                // This will overwrite existing listener.
-                observers.get(checkedIndex).setTransferListener(new DownloadListener());
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                boolean resumed = transferScheduler.resume(TransferType.DOWNLOAD, id);
+                if (!isRangedDownload(id)) {
+                    // The snapshot follows the transfer again
+                    transferSnapshot.watch(TransferType.DOWNLOAD, id);
+                }
 
                 /*
-                 * If resume returns null, it is likely because the transfer
+                 * If resume returns false, it is likely because the transfer
                  * is not in a resumable state (For instance it is already
                  * running).
                  */
-                if (resumed == null) {
+                if (!resumed) {
                     Toast.makeText(
                             DownloadActivity.this,
                             "Cannot resume transfer.  You can only resume transfers in a PAUSED state.",
@@ -249,8 +278,9 @@ public class DownloadActivity extends ListActivity {
 
         btnCancel.setOnClickListener(view -> {
             // Make sure a transfer is selected
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                boolean canceled = transferUtility.cancel(observers.get(checkedIndex).getId());
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                boolean canceled = transferScheduler.cancel(TransferType.DOWNLOAD, id);
                 /*
                  * If cancel returns false, it is likely because the
                  * transfer is already canceled
@@ -266,20 +296,25 @@ public class DownloadActivity extends ListActivity {
 
         btnDelete.setOnClickListener(view -> {
             // Make sure a transfer is selected
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
                 // Deletes a record but the file is not deleted.
-                transferUtility.deleteTransferRecord(observers.get(checkedIndex).getId());
-                observers.remove(checkedIndex);
-                transferRecordMaps.remove(checkedIndex);
-                checkedIndex = INDEX_NOT_CHECKED;
-                updateButtonAvailability();
-                updateList();
+                if (isRangedDownload(id)) {
+                    rangedDownloader.deleteTransferRecord(id);
+                } else {
+                    transferUtility.deleteTransferRecord(id);
+                }
+                transferSnapshot.remove(TransferType.DOWNLOAD, id);
+                transferAdapter.removeRow(id);
             }
         });
 
-        btnPauseAll.setOnClickListener(view -> transferUtility.pauseAllWithType(TransferType.DOWNLOAD));
+        // The queued transfers are held or dropped too
+        btnPauseAll.setOnClickListener(
+                view -> transferScheduler.pauseAll(TransferType.DOWNLOAD));
 
-        btnCancelAll.setOnClickListener(view -> transferUtility.cancelAllWithType(TransferType.DOWNLOAD));
+        btnCancelAll.setOnClickListener(
+                view -> transferScheduler.cancelAll(TransferType.DOWNLOAD));
 
         updateButtonAvailability();
     }
@@ -291,29 +326,97 @@ public class DownloadActivity extends ListActivity {
                 // Start downloading with the key they selected in the
                 // DownloadSelectionActivity screen.
                 String key = data.getStringExtra("key");
-                beginDownload(key);
+                long size = data.getLongExtra("size", -1);
+                String memberName = data.getStringExtra("memberName");
+                long memberOffset = data.getLongExtra("memberOffset", 0);
+                util.whenReady(this, () -> {
+                    if (memberName != null) {
+                        beginMemberDownload(key, memberName, memberOffset, size);
+                    } else {
+                        beginDownload(key, size);
+                    }
+                });
             }
         } else if (requestCode == DOWNLOAD_IN_BACKGROUND_SELECTION_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
                 // Start downloading with the key they selected in the
                 // DownloadSelectionActivity screen.
                 String key = data.getStringExtra("key");
-                beginDownloadInBackground(key);
+                long size = data.getLongExtra("size", -1);
+                beginDownloadInBackground(key, size, data.getStringExtra("memberName"),
+                        data.getLongExtra("memberOffset", 0));
+            }
+        } else if (requestCode == FOLDER_REQUEST_CODE) {
+            if (resultCode == RESULT_OK && Build.VERSION.SDK_INT >= 21) {
+                // Keep the access to the folder for downloads resumed later
+                folderUri = data.getData();
+                try {
+                    getContentResolver().takePersistableUriPermission(folderUri,
+                            Intent.FLAG_GRANT_READ_URI_PERMISSION
+                                    | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+                } catch (SecurityException e) {
+                    // The grant that came with the result still lets this
+                    // download go ahead
+                    Log.w(TAG, "Unable to keep the permission to write to " + folderUri, e);
+                }
+                Intent intent = new Intent(DownloadActivity.this, DownloadSelectionActivity.class);
+                startActivityForResult(intent, DOWNLOAD_TO_FOLDER_SELECTION_REQUEST_CODE);
+            }
+        } else if (requestCode == DOWNLOAD_TO_FOLDER_SELECTION_REQUEST_CODE) {
+            if (resultCode == RESULT_OK && folderUri != null && Build.VERSION.SDK_INT >= 21) {
+                String key = data.getStringExtra("key");
+                long size = data.getLongExtra("size", -1);
+                String memberName = data.getStringExtra("memberName");
+                long memberOffset = data.getLongExtra("memberOffset", 0);
+                Uri treeUri = folderUri;
+                util.whenReady(this, () -> beginFolderDownload(treeUri, key, size, memberName,
+                        memberOffset));
             }
         }
     }
 
+    /*
+     * Begins to download the object, or one member of the pack, into a new
+     * document in the picked folder.
+     */
+    @RequiresApi(21)
+    private void beginFolderDownload(Uri treeUri, String key, long size, String memberName,
+            long memberOffset) {
+        // The document is created when the download starts, off the main
+        // thread
+        Context context = getApplicationContext();
+        String name = memberName != null ? memberName : getFileName(key);
+        DownloadSink.Factory sink = k -> ContentDownloadSink.createDocument(context, treeUri,
+                name);
+        if (memberName != null) {
+            PackArchive.Member member = new PackArchive.Member(memberName, size);
+            member.offset = memberOffset;
+            transferScheduler.downloadMember(key, member, sink,
+                    TransferScheduler.Priority.INTERACTIVE);
+        } else {
+            transferScheduler.download(key, sink, size, TransferScheduler.Priority.INTERACTIVE);
+        }
+    }
+
+    /*
+     * The part of the key after the last slash.
+     */
+    private static String getFileName(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
     /*
      * Begins to download the file specified by the key in the bucket.
      */
-    private void beginDownload(String key) {
+    private void beginDownload(String key, long size) {
         // Location to download files from S3 to. You can choose any accessible
-        // file.
+        // file, document or MediaStore entry. It is made when the download
+        // starts, off the main thread.
+        DownloadSink.Factory sink = util.getDownloadSinkFactory(this);
 
-        File file = new File(getExternalFilesDir(null).toString() + "/" + key);
-
-        // Initiate the download
-        TransferObserver observer = transferUtility.download(key, file);
+        // Initiate the download ahead of the background ones. Large objects
+        // are fetched as parallel byte ranges.
+        transferScheduler.download(key, sink, size, TransferScheduler.Priority.INTERACTIVE);
 
         /*
          * Note that usually we set the transfer listener after initializing the
@@ -326,13 +429,26 @@ public class DownloadActivity extends ListActivity {
     }
 
     /*
-     * Begins to download the file specified by the key in the bucket.
+     * Begins to download one member of the pack specified by the key, with a
+     * ranged GET of the member's bytes.
      */
-    private void beginDownloadInBackground(String key) {
-        // Location to download files from S3 to. You can choose any accessible
-        // file.
-        File file = new File(getExternalFilesDir(null).toString() + "/" + key);
+    private void beginMemberDownload(String key, String memberName, long offset, long size) {
+        PackArchive.Member member = new PackArchive.Member(memberName, size);
+        member.offset = offset;
+        // Members of a pack go in a folder named after the pack
+        File dir = getExternalFilesDir(null);
+        DownloadSink.Factory sink =
+                k -> new FileDownloadSink(PackArchive.memberFile(dir, k, memberName));
+        transferScheduler.downloadMember(key, member, sink,
+                TransferScheduler.Priority.INTERACTIVE);
+    }
 
+    /*
+     * Begins to download the file specified by the key in the bucket, or
+     * only the given member if the key is a pack.
+     */
+    private void beginDownloadInBackground(String key, long size, String memberName,
+            long memberOffset) {
         // Wrap the download call from a background service to
         // support long-running downloads. Uncomment the following
         // code in order to start a download from the background
@@ -341,7 +457,13 @@ public class DownloadActivity extends ListActivity {
         Intent intent = new Intent(context, MyService.class);
         intent.putExtra(MyService.INTENT_KEY_NAME, key);
         intent.putExtra(MyService.INTENT_TRANSFER_OPERATION, MyService.TRANSFER_OPERATION_DOWNLOAD);
-        intent.putExtra(MyService.INTENT_FILE, file);
+        intent.putExtra(MyService.INTENT_SIZE, size);
+        // Without a file, the service makes the destination of the object
+        // itself, off the main thread
+        if (memberName != null) {
+            intent.putExtra(MyService.INTENT_MEMBER_NAME, memberName);
+            intent.putExtra(MyService.INTENT_MEMBER_OFFSET, memberOffset);
+        }
         context.startService(intent);
 
         /*
@@ -355,55 +477,52 @@ public class DownloadActivity extends ListActivity {
     }
 
     /*
-     * Updates the ListView according to observers, by making transferRecordMap
-     * reflect the current data in observers.
+     * Lists a download that started after the list was loaded.
      */
-    static void updateList() {
-        TransferObserver observer;
-        HashMap<String, Object> map;
-        for (int i = 0; i < observers.size(); i++) {
-            observer = observers.get(i);
-            observer.setTransferListener(new DownloadListener());
-            map = transferRecordMaps.get(i);
-            util.fillMap(map, observer, i == checkedIndex);
+    private static void addRow(int id) {
+        TransferRow row = new TransferRow(id);
+        if (transferSnapshot.readRow(TransferType.DOWNLOAD, id, row)) {
+            transferAdapter.addRow(row);
         }
-        simpleAdapter.notifyDataSetChanged();
     }
 
     /*
-     * Enables or disables buttons according to checkedIndex.
+     * Copies the current values of the transfers that changed into their
+     * rows. Only those rows are bound again, and only the parts of them that
+     * show progress.
      */
-    private void updateButtonAvailability() {
-        boolean availability = checkedIndex >= 0;
-        btnPause.setEnabled(availability);
-        btnResume.setEnabled(availability);
-        btnCancel.setEnabled(availability);
-        btnDelete.setEnabled(availability);
+    static void updateRows(SparseBooleanArray changedIds) {
+        for (int i = 0; i < changedIds.size(); i++) {
+            int id = changedIds.keyAt(i);
+            TransferRow row = transferAdapter.findRow(id);
+            if (row == null) {
+                addRow(id);
+            } else if (transferSnapshot.readRow(TransferType.DOWNLOAD, id, row)) {
+                transferAdapter.notifyRowChanged(id);
+            } else {
+                transferAdapter.removeRow(id);
+            }
+        }
     }
 
     /*
-     * A TransferListener class that can listen to a download task and be
-     * notified when the status changes.
+     * Ranged downloads have negative ids, TransferUtility records positive
+     * ones.
      */
-    private static class DownloadListener implements TransferListener, Serializable {
-        // Simply updates the list when notified.
-        @Override
-        public void onError(int id, Exception e) {
-            Log.e(TAG, "onError: " + id, e);
-            updateList();
-        }
-
-        @Override
-        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-            Log.d(TAG, String.format("onProgressChanged: %d, total: %d, current: %d",
-                    id, bytesTotal, bytesCurrent));
-            updateList();
-        }
+    private static boolean isRangedDownload(int id) {
+        return id < 0;
+    }
 
-        @Override
-        public void onStateChanged(int id, TransferState state) {
-            Log.d(TAG, "onStateChanged: " + id + ", " + state);
-            updateList();
-        }
+    /*
+     * Enables or disables buttons according to the checked row.
+     */
+    private void updateButtonAvailability() {
+        boolean availability = transferAdapter.getCheckedId() != TransferAdapter.NO_SELECTION;
+        btnPause.setEnabled(availability);
+        btnResume.setEnabled(availability);
+        btnCancel.setEnabled(availability);
+        btnDelete.setEnabled(availability);
+        btnPauseAll.setEnabled(clientsReady);
+        btnCancelAll.setEnabled(clientsReady);
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * The on-disk record of a ranged download. The object is split into ranges of
+ * equal size, and for every range the manifest remembers how many bytes have
+ * been written to the destination. Which chunks of the ranges are really on
+ * disk is kept in a {@link ChunkJournal}, which a resumed download checks
+ * first.
+ *
+ * A compressed object, or one whose destination can only be written from
+ * start to end, is streamed as a single range. A gzip stream cannot be
+ * entered in the middle, so the length of a compressed object is its length
+ * after decompression, or -1 if the object does not record it.
+ *
+ * The download of a member of a pack covers only the member's bytes, which
+ * start at an offset in the object.
+ */
+class DownloadManifest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File manifestFile;
+
+    final String key;
+    // A file path or a content URI, as returned by DownloadSink.getPath
+    final String filePath;
+    final long rangeSize;
+
+    // Where the downloaded bytes start in the object, and how many there are
+    // (-1 for the whole object)
+    final long objectOffset;
+    final long memberLength;
+
+    private long length = -1;
+    private String eTag;
+    private long[] written = new long[0];
+    private boolean streamed;
+    private boolean compressed;
+    private boolean completed;
+
+    DownloadManifest(File manifestFile, String key, String filePath, long rangeSize,
+            long objectOffset, long memberLength) {
+        this.manifestFile = manifestFile;
+        this.key = key;
+        this.filePath = filePath;
+        this.rangeSize = rangeSize;
+        this.objectOffset = objectOffset;
+        this.memberLength = memberLength;
+    }
+
+    /**
+     * Returns the file that holds the manifest for downloading the given key
+     * to the given destination. The same key and destination always map to
+     * the same manifest.
+     */
+    static File fileFor(File manifestDir, String key, String filePath) {
+        String name = key + "\n" + filePath;
+        return new File(manifestDir, UUID.nameUUIDFromBytes(name.getBytes(UTF_8)) + ".json");
+    }
+
+    /**
+     * Reads a manifest previously written by {@link #save()}.
+     *
+     * @throws IOException if the file cannot be read or is not a manifest
+     */
+    static DownloadManifest load(File manifestFile) throws IOException {
+        byte[] data = new byte[(int) manifestFile.length()];
+        try (InputStream in = new FileInputStream(manifestFile)) {
+            int offset = 0;
+            for (int len; offset < data.length
+                    && (len = in.read(data, offset, data.length - offset)) != -1; ) {
+                offset += len;
+            }
+        }
+
+        try {
+            JSONObject json = new JSONObject(new String(data, UTF_8));
+            DownloadManifest manifest = new DownloadManifest(manifestFile,
+                    json.getString("key"),
+                    json.getString("file"),
+                    json.getLong("rangeSize"),
+                    json.optLong("objectOffset", 0),
+                    json.optLong("memberLength", -1));
+            manifest.length = json.getLong("length");
+            manifest.eTag = json.optString("eTag", null);
+            manifest.compressed = json.optBoolean("compressed");
+            manifest.streamed = json.optBoolean("streamed", manifest.compressed);
+            manifest.completed = json.optBoolean("completed");
+            JSONArray written = json.getJSONArray("written");
+            manifest.written = new long[written.length()];
+            for (int i = 0; i < manifest.written.length; i++) {
+                manifest.written[i] = written.getLong(i);
+            }
+            return manifest;
+        } catch (JSONException e) {
+            throw new IOException("Malformed download manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * Writes the manifest to disk. The new content is written to a temporary
+     * file first so that a crash never leaves a half written manifest behind.
+     */
+    synchronized void save() throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("key", key);
+            json.put("file", filePath);
+            json.put("rangeSize", rangeSize);
+            json.put("objectOffset", objectOffset);
+            json.put("memberLength", memberLength);
+            json.put("length", length);
+            json.put("eTag", eTag);
+            json.put("streamed", streamed);
+            json.put("compressed", compressed);
+            json.put("completed", completed);
+            JSONArray array = new JSONArray();
+            for (long bytes : written) {
+                array.put(bytes);
+            }
+            json.put("written", array);
+        } catch (JSONException e) {
+            throw new IOException("Unable to serialize download manifest", e);
+        }
+
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(json.toString().getBytes(UTF_8));
+        }
+        if (!tmp.renameTo(manifestFile)) {
+            throw new IOException("Unable to write download manifest " + manifestFile);
+        }
+    }
+
+    void delete() {
+        manifestFile.delete();
+    }
+
+    /**
+     * Returns the file that holds the {@link ChunkJournal} of the download,
+     * next to the manifest.
+     */
+    File getJournalFile() {
+        String path = manifestFile.getPath();
+        return new File(path.substring(0, path.lastIndexOf('.')) + ".journal");
+    }
+
+    /**
+     * Whether the manifest was written for this version of the object.
+     */
+    synchronized boolean matches(long length, String eTag) {
+        return this.length == length && eTag != null && eTag.equals(this.eTag);
+    }
+
+    /**
+     * Starts over for a new version of the object, forgetting what was
+     * written so far.
+     */
+    synchronized void reset(long length, String eTag) {
+        this.length = length;
+        this.eTag = eTag;
+        this.written = new long[(int) ((length + rangeSize - 1) / rangeSize)];
+        this.streamed = false;
+        this.compressed = false;
+        this.completed = false;
+    }
+
+    /**
+     * Starts over for an object that is written in one go.
+     *
+     * @param length the length of the object, after decompression if it is
+     *            compressed, or -1 if unknown
+     * @param compressed whether the object is decompressed as it is written
+     */
+    synchronized void resetStreamed(long length, String eTag, boolean compressed) {
+        this.length = length;
+        this.eTag = eTag;
+        this.written = new long[1];
+        this.streamed = true;
+        this.compressed = compressed;
+        this.completed = false;
+    }
+
+    synchronized boolean isStreamed() {
+        return streamed;
+    }
+
+    synchronized boolean isCompressed() {
+        return compressed;
+    }
+
+    synchronized long getLength() {
+        return length;
+    }
+
+    synchronized String getETag() {
+        return eTag;
+    }
+
+    synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    synchronized void setCompleted() {
+        completed = true;
+    }
+
+    synchronized int getRangeCount() {
+        return written.length;
+    }
+
+    long getRangeOffset(int range) {
+        return range * rangeSize;
+    }
+
+    synchronized long getRangeLength(int range) {
+        return Math.min(rangeSize, length - getRangeOffset(range));
+    }
+
+    synchronized long getWritten(int range) {
+        return written[range];
+    }
+
+    synchronized void setWritten(int range, long bytes) {
+        written[range] = bytes;
+    }
+
+    /**
+     * Total number of bytes written to the destination so far.
+     */
+    synchronized long getBytesWritten() {
+        long bytes = 0;
+        for (long w : written) {
+            bytes += w;
+        }
+        return bytes;
+    }
+}
@@ -15,37 +15,81 @@
 
 package com.amazonaws.demo.s3transferutility;
 
-import android.app.ListActivity;
-import android.app.ProgressDialog;
+import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.widget.SimpleAdapter;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.mobile.config.AWSConfiguration;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
  * DownloadSelectionActivity displays a list of files in the bucket. Users can
  * select a file to download.
+ *
+ * The list comes from a local {@link BucketIndex}, so it shows up at once.
+ * The index is refreshed from S3 in the background when it is older than
+ * {@link #REFRESH_INTERVAL_MS}, and the list follows as the pages come in.
+ * Keys are shown in folders split by {@link #DELIMITER}, and typing in the
+ * search box lists the keys in the current folder that start with the text.
  */
-public class DownloadSelectionActivity extends ListActivity {
+public class DownloadSelectionActivity extends Activity {
+
+    // TAG for logging;
+    private static final String TAG = "DownloadSelection";
+
+    // How long a listing is used before the bucket is listed again
+    private static final long REFRESH_INTERVAL_MS = 15 * 60 * 1000;
 
-    // The S3 client used for getting the list of objects in the bucket
-    private AmazonS3Client s3;
+    // Separates the folders in keys
+    private static final char DELIMITER = '/';
+
+    // The local copy of the bucket listing
+    private BucketIndex bucketIndex;
 
     // An adapter to show the objects
-    private SimpleAdapter simpleAdapter;
-    private ArrayList<HashMap<String, Object>> transferRecordMaps;
+    private BucketAdapter bucketAdapter;
+    private EditText searchQuery;
+    private TextView currentFolder;
+    private ProgressBar progressBar;
     private Util util;
     private String bucket;
 
+    // The keys of the bucket, once they are loaded
+    private KeySearchIndex keyIndex;
+
+    // The folder being shown, "" for the top of the bucket
+    private String folder = "";
+
+    // The loading of the keys, if it is running
+    private LoadKeysTask loadKeysTask;
+
+    // Whether the index changed while the keys were being loaded
+    private boolean keysOutdated;
+
+    // The refresh of the index, if one is running
+    private RefreshTask refreshTask;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -59,76 +103,279 @@ public class DownloadSelectionActivity extends ListActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        // Refresh the file list.
-        new GetFileListTask().execute();
+        // Show the indexed file list and refresh it if it is old.
+        loadKeys();
+        refreshTask = new RefreshTask();
+        refreshTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // An interrupted refresh continues where it stopped next time
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+        if (loadKeysTask != null) {
+            loadKeysTask.cancel(false);
+            loadKeysTask = null;
+        }
+        progressBar.setVisibility(View.GONE);
+    }
+
+    @Override
+    public void onBackPressed() {
+        // Goes up one folder before leaving the bucket
+        if (folder.isEmpty()) {
+            super.onBackPressed();
+            return;
+        }
+        int end = folder.lastIndexOf(DELIMITER, folder.length() - 2);
+        folder = folder.substring(0, end + 1);
+        showListing();
     }
 
     private void initData() {
-        // Gets the default S3 client.
-        s3 = util.getS3Client(DownloadSelectionActivity.this);
-        transferRecordMaps = new ArrayList<>();
+        // The S3 client is got in the background tasks, since it may wait
+        // for the credentials
+        bucketIndex = util.getBucketIndex(DownloadSelectionActivity.this);
     }
 
     private void initUI() {
-        simpleAdapter = new SimpleAdapter(this, transferRecordMaps,
-                R.layout.bucket_item, new String[] {
-                        "key"
-                },
-                new int[] {
-                        R.id.key
-                });
-        simpleAdapter.setViewBinder((view, data, textRepresentation) -> {
-            if (view.getId() == R.id.key) {
-                TextView fileName = (TextView) view;
-                fileName.setText(data.toString());
-                return true;
+        searchQuery = findViewById(R.id.searchQuery);
+        currentFolder = findViewById(R.id.currentFolder);
+        progressBar = findViewById(R.id.progressLoading);
+
+        bucketAdapter = new BucketAdapter(new BucketAdapter.OnItemClickListener() {
+            // When an item is selected, finish the activity and pass back the
+            // S3 key and size associated with the object selected
+            @Override
+            public void onObjectClick(String key, long size) {
+                // A pack offers its members to pick from
+                if (key.endsWith(PackArchive.SUFFIX)) {
+                    new PackIndexTask(key, size).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                    return;
+                }
+                finishWithSelection(key, size, null);
+            }
+
+            @Override
+            public void onFolderClick(String subfolder) {
+                folder = subfolder;
+                searchQuery.getText().clear();
+                showListing();
             }
-            return false;
         });
-        setListAdapter(simpleAdapter);
-
-        // When an item is selected, finish the activity and pass back the S3
-        // key associated with the object selected
-        getListView().setOnItemClickListener((adapterView, view, pos, id) -> {
-            Intent intent = new Intent();
-            intent.putExtra("key", (String) transferRecordMaps.get(pos).get("key"));
-            setResult(RESULT_OK, intent);
-            finish();
+
+        RecyclerView recyclerView = findViewById(R.id.objectList);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.addItemDecoration(
+                new DividerItemDecoration(this, layoutManager.getOrientation()));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(bucketAdapter);
+
+        // Searches the loaded keys on every keystroke
+        searchQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                showListing();
+            }
         });
     }
 
+    /*
+     * Shows the current folder, or the search results in it.
+     */
+    private void showListing() {
+        currentFolder.setText(bucket + DELIMITER + folder);
+        if (keyIndex == null) {
+            return;
+        }
+        String query = searchQuery.getText().toString();
+        bucketAdapter.setListing(query.isEmpty()
+                ? keyIndex.listFolder(folder, DELIMITER)
+                : keyIndex.search(folder, query));
+    }
+
+    /*
+     * Loads the keys from the index, or loads them again once the running
+     * load finishes.
+     */
+    private void loadKeys() {
+        if (loadKeysTask != null) {
+            keysOutdated = true;
+            return;
+        }
+        loadKeysTask = new LoadKeysTask();
+        loadKeysTask.execute();
+    }
+
+    /**
+     * This async task loads the keys of the bucket from the index so that
+     * they can be displayed on the screen
+     */
+    private class LoadKeysTask extends AsyncTask<Void, Void, KeySearchIndex> {
+        @Override
+        protected KeySearchIndex doInBackground(Void... inputs) {
+            return bucketIndex.getKeyIndex(bucket);
+        }
+
+        @Override
+        protected void onPostExecute(KeySearchIndex result) {
+            loadKeysTask = null;
+            keyIndex = result;
+            showListing();
+            if (keysOutdated) {
+                keysOutdated = false;
+                loadKeys();
+            }
+        }
+    }
+
+    /*
+     * Passes back the S3 key and size of the selected object, and the member
+     * if only one member of a pack was selected.
+     */
+    private void finishWithSelection(String key, long size, PackArchive.Member member) {
+        Intent intent = new Intent();
+        intent.putExtra("key", key);
+        intent.putExtra("size", size);
+        if (member != null) {
+            intent.putExtra("memberName", member.name);
+            intent.putExtra("memberOffset", member.offset);
+            intent.putExtra("size", member.size);
+        }
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+
     /**
-     * This async task queries S3 for all files in the given bucket so that they
-     * can be displayed on the screen
+     * This async task reads the index of a pack with ranged GETs and lets
+     * the user pick one of its members. An archive without an index is
+     * selected as a whole.
      */
-    private class GetFileListTask extends AsyncTask<Void, Void, Void> {
-        // A dialog to let the user know we are retrieving the files
-        private ProgressDialog dialog;
+    private class PackIndexTask extends AsyncTask<Void, Void, List<PackArchive.Member>> {
+        private final String key;
+        private final long size;
+
+        PackIndexTask(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
 
         @Override
         protected void onPreExecute() {
-            dialog = ProgressDialog.show(DownloadSelectionActivity.this,
-                    getString(R.string.refreshing),
-                    getString(R.string.please_wait));
+            progressBar.setVisibility(View.VISIBLE);
         }
 
         @Override
-        protected Void doInBackground(Void... inputs) {
-            // Queries files in the bucket from S3.
-            List<S3ObjectSummary> s3ObjList = s3.listObjects(bucket).getObjectSummaries();
-            transferRecordMaps.clear();
-            for (S3ObjectSummary summary : s3ObjList) {
-                HashMap<String, Object> map = new HashMap<>();
-                map.put("key", summary.getKey());
-                transferRecordMaps.add(map);
+        protected List<PackArchive.Member> doInBackground(Void... inputs) {
+            try {
+                AmazonS3Client s3 = util.getS3Client(DownloadSelectionActivity.this);
+                return PackArchive.readIndex(s3, bucket, key);
+            } catch (IOException | AmazonClientException e) {
+                Log.w(TAG, "No pack index in " + key, e);
+                return null;
             }
-            return null;
         }
 
         @Override
-        protected void onPostExecute(Void result) {
-            dialog.dismiss();
-            simpleAdapter.notifyDataSetChanged();
+        protected void onPostExecute(final List<PackArchive.Member> members) {
+            progressBar.setVisibility(refreshTask != null ? View.VISIBLE : View.GONE);
+            if (members == null || isFinishing()) {
+                finishWithSelection(key, size, null);
+                return;
+            }
+            String[] names = new String[members.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = members.get(i).name;
+            }
+            new AlertDialog.Builder(DownloadSelectionActivity.this)
+                    .setTitle(key)
+                    .setItems(names, (dialog, which) ->
+                            finishWithSelection(key, size, members.get(which)))
+                    .setPositiveButton(R.string.download_whole_pack, (dialog, which) ->
+                            finishWithSelection(key, size, null))
+                    .show();
+        }
+    }
+
+    /**
+     * This async task lists the bucket from S3, one page at a time, and
+     * writes the differences into the index. It continues an earlier refresh
+     * that was interrupted, and does nothing while the index is recent.
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, Boolean> {
+        @Override
+        protected void onPreExecute() {
+            progressBar.setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... inputs) {
+            if (bucketIndex.isFresh(bucket, REFRESH_INTERVAL_MS)) {
+                return true;
+            }
+
+            AmazonS3Client s3 = util.getS3Client(DownloadSelectionActivity.this);
+            String afterKey = bucketIndex.getResumeAfter(bucket);
+            ListObjectsV2Request request = new ListObjectsV2Request()
+                    .withBucketName(bucket)
+                    .withStartAfter(afterKey.isEmpty() ? null : afterKey);
+            try {
+                while (!isCancelled()) {
+                    ListObjectsV2Result result = s3.listObjectsV2(request);
+                    List<S3ObjectSummary> summaries = result.getObjectSummaries();
+                    List<BucketEntry> page = new ArrayList<>(summaries.size());
+                    for (S3ObjectSummary summary : summaries) {
+                        page.add(new BucketEntry(summary));
+                    }
+                    int pageChanges = bucketIndex.applyPage(bucket, afterKey, page,
+                            !result.isTruncated());
+                    // Lets the list show the changes as they come in
+                    if (pageChanges > 0) {
+                        publishProgress();
+                    }
+
+                    if (!result.isTruncated()) {
+                        break;
+                    }
+                    if (!page.isEmpty()) {
+                        afterKey = page.get(page.size() - 1).key;
+                    }
+                    request.setContinuationToken(result.getNextContinuationToken());
+                }
+                return true;
+            } catch (AmazonClientException e) {
+                Log.e(TAG, "Unable to list bucket " + bucket, e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Void... values) {
+            loadKeys();
+        }
+
+        @Override
+        protected void onPostExecute(Boolean succeeded) {
+            refreshTask = null;
+            progressBar.setVisibility(View.GONE);
+            if (!succeeded) {
+                Toast.makeText(DownloadSelectionActivity.this,
+                        "Unable to list the bucket. See error log for details",
+                        Toast.LENGTH_LONG).show();
+            }
         }
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where a download is written: a file, or a document or media entry that is
+ * written straight through its content provider, so that the object does not
+ * have to be copied there once it is downloaded.
+ *
+ * Ranges are written in parallel at their own offsets when the destination
+ * allows it; otherwise the object is written from start to end in one go.
+ */
+public abstract class DownloadSink {
+
+    /**
+     * Makes the sink of a download when it starts, since adding a MediaStore
+     * entry or a document is too slow for the main thread.
+     */
+    public interface Factory {
+        /**
+         * @param key the key of the object downloaded
+         * @return the sink the object is written to
+         */
+        DownloadSink create(String key) throws IOException;
+    }
+
+    /**
+     * @return a string that identifies the destination, such as a file path
+     *         or a content URI
+     */
+    public abstract String getPath();
+
+    /**
+     * @return the file written, or null if the destination is not a plain
+     *         file
+     */
+    public File getFile() {
+        return null;
+    }
+
+    /**
+     * Whether bytes can be written at any offset, so that ranges can be
+     * written in parallel and a download can be resumed.
+     */
+    public abstract boolean isSeekable() throws IOException;
+
+    /**
+     * @return the current length of the destination in bytes
+     */
+    public abstract long length() throws IOException;
+
+    /**
+     * Grows or shrinks a seekable destination to the given length.
+     */
+    public abstract void setLength(long length) throws IOException;
+
+    /**
+     * Opens a channel over a seekable destination.
+     *
+     * @param write whether the channel is written or only read
+     * @return a channel that the caller must close
+     */
+    public abstract FileChannel openChannel(boolean write) throws IOException;
+
+    /**
+     * Opens a stream that replaces the content of the destination.
+     *
+     * @return a stream that the caller must close
+     */
+    public abstract FileOutputStream openStream() throws IOException;
+
+    /**
+     * Deletes what was written so far, when a download is canceled.
+     */
+    public abstract void delete();
+
+    /**
+     * Makes the destination visible to other apps once the download is
+     * complete, if it was hidden while it was written.
+     */
+    public void publish() throws IOException {
+    }
+
+    /**
+     * Opens the sink identified by a path previously returned by
+     * {@link #getPath()}.
+     *
+     * @param context Android context
+     * @param path a file path or a content URI
+     * @return the sink
+     */
+    static DownloadSink open(Context context, String path) {
+        if (path.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+            return new ContentDownloadSink(context, Uri.parse(path));
+        }
+        return new FileDownloadSink(new File(path));
+    }
+}
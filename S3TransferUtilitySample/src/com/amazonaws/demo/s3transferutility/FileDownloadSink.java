@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Downloads to a file on local storage.
+ */
+public class FileDownloadSink extends DownloadSink {
+    private final File file;
+
+    public FileDownloadSink(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public String getPath() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return file.length();
+    }
+
+    @Override
+    public void setLength(long length) throws IOException {
+        makeParent();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    @Override
+    public FileChannel openChannel(boolean write) throws IOException {
+        return new RandomAccessFile(file, write ? "rw" : "r").getChannel();
+    }
+
+    @Override
+    public FileOutputStream openStream() throws IOException {
+        makeParent();
+        return new FileOutputStream(file, false);
+    }
+
+    @Override
+    public void delete() {
+        file.delete();
+    }
+
+    private void makeParent() {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Uploads a file on local storage. Its parts can be mapped into memory.
+ */
+public class FileUploadSource extends UploadSource {
+    private final File file;
+    private final long length;
+    private final long lastModified;
+
+    public FileUploadSource(File file) {
+        this.file = file;
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+    }
+
+    @Override
+    public String getPath() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public InputStream openStream(long offset, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new RangeInputStream(in, length);
+    }
+
+    @Override
+    public ByteBuffer openBuffer(long offset, long length) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            // Reading a mapped page past the end of the file is fatal, so a
+            // file that shrank is turned down before it is mapped.
+            if (in.getChannel().size() < offset + length) {
+                throw new IOException("File changed since the upload started: " + file);
+            }
+            // The mapping stays valid once the channel is closed
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+    }
+}
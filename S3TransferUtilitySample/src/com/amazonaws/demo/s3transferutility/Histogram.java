@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counts values in buckets whose width grows with the value, as HdrHistogram
+ * does. Values below {@link #SUB_BUCKETS} get a bucket each; above that every
+ * power of two is split into {@code SUB_BUCKETS / 2} buckets, so a value is
+ * known to within 1/16th while the whole range of a long fits in under a
+ * thousand counters. Not thread safe.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    Histogram() {
+    }
+
+    Histogram(Histogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, BUCKETS);
+        count = other.count;
+        sum = other.sum;
+        max = other.max;
+    }
+
+    /**
+     * Counts a value. Negative values count as 0.
+     */
+    void record(long value) {
+        value = Math.max(value, 0);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the largest value that falls in the same bucket as the value
+     *         at the percentile, or 0 when nothing was recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Writes the histogram with only its non-empty buckets, as pairs of
+     * bucket index and count.
+     */
+    JSONObject toJson() throws JSONException {
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                buckets.put(i).put(counts[i]);
+            }
+        }
+        return new JSONObject()
+                .put("count", count)
+                .put("sum", sum)
+                .put("max", max)
+                .put("subBucketBits", SUB_BUCKET_BITS)
+                .put("buckets", buckets);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Keeps the SUB_BUCKET_BITS highest bits of the value
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    static long highestOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The keys of a bucket in a sorted array, for answering prefix searches and
+ * listing "folders" without going back to S3. Both are binary searches over
+ * the array, so they take milliseconds even for hundreds of thousands of
+ * keys.
+ */
+class KeySearchIndex {
+    private final String[] keys;
+    private final long[] sizes;
+
+    /**
+     * @param keys the keys in ascending order
+     * @param sizes the size of the object of each key
+     */
+    KeySearchIndex(String[] keys, long[] sizes) {
+        this.keys = keys;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Lists every object in the folder, or any of its subfolders, whose name
+     * starts with the query.
+     *
+     * @param folder the folder, "" or a prefix ending with the delimiter
+     * @param query the beginning of the name relative to the folder
+     */
+    Listing search(String folder, String query) {
+        String prefix = folder + query;
+        int start = lowerBound(prefix, 0);
+        int end = lowerBound(successor(prefix), start);
+        return new Listing(folder, start, end, null, null);
+    }
+
+    /**
+     * Lists the objects and subfolders directly inside a folder, the way
+     * ListObjects does with a delimiter. The keys inside a subfolder are
+     * skipped with a binary search.
+     *
+     * @param folder the folder, "" or a prefix ending with the delimiter
+     * @param delimiter the character that separates folders in keys
+     */
+    Listing listFolder(String folder, char delimiter) {
+        int start = lowerBound(folder, 0);
+        int end = lowerBound(successor(folder), start);
+        List<String> folders = new ArrayList<>();
+        int[] rows = new int[16];
+        int count = 0;
+        for (int i = start; i < end; ) {
+            int delimiterIndex = keys[i].indexOf(delimiter, folder.length());
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            if (delimiterIndex < 0) {
+                rows[count++] = i++;
+            } else {
+                String subfolder = keys[i].substring(0, delimiterIndex + 1);
+                rows[count++] = -1 - folders.size();
+                folders.add(subfolder);
+                i = lowerBound(successor(subfolder), i);
+            }
+        }
+        return new Listing(folder, 0, count, rows, folders);
+    }
+
+    /*
+     * Returns the index of the first key not less than the given one,
+     * searching from the given index.
+     */
+    private int lowerBound(String key, int from) {
+        if (key == null) {
+            return keys.length;
+        }
+        int low = from;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Returns the smallest string greater than every string starting with the
+     * prefix, or null if there is none.
+     */
+    private static String successor(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The result of a search or folder listing: objects and subfolders in key
+     * order. Search results refer to a range of the index, so answering a
+     * keystroke copies no keys.
+     */
+    class Listing {
+        private final String folder;
+        private final int start;
+        private final int end;
+
+        // Index of each row in keys, or -1 - the index in folders; null for a
+        // plain range of the index
+        private final int[] rows;
+        private final List<String> folders;
+
+        private Listing(String folder, int start, int end, int[] rows, List<String> folders) {
+            this.folder = folder;
+            this.start = start;
+            this.end = end;
+            this.rows = rows;
+            this.folders = folders;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        boolean isFolder(int position) {
+            return rows != null && rows[start + position] < 0;
+        }
+
+        /**
+         * @return the key of the object, or the prefix of the folder
+         */
+        String getKey(int position) {
+            if (rows == null) {
+                return keys[start + position];
+            }
+            int row = rows[start + position];
+            return row < 0 ? folders.get(-1 - row) : keys[row];
+        }
+
+        /**
+         * @return the key relative to the folder that was listed or searched
+         */
+        String getName(int position) {
+            return getKey(position).substring(folder.length());
+        }
+
+        long getSize(int position) {
+            if (rows == null) {
+                return sizes[start + position];
+            }
+            int row = rows[start + position];
+            return row < 0 ? 0 : sizes[row];
+        }
+    }
+}
@@ -27,6 +27,7 @@ public class MainActivity extends Activity {
 
     private Button btnDownload;
     private Button btnUpload;
+    private Button btnStats;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -38,8 +39,10 @@ public class MainActivity extends Activity {
     private void initUI() {
         btnDownload = findViewById(R.id.buttonDownloadMain);
         btnUpload = findViewById(R.id.buttonUploadMain);
+        btnStats = findViewById(R.id.buttonStatsMain);
 
         btnDownload.setOnClickListener(view -> startActivity(new Intent(MainActivity.this, DownloadActivity.class)));
         btnUpload.setOnClickListener(view -> startActivity(new Intent(MainActivity.this, UploadActivity.class)));
+        btnStats.setOnClickListener(view -> startActivity(new Intent(MainActivity.this, StatsActivity.class)));
     }
 }
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads large files with the S3 multipart API, sending several parts at the
+ * same time so that a single upload can fill the uplink. The content comes
+ * from an {@link UploadSource}, either a file or a document that is read
+ * straight from its content provider. Every uploaded part is recorded in an
+ * {@link UploadManifest}, which lets a paused, failed or interrupted upload
+ * pick up where it left off. The checksums of every part are computed while
+ * it is read, by {@link PartChecksums}, and kept in the manifest. Parts of
+ * files are mapped into memory and sent from the mapping.
+ *
+ * Content can also be gzip compressed on the way with
+ * {@link #uploadCompressed}, one part buffered in memory at a time.
+ *
+ * The methods mirror the ones on TransferUtility so the activities can manage
+ * both kinds of transfers the same way.
+ */
+public class MultipartUploader {
+    private static final String TAG = MultipartUploader.class.getSimpleName();
+
+    // S3 rejects parts smaller than 5 MB, except for the last part
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    // S3 allows at most 10,000 parts per upload
+    private static final int MAX_PART_COUNT = 10000;
+
+    private final Context context;
+    private final AmazonS3Client s3;
+    private final String bucket;
+    private final File manifestDir;
+    private final long multipartThreshold;
+    private final long partSize;
+    private final int maxRetries;
+
+    // Uploads the parts; the controller decides how many are in flight
+    private final ExecutorService partExecutor;
+    private final ConcurrencyController concurrency;
+
+    // Hashes the parts as they are read, on every core
+
+    // Runs the requests that start, finish and abort uploads
+    private final ExecutorService controlExecutor = Executors.newSingleThreadExecutor();
+
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final Map<Integer, Upload> uploads = new LinkedHashMap<>();
+
+    /**
+     * @param context Android context
+     * @param s3 the client used to talk to S3
+     * @param bucket the bucket the files are uploaded to
+     * @param manifestDir where the manifests of unfinished uploads are kept
+     * @param multipartThreshold files at least this large should be uploaded
+     *            in parts
+     * @param partSize the preferred size of each part, at least 5 MB
+     * @param concurrency decides how many parts are uploaded at the same time
+     * @param maxRetries how many times a failed part is retried before the
+     *            upload fails
+     */
+    public MultipartUploader(Context context, AmazonS3Client s3, String bucket, File manifestDir,
+            long multipartThreshold, long partSize, ConcurrencyController concurrency,
+            int maxRetries) {
+        this.context = context.getApplicationContext();
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.manifestDir = manifestDir;
+        this.multipartThreshold = multipartThreshold;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.concurrency = concurrency;
+        this.partExecutor = Executors.newFixedThreadPool(concurrency.getMaxLimit());
+        this.maxRetries = maxRetries;
+
+        manifestDir.mkdirs();
+        loadManifests();
+    }
+
+    /**
+     * Whether a file of the given length is large enough to be worth
+     * uploading in parts.
+     */
+    public boolean shouldUploadInParts(long length) {
+        return length >= multipartThreshold;
+    }
+
+    /**
+     * Starts uploading the file to the given key. If an earlier upload of the
+     * same file to the same key was interrupted, it is resumed instead.
+     *
+     * @param key the key in the bucket
+     * @param file the file to upload
+     * @return the upload, for following its progress
+     */
+    public Upload upload(String key, File file) {
+        return upload(key, new FileUploadSource(file));
+    }
+
+    /**
+     * Starts uploading the content to the given key. If an earlier upload of
+     * the same content to the same key was interrupted, it is resumed
+     * instead.
+     *
+     * @param key the key in the bucket
+     * @param source the content to upload
+     * @return the upload, for following its progress
+     */
+    public Upload upload(String key, UploadSource source) {
+        return upload(key, source, false);
+    }
+
+    /**
+     * Starts uploading the content gzip compressed to the given key. The
+     * object gets a Content-Encoding of gzip and its original length in the
+     * user metadata. Content of any size goes this way; when it fits in one
+     * part it is sent with a single PutObject.
+     *
+     * @param key the key in the bucket
+     * @param source the content to upload
+     * @return the upload, for following its progress
+     */
+    public Upload uploadCompressed(String key, UploadSource source) {
+        return upload(key, source, true);
+    }
+
+    private Upload upload(String key, UploadSource source, boolean compressed) {
+        File manifestFile = UploadManifest.fileFor(manifestDir, key, source.getPath());
+        synchronized (uploads) {
+            for (Upload upload : uploads.values()) {
+                if (!upload.manifest.sourcePath.equals(source.getPath())
+                        || !upload.manifest.key.equals(key)) {
+                    continue;
+                }
+                if (upload.manifest.matches(source) && !upload.manifest.isCompleted()
+                        && upload.manifest.compressed == compressed) {
+                    upload.source = source;
+                    resume(upload.id);
+                    return upload;
+                }
+                // The old record describes a finished upload or content that
+                // has changed since, so it is replaced by a new one.
+                deleteTransferRecord(upload.id);
+                break;
+            }
+
+            long size = Math.max(partSize,
+                    (source.length() + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+            Upload upload = new Upload(nextId(),
+                    new UploadManifest(manifestFile, key, source, size, compressed));
+            upload.source = source;
+            uploads.put(upload.id, upload);
+            start(upload);
+            return upload;
+        }
+    }
+
+    /**
+     * @return a snapshot of all uploads this uploader knows about
+     */
+    public List<Upload> getUploads() {
+        synchronized (uploads) {
+            return new ArrayList<>(uploads.values());
+        }
+    }
+
+    /**
+     * @return the upload with the given id, or null if there is none
+     */
+    public Upload getUpload(int id) {
+        synchronized (uploads) {
+            return uploads.get(id);
+        }
+    }
+
+    /**
+     * Pauses an upload. Parts in flight are abandoned and sent again on
+     * resume.
+     *
+     * @return true if the upload was waiting or in progress
+     */
+    public boolean pause(int id) {
+        Upload upload = getUpload(id);
+        return upload != null && upload.stop(TransferState.PAUSED);
+    }
+
+    /**
+     * Resumes a paused or failed upload.
+     *
+     * @return the resumed upload, or null if it was not in a resumable state
+     */
+    public Upload resume(int id) {
+        Upload upload = getUpload(id);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            if (upload.state != TransferState.PAUSED && upload.state != TransferState.FAILED) {
+                return null;
+            }
+            start(upload);
+        }
+        return upload;
+    }
+
+    /**
+     * Cancels an upload and aborts it on S3, discarding the uploaded parts.
+     *
+     * @return true if the upload had not finished yet
+     */
+    public boolean cancel(int id) {
+        Upload upload = getUpload(id);
+        return upload != null && cancel(upload);
+    }
+
+    public void pauseAll() {
+        for (Upload upload : getUploads()) {
+            pause(upload.id);
+        }
+    }
+
+    public void cancelAll() {
+        for (Upload upload : getUploads()) {
+            cancel(upload.id);
+        }
+    }
+
+    /**
+     * Forgets an upload. An unfinished upload is canceled first.
+     *
+     * @return true if there was such an upload
+     */
+    public boolean deleteTransferRecord(int id) {
+        Upload upload;
+        synchronized (uploads) {
+            upload = uploads.remove(id);
+        }
+        if (upload == null) {
+            return false;
+        }
+        if (!cancel(upload)) {
+            upload.manifest.delete();
+        }
+        return true;
+    }
+
+    private boolean cancel(final Upload upload) {
+        if (!upload.stop(TransferState.CANCELED)) {
+            return false;
+        }
+        controlExecutor.execute(() -> abort(upload));
+        return true;
+    }
+
+    private int nextId() {
+        // Ids are negative so they never collide with the ids TransferUtility
+        // gives to its transfer records.
+        return -lastId.incrementAndGet();
+    }
+
+    /**
+     * Lists the uploads that were unfinished or completed when the app was
+     * last running. Unfinished uploads come back paused.
+     */
+    private void loadManifests() {
+        File[] files = manifestDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".json")) {
+                continue;
+            }
+            try {
+                UploadManifest manifest = UploadManifest.load(file);
+                Upload upload = new Upload(nextId(), manifest);
+                upload.bytesTransferred.set(manifest.isCompleted()
+                        ? manifest.length
+                        : manifest.getBytesUploaded());
+                upload.state = manifest.isCompleted()
+                        ? TransferState.COMPLETED
+                        : TransferState.PAUSED;
+                uploads.put(upload.id, upload);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable upload manifest " + file, e);
+                file.delete();
+            }
+        }
+    }
+
+    private void start(final Upload upload) {
+        upload.setState(TransferState.WAITING);
+        controlExecutor.execute(() -> {
+            try {
+                prepare(upload);
+            } catch (AmazonClientException | IOException e) {
+                upload.fail(e);
+                return;
+            }
+            upload.scheduleParts();
+        });
+    }
+
+    /**
+     * Makes sure S3 knows about the upload and that the manifest agrees with
+     * the parts S3 actually has.
+     */
+    private void prepare(Upload upload) throws IOException {
+        UploadManifest manifest = upload.manifest;
+        if (upload.source == null) {
+            // The upload was read back from its manifest.
+            upload.source = UploadSource.open(context, manifest.sourcePath);
+        }
+        if (!manifest.matches(upload.source)) {
+            throw new IOException("Content changed since the upload started: "
+                    + manifest.sourcePath);
+        }
+
+        if (manifest.compressed) {
+            // Starts over; the upload is only created once a part is full
+            abortOnS3(manifest);
+            manifest.setUploadId(null);
+            manifest.save();
+            upload.bytesTransferred.set(0);
+            return;
+        }
+        if (manifest.getUploadId() != null) {
+            try {
+                manifest.retainParts(listParts(manifest));
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                // The upload expired or was aborted on S3; start over.
+                Log.w(TAG, "Upload " + manifest.getUploadId() + " no longer exists, restarting");
+                manifest.setUploadId(null);
+            }
+        }
+        if (manifest.getUploadId() == null) {
+            String uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, manifest.key)).getUploadId();
+            manifest.setUploadId(uploadId);
+        }
+        manifest.save();
+        upload.bytesTransferred.set(manifest.getBytesUploaded());
+    }
+
+    private Map<Integer, String> listParts(UploadManifest manifest) {
+        Map<Integer, String> parts = new HashMap<>();
+        ListPartsRequest request = new ListPartsRequest(bucket, manifest.key,
+                manifest.getUploadId());
+        PartListing listing;
+        do {
+            listing = s3.listParts(request);
+            for (PartSummary part : listing.getParts()) {
+                // A part of unexpected length was uploaded with another part
+                // size and cannot be reused.
+                if (part.getSize() == manifest.getPartLength(part.getPartNumber())) {
+                    parts.put(part.getPartNumber(), part.getETag());
+                }
+            }
+            request.setPartNumberMarker(listing.getNextPartNumberMarker());
+        } while (listing.isTruncated());
+        return parts;
+    }
+
+    private void complete(Upload upload) {
+        UploadManifest manifest = upload.manifest;
+        try {
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, manifest.key,
+                    manifest.getUploadId(), manifest.getPartETags()));
+            manifest.setCompleted();
+            manifest.save();
+        } catch (AmazonClientException | IOException e) {
+            upload.fail(e);
+            return;
+        }
+        upload.setState(TransferState.COMPLETED);
+    }
+
+    private void abort(Upload upload) {
+        abortOnS3(upload.manifest);
+        upload.manifest.delete();
+    }
+
+    private void abortOnS3(UploadManifest manifest) {
+        if (manifest.getUploadId() != null) {
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, manifest.key,
+                        manifest.getUploadId()));
+            } catch (AmazonClientException e) {
+                // S3 cleans up the parts once the bucket's lifecycle rules
+                // expire the upload.
+                Log.w(TAG, "Unable to abort upload " + manifest.getUploadId(), e);
+            }
+        }
+    }
+
+    /**
+     * A single multipart upload.
+     */
+    public class Upload extends ParallelTransfer {
+        private final UploadManifest manifest;
+
+        private volatile UploadSource source;
+
+        private Upload(int id, UploadManifest manifest) {
+            super(id);
+            this.manifest = manifest;
+        }
+
+        @Override
+        public String getKey() {
+            return manifest.key;
+        }
+
+        @Override
+        public String getAbsoluteFilePath() {
+            return manifest.sourcePath;
+        }
+
+        @Override
+        public long getBytesTotal() {
+            return manifest.length;
+        }
+
+        private synchronized void scheduleParts() {
+            if (state != TransferState.WAITING) {
+                return;
+            }
+            partFutures.clear();
+            List<Integer> missing = new ArrayList<>();
+            for (int partNumber = 1; partNumber <= manifest.getPartCount(); partNumber++) {
+                if (!manifest.hasPart(partNumber)) {
+                    missing.add(partNumber);
+                }
+            }
+            setState(TransferState.IN_PROGRESS);
+            if (manifest.compressed) {
+                partsRemaining.set(1);
+                partFutures.add(partExecutor.submit(this::uploadCompressed));
+                return;
+            }
+            if (missing.isEmpty()) {
+                controlExecutor.execute(() -> complete(this));
+                return;
+            }
+            partsRemaining.set(missing.size());
+            for (final int partNumber : missing) {
+                partFutures.add(partExecutor.submit(() -> uploadPart(partNumber)));
+            }
+        }
+
+        private void uploadPart(int partNumber) {
+            final AtomicLong partBytes = new AtomicLong();
+            for (int attempt = 0; ; attempt++) {
+                if (state != TransferState.IN_PROGRESS) {
+                    return;
+                }
+                ConcurrencyController.Permit permit = concurrency.acquire();
+                if (permit == null) {
+                    return;
+                }
+                if (state != TransferState.IN_PROGRESS) {
+                    // Paused or canceled while waiting for its turn
+                    permit.close();
+                    return;
+                }
+                long partLength = manifest.getPartLength(partNumber);
+                PartChecksums.Part partChecksums = new PartChecksums.Part();
+                InputStream in = null;
+                try {
+                    long partOffset = manifest.getPartOffset(partNumber);
+                    ByteBuffer mapped = source.openBuffer(partOffset, partLength);
+                    in = mapped != null
+                            ? partChecksums.wrap(mapped)
+                            : partChecksums.wrap(source.openStream(partOffset, partLength));
+                    UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(manifest.key)
+                            .withUploadId(manifest.getUploadId())
+                            .withPartNumber(partNumber)
+                            .withInputStream(in)
+                            .withPartSize(partLength);
+                    request.setGeneralProgressListener(event -> {
+                        long bytes = event.getBytesTransferred();
+                        if (event.getEventCode() == ProgressEvent.RESET_EVENT_CODE) {
+                            // The SDK is retrying the request from the start.
+                            addProgress(-partBytes.getAndSet(0));
+                        } else if (bytes > 0) {
+                            partBytes.addAndGet(bytes);
+                            addProgress(bytes);
+                        }
+                    });
+
+                    // The SDK checks the MD5 of what it sent against the ETag
+                    UploadPartResult result = s3.uploadPart(request);
+                    PartChecksums.Result sums = partChecksums.finish();
+                    if (sums.length != partLength) {
+                        throw new AmazonClientException("Part " + partNumber + " of "
+                                + manifest.key + " was not read in full");
+                    }
+                    permit.addBytes(partLength);
+                    manifest.putPart(partNumber, result.getETag(), sums);
+                    manifest.save();
+                    break;
+                } catch (AmazonClientException | IOException e) {
+                    addProgress(-partBytes.getAndSet(0));
+                    // The permit is given back before waiting to retry
+                    permit.fail(e);
+                    permit.close();
+                    if (!backOff(e, attempt, maxRetries)) {
+                        return;
+                    }
+                } finally {
+                    permit.close();
+                    closeQuietly(in);
+                }
+            }
+
+            if (partsRemaining.decrementAndGet() == 0 && state == TransferState.IN_PROGRESS) {
+                complete(this);
+            }
+        }
+
+        /*
+         * Compresses the source into one part after the other and sends each
+         * as soon as it is full. Progress counts source bytes once the part
+         * holding them has been sent. The compressed bytes are hashed as they
+         * are produced.
+         */
+        private void uploadCompressed() {
+            ContentCompression.PartBuffer buffer =
+                    new ContentCompression.PartBuffer((int) manifest.partSize);
+            byte[] chunk = new byte[64 * 1024];
+            long consumed = 0;
+            long reported = 0;
+            int partNumber = 0;
+            PartChecksums.Part partChecksums = new PartChecksums.Part();
+            try (InputStream in = source.openStream(0, manifest.length);
+                    GZIPOutputStream gzip = new GZIPOutputStream(buffer, chunk.length)) {
+                for (int len; (len = in.read(chunk)) != -1; ) {
+                    if (state != TransferState.IN_PROGRESS) {
+                        return;
+                    }
+                    gzip.write(chunk, 0, len);
+                    buffer.checksumNewBytes(partChecksums);
+                    consumed += len;
+                    if (buffer.size() >= manifest.partSize) {
+                        if (!uploadCompressedPart(++partNumber, buffer, partChecksums)) {
+                            return;
+                        }
+                        buffer.reset();
+                        partChecksums = new PartChecksums.Part();
+                        addProgress(consumed - reported);
+                        reported = consumed;
+                    }
+                }
+                gzip.finish();
+                buffer.checksumNewBytes(partChecksums);
+
+                if (partNumber == 0) {
+                    // Small enough for a single request
+                    ObjectMetadata metadata = ContentCompression.newMetadata(manifest.length);
+                    metadata.setContentLength(buffer.size());
+                    s3.putObject(new PutObjectRequest(bucket, manifest.key,
+                            buffer.toInputStream(), metadata));
+                    addProgress(consumed - reported);
+                    manifest.setCompleted();
+                    manifest.save();
+                    setState(TransferState.COMPLETED);
+                    return;
+                }
+                if (!uploadCompressedPart(++partNumber, buffer, partChecksums)) {
+                    return;
+                }
+                addProgress(consumed - reported);
+            } catch (AmazonClientException | IOException e) {
+                fail(e);
+                return;
+            }
+            complete(this);
+        }
+
+        /*
+         * Sends one compressed part, creating the multipart upload with the
+         * first one.
+         *
+         * @return false if the upload stopped or failed instead
+         */
+        private boolean uploadCompressedPart(int partNumber,
+                ContentCompression.PartBuffer buffer, PartChecksums.Part partChecksums)
+                throws IOException {
+            PartChecksums.Result sums = partChecksums.finish();
+            if (manifest.getUploadId() == null) {
+                String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(
+                        bucket, manifest.key, ContentCompression.newMetadata(manifest.length)))
+                        .getUploadId();
+                manifest.setUploadId(uploadId);
+                manifest.save();
+            }
+            for (int attempt = 0; ; attempt++) {
+                if (state != TransferState.IN_PROGRESS) {
+                    return false;
+                }
+                ConcurrencyController.Permit permit = concurrency.acquire();
+                if (permit == null) {
+                    return false;
+                }
+                try {
+                    UploadPartResult result = s3.uploadPart(new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(manifest.key)
+                            .withUploadId(manifest.getUploadId())
+                            .withPartNumber(partNumber)
+                            .withInputStream(buffer.toInputStream())
+                            .withPartSize(buffer.size()));
+                    permit.addBytes(buffer.size());
+                    manifest.putPart(partNumber, result.getETag(), sums);
+                    manifest.save();
+                    return true;
+                } catch (AmazonClientException e) {
+                    permit.fail(e);
+                    permit.close();
+                    if (!backOff(e, attempt, maxRetries)) {
+                        return false;
+                    }
+                } finally {
+                    permit.close();
+                }
+            }
+        }
+    }
+}
@@ -33,6 +33,10 @@ public class MyApplication extends Application {
     public void onCreate() {
         super.onCreate();
 
+        // Credentials and clients are set up in the background, so the first
+        // screen does not wait for them
+        Util.startBootstrap(this);
+
         Intent tsIntent = new Intent(this, TransferService.class);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             String id = UUID.randomUUID().toString();
@@ -16,23 +16,31 @@
 package com.amazonaws.demo.s3transferutility;
 
 import android.app.Service;
+import android.content.ClipData;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.IBinder;
 import android.util.Log;
-
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+import android.widget.Toast;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Runs transfers started from the background. The screens follow the
+ * scheduled transfers through the {@link TransferSnapshot}.
+ */
 public class MyService extends Service {
 
-    private TransferUtility transferUtility;
+    private Util util;
 
     final static String INTENT_KEY_NAME = "key";
     final static String INTENT_FILE = "file";
+    final static String INTENT_SIZE = "size";
+    final static String INTENT_MEMBER_NAME = "memberName";
+    final static String INTENT_MEMBER_OFFSET = "memberOffset";
     final static String INTENT_TRANSFER_OPERATION = "transferOperation";
 
     final static String TRANSFER_OPERATION_UPLOAD = "upload";
@@ -44,31 +52,81 @@ public class MyService extends Service {
     public void onCreate() {
         super.onCreate();
 
-        Util util = new Util();
-        transferUtility = util.getTransferUtility(this);
+        util = new Util();
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        // The transfer starts once the clients are ready
+        util.whenReady(this, () -> startTransfer(intent), e -> {
+            // The transfer is dropped rather than left waiting
+            Toast.makeText(this, "Unable to start the transfer: " + e.getMessage(),
+                    Toast.LENGTH_LONG).show();
+            stopSelf(startId);
+        });
+        return START_STICKY;
+    }
+
+    private void startTransfer(Intent intent) {
+        TransferScheduler transferScheduler = util.getTransferScheduler(this);
         final String key = intent.getStringExtra(INTENT_KEY_NAME);
         final File file = (File) intent.getSerializableExtra(INTENT_FILE);
+        // Uploads of picked documents, and downloads to a MediaStore entry or
+        // a document, carry a content URI instead of a file
+        final Uri uri = intent.getData();
         final String transferOperation = intent.getStringExtra(INTENT_TRANSFER_OPERATION);
-        TransferObserver transferObserver;
 
+        // Background transfers give way to the ones the user starts in the app
         switch (transferOperation) {
             case TRANSFER_OPERATION_DOWNLOAD:
                 Log.d(TAG, "Downloading " + key);
-                transferObserver = transferUtility.download(key, file);
-                transferObserver.setTransferListener(new DownloadListener());
+                // The size is -1 when the caller does not know it
+                long size = intent.getLongExtra(INTENT_SIZE, -1);
+                // Only one member of a pack may have been picked
+                String memberName = intent.getStringExtra(INTENT_MEMBER_NAME);
+                // The scheduler makes the destination when the download starts
+                DownloadSink.Factory sink;
+                if (uri != null) {
+                    sink = k -> DownloadSink.open(this, uri.toString());
+                } else if (file != null) {
+                    sink = k -> new FileDownloadSink(file);
+                } else if (memberName != null) {
+                    // Members of a pack go in a folder named after the pack
+                    File dir = getExternalFilesDir(null);
+                    sink = k -> new FileDownloadSink(PackArchive.memberFile(dir, k, memberName));
+                } else {
+                    sink = util.getDownloadSinkFactory(this);
+                }
+                if (memberName != null) {
+                    PackArchive.Member member = new PackArchive.Member(memberName, size);
+                    member.offset = intent.getLongExtra(INTENT_MEMBER_OFFSET, 0);
+                    transferScheduler.downloadMember(key, member, sink,
+                            TransferScheduler.Priority.BULK);
+                    break;
+                }
+                transferScheduler.download(key, sink, size, TransferScheduler.Priority.BULK);
                 break;
             case TRANSFER_OPERATION_UPLOAD:
+                // Several picked documents come as ClipData and go in a batch
+                ClipData clipData = intent.getClipData();
+                if (uri == null && clipData != null) {
+                    Log.d(TAG, "Uploading " + clipData.getItemCount() + " documents");
+                    List<Uri> uris = new ArrayList<>(clipData.getItemCount());
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        uris.add(clipData.getItemAt(i).getUri());
+                    }
+                    transferScheduler.uploadDocuments(uris, TransferScheduler.Priority.BULK);
+                    break;
+                }
                 Log.d(TAG, "Uploading " + key);
-                transferObserver = transferUtility.upload(key, file);
-                transferObserver.setTransferListener(new UploadListener());
+                if (uri != null) {
+                    transferScheduler.uploadDocuments(Collections.singletonList(uri),
+                            TransferScheduler.Priority.BULK);
+                } else {
+                    transferScheduler.uploadFile(key, file, TransferScheduler.Priority.BULK);
+                }
                 break;
         }
-
-        return START_STICKY;
     }
 
     @Override
@@ -80,72 +138,4 @@ public class MyService extends Service {
     public IBinder onBind(Intent intent) {
         return null;
     }
-
-    private class DownloadListener implements TransferListener {
-
-        private boolean notifyDownloadActivityNeeded = true;
-
-        // Simply updates the list when notified.
-        @Override
-        public void onError(int id, Exception e) {
-            Log.e(TAG, "onError: " + id, e);
-            if (notifyDownloadActivityNeeded) {
-                DownloadActivity.initData();
-                notifyDownloadActivityNeeded = false;
-            }
-        }
-
-        @Override
-        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-            Log.d(TAG, String.format("onProgressChanged: %d, total: %d, current: %d",
-                    id, bytesTotal, bytesCurrent));
-            if (notifyDownloadActivityNeeded) {
-                DownloadActivity.initData();
-                notifyDownloadActivityNeeded = false;
-            }
-        }
-
-        @Override
-        public void onStateChanged(int id, TransferState state) {
-            Log.d(TAG, "onStateChanged: " + id + ", " + state);
-            if (notifyDownloadActivityNeeded) {
-                DownloadActivity.initData();
-                notifyDownloadActivityNeeded = false;
-            }
-        }
-    }
-
-    private class UploadListener implements TransferListener {
-
-        private boolean notifyUploadActivityNeeded = true;
-
-        // Simply updates the list when notified.
-        @Override
-        public void onError(int id, Exception e) {
-            Log.e(TAG, "onError: " + id, e);
-            if (notifyUploadActivityNeeded) {
-                UploadActivity.initData();
-                notifyUploadActivityNeeded = false;
-            }
-        }
-
-        @Override
-        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-            Log.d(TAG, String.format("onProgressChanged: %d, total: %d, current: %d",
-                    id, bytesTotal, bytesCurrent));
-            if (notifyUploadActivityNeeded) {
-                UploadActivity.initData();
-                notifyUploadActivityNeeded = false;
-            }
-        }
-
-        @Override
-        public void onStateChanged(int id, TransferState state) {
-            Log.d(TAG, "onStateChanged: " + id + ", " + state);
-            if (notifyUploadActivityNeeded) {
-                UploadActivity.initData();
-                notifyUploadActivityNeeded = false;
-            }
-        }
-    }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The layout of a pack: a tar archive (POSIX ustar, with pax headers for
+ * long names) that bundles many small files into one object. Its first
+ * member is an index giving the offset and size of every other member, so
+ * a single member can be read with a ranged GET without fetching the rest.
+ * Any tar tool can still unpack the whole archive.
+ */
+final class PackArchive {
+    static final String SUFFIX = ".tar";
+
+    static final String INDEX_NAME = ".pack-index.json";
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The index usually fits here, so it takes a single request to read it
+    private static final int INDEX_PROBE_SIZE = 64 * 1024;
+
+    /**
+     * A file in a pack.
+     */
+    static class Member {
+        final String name;
+        final long size;
+
+        // Where the content starts in the archive
+        long offset;
+
+        Member(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A piece of the archive: either bytes held here, or the content of a
+     * member, followed by zeros up to its end.
+     */
+    static class Segment {
+        final long offset;
+        final long length;
+        final byte[] bytes;
+        final int member;
+
+        Segment(long offset, long length, byte[] bytes, int member) {
+            this.offset = offset;
+            this.length = length;
+            this.bytes = bytes;
+            this.member = member;
+        }
+    }
+
+    private PackArchive() {
+    }
+
+    /**
+     * Lays out an archive of the members, setting their offsets. The same
+     * members and time always give the same bytes, so parts of an
+     * interrupted upload can be reused.
+     *
+     * @param members the files of the pack
+     * @param time the modification time of the members, in seconds
+     * @return the segments of the archive in order
+     */
+    static List<Segment> layOut(List<Member> members, long time) throws IOException {
+        // The index lists the offsets, which depend on its own size; it is
+        // padded with spaces to a whole number of blocks until it fits.
+        int indexBlocks = 1;
+        while (true) {
+            List<Segment> segments = new ArrayList<>();
+            long offset = BLOCK_SIZE + (long) indexBlocks * BLOCK_SIZE;
+            for (Member member : members) {
+                byte[] headers = memberHeaders(member.name, member.size, time);
+                offset += headers.length;
+                member.offset = offset;
+                offset += padded(member.size);
+            }
+            byte[] index = indexJson(members);
+            if (index.length > indexBlocks * BLOCK_SIZE) {
+                indexBlocks = (int) (padded(index.length) / BLOCK_SIZE);
+                continue;
+            }
+            byte[] paddedIndex = new byte[indexBlocks * BLOCK_SIZE];
+            Arrays.fill(paddedIndex, (byte) ' ');
+            System.arraycopy(index, 0, paddedIndex, 0, index.length);
+
+            offset = 0;
+            byte[] indexHeader = header(INDEX_NAME, paddedIndex.length, '0', time);
+            segments.add(new Segment(offset, BLOCK_SIZE, indexHeader, -1));
+            offset += BLOCK_SIZE;
+            segments.add(new Segment(offset, paddedIndex.length, paddedIndex, -1));
+            offset += paddedIndex.length;
+            for (int i = 0; i < members.size(); i++) {
+                Member member = members.get(i);
+                byte[] headers = memberHeaders(member.name, member.size, time);
+                segments.add(new Segment(offset, headers.length, headers, -1));
+                offset += headers.length;
+                segments.add(new Segment(offset, padded(member.size), null, i));
+                offset += padded(member.size);
+            }
+            // Two empty blocks end a tar archive
+            segments.add(new Segment(offset, 2 * BLOCK_SIZE, new byte[2 * BLOCK_SIZE], -1));
+            return segments;
+        }
+    }
+
+    /**
+     * Reads the index of a pack with ranged GETs.
+     *
+     * @throws IOException if the object is not a pack
+     */
+    static List<Member> readIndex(AmazonS3Client s3, String bucket, String key)
+            throws IOException {
+        byte[] start = get(s3, bucket, key, 0, INDEX_PROBE_SIZE);
+        if (start.length < BLOCK_SIZE || !INDEX_NAME.equals(readString(start, 0, 100))) {
+            throw new IOException(key + " is not a pack");
+        }
+        int indexLength = (int) Long.parseLong(readString(start, 124, 12).trim(), 8);
+        byte[] index;
+        if (BLOCK_SIZE + indexLength <= start.length) {
+            index = Arrays.copyOfRange(start, BLOCK_SIZE, BLOCK_SIZE + indexLength);
+        } else {
+            index = get(s3, bucket, key, BLOCK_SIZE, indexLength);
+        }
+
+        try {
+            JSONArray array = new JSONObject(new String(index, UTF_8).trim())
+                    .getJSONArray("members");
+            List<Member> members = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                String name = json.getString("name");
+                // The name becomes a path when the member is downloaded
+                if (!isSafeName(name)) {
+                    throw new IOException("Unsafe member name in " + key + ": " + name);
+                }
+                Member member = new Member(name, json.getLong("size"));
+                member.offset = json.getLong("offset");
+                members.add(member);
+            }
+            return members;
+        } catch (JSONException e) {
+            throw new IOException("Malformed index in " + key, e);
+        }
+    }
+
+    /**
+     * Whether a member name stays inside the folder it is downloaded to.
+     */
+    static boolean isSafeName(String name) {
+        return !name.isEmpty() && !name.startsWith("/") && !name.contains("..")
+                && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * The file a member is downloaded to, in a folder named after the pack.
+     *
+     * @param dir the folder that holds the pack folders
+     * @throws IOException if the file would not be inside the pack folder
+     */
+    static File memberFile(File dir, String key, String memberName) throws IOException {
+        File folder = new File(dir, key.substring(0, key.length() - SUFFIX.length()));
+        File file = new File(folder, memberName);
+        if (!isSafeName(memberName) || !file.getCanonicalPath()
+                .startsWith(folder.getCanonicalPath() + File.separator)) {
+            throw new IOException("Member " + memberName + " is outside of " + folder);
+        }
+        return file;
+    }
+
+    static long padded(long length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static byte[] get(AmazonS3Client s3, String bucket, String key, long offset,
+            int length) throws IOException {
+        S3Object object = s3.getObject(new GetObjectRequest(bucket, key)
+                .withRange(offset, offset + length - 1));
+        byte[] data = new byte[length];
+        int read = 0;
+        try (InputStream in = object.getObjectContent()) {
+            for (int len; read < length && (len = in.read(data, read, length - read)) != -1; ) {
+                read += len;
+            }
+        }
+        return read == length ? data : Arrays.copyOf(data, read);
+    }
+
+    private static byte[] indexJson(List<Member> members) throws IOException {
+        try {
+            JSONArray array = new JSONArray();
+            for (Member member : members) {
+                array.put(new JSONObject()
+                        .put("name", member.name)
+                        .put("offset", member.offset)
+                        .put("size", member.size));
+            }
+            return new JSONObject().put("version", 1).put("members", array).toString()
+                    .getBytes(UTF_8);
+        } catch (JSONException e) {
+            throw new IOException("Unable to write the pack index", e);
+        }
+    }
+
+    /*
+     * The ustar header of a member, preceded by a pax header when its name
+     * does not fit.
+     */
+    private static byte[] memberHeaders(String name, long size, long time) {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        if (nameBytes.length <= 100) {
+            return header(name, size, '0', time);
+        }
+        // The part before a slash can go in the 155 byte prefix field
+        for (int i = nameBytes.length - 101; i < nameBytes.length && i <= 155; i++) {
+            if (i >= 0 && nameBytes[i] == '/') {
+                byte[] header = header(new String(nameBytes, i + 1, nameBytes.length - i - 1,
+                        UTF_8), size, '0', time);
+                System.arraycopy(nameBytes, 0, header, 345, i);
+                writeChecksum(header);
+                return header;
+            }
+        }
+
+        byte[] record = paxRecord("path", name);
+        byte[] pax = new byte[(int) (BLOCK_SIZE + padded(record.length) + BLOCK_SIZE)];
+        System.arraycopy(header("PaxHeader", record.length, 'x', time), 0, pax, 0, BLOCK_SIZE);
+        System.arraycopy(record, 0, pax, BLOCK_SIZE, record.length);
+        // Readers without pax support see the end of the name
+        String shortName = new String(nameBytes, nameBytes.length - 100, 100, UTF_8);
+        System.arraycopy(header(shortName, size, '0', time), 0, pax, pax.length - BLOCK_SIZE,
+                BLOCK_SIZE);
+        return pax;
+    }
+
+    /*
+     * A pax record is "<length> <key>=<value>\n", where the length counts
+     * its own digits.
+     */
+    private static byte[] paxRecord(String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(UTF_8).length;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length()) {
+            total++;
+        }
+        return (total + " " + key + "=" + value + "\n").getBytes(UTF_8);
+    }
+
+    private static byte[] header(String name, long size, char type, long time) {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeOctal(header, 124, 12, size);
+        writeOctal(header, 136, 12, time);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(UTF_8), 0, header, 257, 8);
+        writeChecksum(header);
+        return header;
+    }
+
+    private static void writeChecksum(byte[] header) {
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        writeOctal(header, 148, 7, sum);
+    }
+
+    /*
+     * Writes the number as zero padded octal digits followed by a NUL.
+     */
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        for (int i = 0; i < width; i++) {
+            int digit = i - (width - digits.length());
+            header[offset + i] = (byte) (digit >= 0 ? digits.charAt(digit) : '0');
+        }
+        header[offset + width] = 0;
+    }
+
+    private static String readString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, UTF_8);
+    }
+}
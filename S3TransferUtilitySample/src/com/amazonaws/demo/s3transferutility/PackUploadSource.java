@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Uploads many small documents as one {@link PackArchive}. The archive is
+ * never written out: every part streams the headers and the documents it
+ * covers. The documents are recorded in a small list file, whose path
+ * identifies the source, so an interrupted pack can be resumed after a
+ * restart like any other multipart upload.
+ */
+public class PackUploadSource extends UploadSource {
+    static final String LIST_SUFFIX = ".pack.json";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ContentResolver resolver;
+    private final File listFile;
+    private final List<Uri> uris;
+    private final List<PackArchive.Member> members;
+    private final List<PackArchive.Segment> segments;
+    private final long length;
+
+    private PackUploadSource(Context context, File listFile, List<Uri> uris,
+            List<PackArchive.Member> members, long time) throws IOException {
+        this.resolver = context.getContentResolver();
+        this.listFile = listFile;
+        this.uris = uris;
+        this.members = members;
+        this.segments = PackArchive.layOut(members, time);
+        PackArchive.Segment last = segments.get(segments.size() - 1);
+        this.length = last.offset + last.length;
+    }
+
+    /**
+     * Records a new pack of documents.
+     *
+     * @param context Android context
+     * @param uris the documents
+     * @param names the name of each document in the pack
+     * @param sizes the size of each document
+     * @return the source
+     */
+    static PackUploadSource create(Context context, List<Uri> uris, List<String> names,
+            List<Long> sizes) throws IOException {
+        File dir = new File(context.getFilesDir(), "packs");
+        dir.mkdirs();
+        File listFile = new File(dir, UUID.randomUUID() + LIST_SUFFIX);
+        long time = System.currentTimeMillis() / 1000;
+
+        List<PackArchive.Member> members = new ArrayList<>(uris.size());
+        JSONArray array = new JSONArray();
+        try {
+            for (int i = 0; i < uris.size(); i++) {
+                members.add(new PackArchive.Member(names.get(i), sizes.get(i)));
+                array.put(new JSONObject()
+                        .put("uri", uris.get(i).toString())
+                        .put("name", names.get(i))
+                        .put("size", sizes.get(i)));
+            }
+            byte[] list = new JSONObject().put("time", time).put("members", array).toString()
+                    .getBytes(UTF_8);
+            try (OutputStream out = new FileOutputStream(listFile)) {
+                out.write(list);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Unable to record the pack", e);
+        }
+        return new PackUploadSource(context, listFile, new ArrayList<>(uris), members, time);
+    }
+
+    /**
+     * Opens a pack recorded by {@link #create}.
+     *
+     * @param listFile the path returned by {@link #getPath()}
+     */
+    static PackUploadSource open(Context context, File listFile) throws IOException {
+        byte[] data = new byte[(int) listFile.length()];
+        try (InputStream in = new FileInputStream(listFile)) {
+            int offset = 0;
+            for (int len; offset < data.length
+                    && (len = in.read(data, offset, data.length - offset)) != -1; ) {
+                offset += len;
+            }
+        }
+        try {
+            JSONObject json = new JSONObject(new String(data, UTF_8));
+            JSONArray array = json.getJSONArray("members");
+            List<Uri> uris = new ArrayList<>(array.length());
+            List<PackArchive.Member> members = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject member = array.getJSONObject(i);
+                uris.add(Uri.parse(member.getString("uri")));
+                members.add(new PackArchive.Member(member.getString("name"),
+                        member.getLong("size")));
+            }
+            return new PackUploadSource(context, listFile, uris, members,
+                    json.getLong("time"));
+        } catch (JSONException e) {
+            throw new IOException("Malformed pack list " + listFile, e);
+        }
+    }
+
+    /**
+     * Forgets the pack once its upload is over.
+     */
+    void delete() {
+        listFile.delete();
+    }
+
+    /**
+     * @return how many documents the pack holds
+     */
+    int getMemberCount() {
+        return members.size();
+    }
+
+    @Override
+    public String getPath() {
+        return listFile.getAbsolutePath();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        return listFile.lastModified();
+    }
+
+    @Override
+    public InputStream openStream(long offset, long length) throws IOException {
+        return new RangeInputStream(new PackInputStream(offset), length);
+    }
+
+    /*
+     * Streams the archive from an offset on, one segment after the other.
+     */
+    private class PackInputStream extends InputStream {
+        private int segment;
+        private long position;
+        private InputStream current;
+
+        PackInputStream(long offset) throws IOException {
+            while (segment < segments.size()) {
+                PackArchive.Segment s = segments.get(segment);
+                if (offset < s.offset + s.length) {
+                    break;
+                }
+                segment++;
+            }
+            position = offset;
+            if (segment < segments.size()) {
+                current = openSegment(segments.get(segment), offset);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current != null) {
+                int read = current.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                    return read;
+                }
+                current.close();
+                segment++;
+                current = segment < segments.size()
+                        ? openSegment(segments.get(segment), position)
+                        : null;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /*
+     * Opens a segment at the given offset in the archive.
+     */
+    private InputStream openSegment(PackArchive.Segment segment, long offset)
+            throws IOException {
+        int skip = (int) (offset - segment.offset);
+        if (segment.bytes != null) {
+            return new ByteArrayInputStream(segment.bytes, skip, segment.bytes.length - skip);
+        }
+        Uri uri = uris.get(segment.member);
+        long size = members.get(segment.member).size;
+        InputStream in = null;
+        if (skip < size) {
+            in = resolver.openInputStream(uri);
+            if (in == null) {
+                throw new FileNotFoundException("No content for " + uri);
+            }
+            for (long skipped = 0; skipped < skip; ) {
+                long n = in.skip(skip - skipped);
+                if (n <= 0) {
+                    in.close();
+                    throw new IOException("Document changed since it was packed: " + uri);
+                }
+                skipped += n;
+            }
+        }
+        return new MemberInputStream(in, uri, Math.max(size - skip, 0),
+                segment.length - Math.max(size, skip));
+    }
+
+    /*
+     * The rest of a document, which must still have the size it had when
+     * it was packed, followed by the padding up to the next block.
+     */
+    private static class MemberInputStream extends InputStream {
+        private final InputStream in;
+        private final Uri uri;
+        private long contentRemaining;
+        private long paddingRemaining;
+
+        MemberInputStream(InputStream in, Uri uri, long contentLength, long paddingLength) {
+            this.in = in;
+            this.uri = uri;
+            contentRemaining = contentLength;
+            paddingRemaining = paddingLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (contentRemaining > 0) {
+                int read = in.read(b, off, (int) Math.min(len, contentRemaining));
+                if (read == -1) {
+                    throw new IOException("Document changed since it was packed: " + uri);
+                }
+                contentRemaining -= read;
+                return read;
+            }
+            if (paddingRemaining > 0) {
+                int count = (int) Math.min(len, paddingRemaining);
+                Arrays.fill(b, off, off + count, (byte) 0);
+                paddingRemaining -= count;
+                return count;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
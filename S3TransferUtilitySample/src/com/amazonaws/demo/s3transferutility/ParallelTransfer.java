@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transfer that is split into parts which run at the same time, as done by
+ * {@link MultipartUploader} and {@link RangedDownloader}. The getters match
+ * those of TransferObserver, and listener callbacks are delivered on the main
+ * thread just like TransferUtility does.
+ */
+public abstract class ParallelTransfer {
+    private static final String TAG = ParallelTransfer.class.getSimpleName();
+
+    private static final long MAX_RETRY_DELAY_MS = 30 * 1000;
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * A TransferListener that is also told when a part is tried again.
+     */
+    public interface RetryListener extends TransferListener {
+        /**
+         * @param retryCount the number of retries of the transfer so far
+         */
+        void onRetry(int id, int retryCount);
+    }
+
+    final int id;
+    final AtomicLong bytesTransferred = new AtomicLong();
+    final AtomicInteger partsRemaining = new AtomicInteger();
+    final AtomicInteger retries = new AtomicInteger();
+
+    // Guarded by this
+    final List<Future<?>> partFutures = new ArrayList<>();
+
+    volatile TransferState state;
+
+    private final AtomicBoolean progressPosted = new AtomicBoolean();
+    private volatile TransferListener listener;
+
+    // Notified along with the listener, but not removed when the UI cleans
+    // its listener; TransferScheduler uses one to see transfers finish
+    private final List<TransferListener> watchers = new CopyOnWriteArrayList<>();
+
+    ParallelTransfer(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public abstract String getKey();
+
+    public abstract String getAbsoluteFilePath();
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    public abstract long getBytesTotal();
+
+    public TransferState getState() {
+        return state;
+    }
+
+    public void setTransferListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    public void cleanTransferListener() {
+        listener = null;
+    }
+
+    void addWatcher(TransferListener watcher) {
+        watchers.add(watcher);
+    }
+
+    void removeWatcher(TransferListener watcher) {
+        watchers.remove(watcher);
+    }
+
+    boolean isActive() {
+        return state == TransferState.WAITING || state == TransferState.IN_PROGRESS;
+    }
+
+    /**
+     * Moves an unfinished transfer into a final or paused state and stops its
+     * parts. Paused and failed transfers can still be canceled.
+     *
+     * @return false if the transfer could not move into the new state
+     */
+    synchronized boolean stop(TransferState newState) {
+        if (!isActive()
+                && !(newState == TransferState.CANCELED
+                        && (state == TransferState.PAUSED || state == TransferState.FAILED))) {
+            return false;
+        }
+        setState(newState);
+        stopParts();
+        return true;
+    }
+
+    /**
+     * Stops the parts in flight. Called with the lock held once the state has
+     * changed.
+     */
+    void stopParts() {
+        for (Future<?> future : partFutures) {
+            future.cancel(true);
+        }
+        partFutures.clear();
+    }
+
+    void fail(final Exception e) {
+        synchronized (this) {
+            if (!isActive()) {
+                return;
+            }
+            state = TransferState.FAILED;
+            stopParts();
+        }
+        Log.e(TAG, "Transfer " + id + " failed", e);
+        notifyListeners(l -> l.onError(id, e));
+        setState(TransferState.FAILED);
+    }
+
+    void setState(final TransferState newState) {
+        state = newState;
+        notifyListeners(l -> l.onStateChanged(id, newState));
+    }
+
+    void addProgress(long bytes) {
+        bytesTransferred.addAndGet(bytes);
+        // Only one progress update is queued at a time; it reports the latest
+        // count when the main thread gets to it.
+        if (progressPosted.compareAndSet(false, true)) {
+            MAIN_HANDLER.post(() -> {
+                progressPosted.set(false);
+                long current = bytesTransferred.get();
+                callListeners(l -> l.onProgressChanged(id, current, getBytesTotal()));
+            });
+        }
+    }
+
+    private interface ListenerCall {
+        void call(TransferListener listener);
+    }
+
+    /*
+     * Makes the call on the listener and the watchers on the main thread.
+     */
+    private void notifyListeners(final ListenerCall call) {
+        MAIN_HANDLER.post(() -> callListeners(call));
+    }
+
+    private void callListeners(ListenerCall call) {
+        TransferListener l = listener;
+        if (l != null) {
+            call.call(l);
+        }
+        for (TransferListener watcher : watchers) {
+            call.call(watcher);
+        }
+    }
+
+    /**
+     * Decides whether a part that failed should be tried again, and waits
+     * before the next attempt if so.
+     *
+     * @param e what went wrong
+     * @param attempt the number of the attempt that failed, starting at 0
+     * @param maxRetries how many retries are allowed
+     * @return true if the part should be tried again
+     */
+    boolean backOff(Exception e, int attempt, int maxRetries) {
+        if (!isActive()) {
+            // Paused or canceled while the part was in flight.
+            return false;
+        }
+        if (attempt >= maxRetries
+                || (e instanceof AmazonClientException
+                        && !isRetryable((AmazonClientException) e))) {
+            fail(e);
+            return false;
+        }
+        Log.w(TAG, "Retrying a part of transfer " + id, e);
+        final int retryCount = retries.incrementAndGet();
+        notifyListeners(l -> {
+            if (l instanceof RetryListener) {
+                ((RetryListener) l).onRetry(id, retryCount);
+            }
+        });
+        try {
+            Thread.sleep(Math.min(1000L << attempt, MAX_RETRY_DELAY_MS));
+        } catch (InterruptedException ie) {
+            return false;
+        }
+        return isActive();
+    }
+
+    static boolean isRetryable(AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        // Client side failures are mostly network errors.
+        return true;
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more to read from or write to it anyway.
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.util.BinaryUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Computes the CRC32C and SHA-256 of upload parts, kept in the
+ * {@link UploadManifest}, in the same pass that reads them for the request.
+ * The bytes are hashed from the buffers the request reads them into, on the
+ * thread sending the part, so several parts in flight are hashed on several
+ * cores. The MD5 that S3 checks a part against is left to the SDK, which
+ * computes it in the same pass and compares it with the ETag.
+ */
+final class PartChecksums {
+
+    private PartChecksums() {
+    }
+
+    /**
+     * The checksums of one part while it is read. It is fed by a single
+     * thread, either through {@link #wrap} or {@link #update}.
+     */
+    static final class Part {
+        private final MessageDigest sha256 = newDigest("SHA-256");
+        private final Crc32c crc32c = new Crc32c();
+        private long length;
+
+        /**
+         * Wraps the stream a part is sent from, so that everything read from
+         * it is checksummed. The stream cannot be reset.
+         */
+        InputStream wrap(InputStream in) {
+            return new ChecksumInputStream(in);
+        }
+
+        /**
+         * Returns the stream to send a part from that is in memory already,
+         * such as a mapped part of a file, checksumming it as it is read.
+         */
+        InputStream wrap(ByteBuffer buffer) {
+            return wrap(new UploadSource.ByteBufferInputStream(buffer));
+        }
+
+        /**
+         * Adds bytes that are already in memory.
+         */
+        void update(byte[] data, int offset, int length) {
+            sha256.update(data, offset, length);
+            crc32c.update(data, offset, length);
+            this.length += length;
+        }
+
+        /**
+         * @return the checksums of everything read or added so far
+         */
+        Result finish() {
+            return new Result(length, sha256.digest(), crc32c.getValue());
+        }
+
+        private final class ChecksumInputStream extends FilterInputStream {
+            ChecksumInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = in.read(b, off, len);
+                if (count > 0) {
+                    update(b, off, count);
+                }
+                return count;
+            }
+
+            // A reset would hash the same bytes twice
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+            }
+
+            @Override
+            public synchronized void reset() throws IOException {
+                throw new IOException("A checksummed part cannot be reset");
+            }
+        }
+    }
+
+    /**
+     * The checksums of a part.
+     */
+    static final class Result {
+        final long length;
+        final byte[] sha256;
+        final long crc32c;
+
+        Result(long length, byte[] sha256, long crc32c) {
+            this.length = length;
+            this.sha256 = sha256;
+            this.crc32c = crc32c;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("length", length)
+                    .put("sha256", BinaryUtils.toHex(sha256))
+                    .put("crc32c", toHex(crc32c));
+        }
+
+        static Result fromJson(JSONObject json) throws JSONException {
+            try {
+                return new Result(json.getLong("length"),
+                        BinaryUtils.fromHex(json.getString("sha256")),
+                        Long.parseLong(json.getString("crc32c"), 16));
+            } catch (IllegalArgumentException e) {
+                throw new JSONException("Malformed part checksums: " + json);
+            }
+        }
+    }
+
+    /**
+     * The checksums of a whole object, worked out from those of its parts:
+     * the CRC32C of all of its bytes, and, the way S3 composes multipart
+     * checksums, the SHA-256 of the SHA-256s of the parts followed by the
+     * part count.
+     *
+     * @param parts the checksums of every part, in order
+     */
+    static JSONObject combine(Collection<Result> parts) throws JSONException {
+        MessageDigest sha256 = newDigest("SHA-256");
+        long crc32c = 0;
+        long length = 0;
+        for (Result part : parts) {
+            sha256.update(part.sha256);
+            crc32c = length == 0 ? part.crc32c : Crc32c.combine(crc32c, part.crc32c, part.length);
+            length += part.length;
+        }
+        return new JSONObject()
+                .put("length", length)
+                .put("crc32c", toHex(crc32c))
+                .put("sha256", BinaryUtils.toHex(sha256.digest()) + "-" + parts.size());
+    }
+
+    private static String toHex(long crc) {
+        return String.format(Locale.US, "%08x", crc);
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available", e);
+        }
+    }
+}
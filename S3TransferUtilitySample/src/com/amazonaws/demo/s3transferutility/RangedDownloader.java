@@ -0,0 +1,851 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads large objects as several byte ranges fetched at the same time.
+ * The destination, a file or a document written through its
+ * {@link DownloadSink}, is allocated at its final size up front and every
+ * range is written at its own offset, so the ranges can arrive in any order.
+ * How much of each range has been written is kept in a
+ * {@link DownloadManifest}, which lets a paused, failed or interrupted
+ * download fetch only what is missing.
+ *
+ * Ranges are written in chunks of {@link #CHUNK_SIZE}. Once a chunk is on
+ * disk, its offset, length and CRC-32C go into a {@link ChunkJournal}. The
+ * first time a download starts after the app was killed or the device
+ * restarted, the chunks in the journal are checked against the file, and
+ * only the ones that are missing or do not match are fetched again.
+ * Objects stored gzip compressed are decompressed as they are written, and
+ * like destinations that cannot be written at any offset, such as documents
+ * that a provider streams through a pipe, they are written in one request
+ * from start to end.
+ *
+ * The methods mirror the ones on TransferUtility so the activities can manage
+ * both kinds of transfers the same way.
+ */
+public class RangedDownloader {
+    private static final String TAG = RangedDownloader.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The unit that is checksummed and recorded in the journal
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final Context context;
+    private final AmazonS3Client s3;
+    private final String bucket;
+    private final File manifestDir;
+    private final long rangedThreshold;
+    private final long rangeSize;
+    private final int maxRetries;
+
+    // Fetches the ranges; the controller decides how many are in flight
+    private final ExecutorService rangeExecutor;
+    private final ConcurrencyController concurrency;
+
+    // Runs the requests that start and finish downloads
+    private final ExecutorService controlExecutor = Executors.newSingleThreadExecutor();
+
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final Map<Integer, Download> downloads = new LinkedHashMap<>();
+
+    /**
+     * @param context Android context
+     * @param s3 the client used to talk to S3
+     * @param bucket the bucket the objects are downloaded from
+     * @param manifestDir where the manifests of unfinished downloads are kept
+     * @param rangedThreshold objects at least this large should be downloaded
+     *            in ranges
+     * @param rangeSize the size of each range
+     * @param concurrency decides how many ranges are fetched at the same time
+     * @param maxRetries how many times a failed range is retried before the
+     *            download fails
+     */
+    public RangedDownloader(Context context, AmazonS3Client s3, String bucket, File manifestDir,
+            long rangedThreshold, long rangeSize, ConcurrencyController concurrency,
+            int maxRetries) {
+        this.context = context.getApplicationContext();
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.manifestDir = manifestDir;
+        this.rangedThreshold = rangedThreshold;
+        this.rangeSize = Math.max(rangeSize, BUFFER_SIZE);
+        this.concurrency = concurrency;
+        this.rangeExecutor = Executors.newFixedThreadPool(concurrency.getMaxLimit());
+        this.maxRetries = maxRetries;
+
+        manifestDir.mkdirs();
+        loadManifests();
+    }
+
+    /**
+     * Whether an object of the given length is large enough to be worth
+     * downloading in ranges.
+     */
+    public boolean shouldDownloadInRanges(long length) {
+        return length >= rangedThreshold;
+    }
+
+    /**
+     * Whether the object is stored gzip compressed, so that it has to come
+     * through this downloader to be decompressed. Makes a request, so it must
+     * not be called on the main thread.
+     */
+    public boolean isCompressed(String key) {
+        try {
+            return ContentCompression.isCompressed(s3.getObjectMetadata(bucket, key));
+        } catch (AmazonClientException e) {
+            // The download itself reports the problem
+            Log.w(TAG, "Unable to look up " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Starts downloading the object to the given file. If an earlier download
+     * of the same object to the same file was interrupted, it is resumed
+     * instead.
+     *
+     * @param key the key in the bucket
+     * @param file where the object is written
+     * @return the download, for following its progress
+     */
+    public Download download(String key, File file) {
+        return download(key, new FileDownloadSink(file));
+    }
+
+    /**
+     * Starts downloading the object to the given destination. If an earlier
+     * download of the same object to the same destination was interrupted,
+     * it is resumed instead.
+     *
+     * @param key the key in the bucket
+     * @param sink where the object is written
+     * @return the download, for following its progress
+     */
+    public Download download(String key, DownloadSink sink) {
+        return download(key, sink, 0, -1);
+    }
+
+    /**
+     * Starts downloading one member of a pack to the given file, fetching
+     * only the member's bytes.
+     *
+     * @param key the key of the pack in the bucket
+     * @param member the member, as listed by the index of the pack
+     * @param file where the member is written
+     * @return the download, for following its progress
+     */
+    public Download downloadMember(String key, PackArchive.Member member, File file) {
+        return downloadMember(key, member, new FileDownloadSink(file));
+    }
+
+    /**
+     * Starts downloading one member of a pack to the given destination,
+     * fetching only the member's bytes.
+     *
+     * @param key the key of the pack in the bucket
+     * @param member the member, as listed by the index of the pack
+     * @param sink where the member is written
+     * @return the download, for following its progress
+     */
+    public Download downloadMember(String key, PackArchive.Member member, DownloadSink sink) {
+        return download(key, sink, member.offset, member.size);
+    }
+
+    private Download download(String key, DownloadSink sink, long objectOffset,
+            long memberLength) {
+        synchronized (downloads) {
+            for (Download download : downloads.values()) {
+                if (!download.manifest.filePath.equals(sink.getPath())
+                        || !download.manifest.key.equals(key)) {
+                    continue;
+                }
+                if (download.manifest.objectOffset != objectOffset
+                        || download.manifest.memberLength != memberLength) {
+                    // The same file now gets other bytes of the object
+                    deleteTransferRecord(download.id);
+                    break;
+                }
+                if (!download.manifest.isCompleted()) {
+                    download.sink = sink;
+                    resume(download.id);
+                    return download;
+                }
+                // Download the object again, it may have changed since.
+                deleteTransferRecord(download.id);
+                break;
+            }
+
+            Download download = new Download(nextId(), new DownloadManifest(
+                    DownloadManifest.fileFor(manifestDir, key, sink.getPath()), key,
+                    sink.getPath(), rangeSize, objectOffset, memberLength));
+            download.sink = sink;
+            downloads.put(download.id, download);
+            start(download);
+            return download;
+        }
+    }
+
+    /**
+     * @return a snapshot of all downloads this downloader knows about
+     */
+    public List<Download> getDownloads() {
+        synchronized (downloads) {
+            return new ArrayList<>(downloads.values());
+        }
+    }
+
+    /**
+     * @return the download with the given id, or null if there is none
+     */
+    public Download getDownload(int id) {
+        synchronized (downloads) {
+            return downloads.get(id);
+        }
+    }
+
+    /**
+     * Pauses a download. What has been written so far is kept.
+     *
+     * @return true if the download was waiting or in progress
+     */
+    public boolean pause(int id) {
+        Download download = getDownload(id);
+        return download != null && download.stop(TransferState.PAUSED);
+    }
+
+    /**
+     * Resumes a paused or failed download.
+     *
+     * @return the resumed download, or null if it was not in a resumable
+     *         state
+     */
+    public Download resume(int id) {
+        Download download = getDownload(id);
+        if (download == null) {
+            return null;
+        }
+        synchronized (download) {
+            if (download.state != TransferState.PAUSED
+                    && download.state != TransferState.FAILED) {
+                return null;
+            }
+            start(download);
+        }
+        return download;
+    }
+
+    /**
+     * Cancels a download and deletes what was written so far.
+     *
+     * @return true if the download had not finished yet
+     */
+    public boolean cancel(int id) {
+        Download download = getDownload(id);
+        return download != null && cancel(download);
+    }
+
+    public void pauseAll() {
+        for (Download download : getDownloads()) {
+            pause(download.id);
+        }
+    }
+
+    public void cancelAll() {
+        for (Download download : getDownloads()) {
+            cancel(download.id);
+        }
+    }
+
+    /**
+     * Forgets a download. An unfinished download is canceled first, but a
+     * finished file is kept.
+     *
+     * @return true if there was such a download
+     */
+    public boolean deleteTransferRecord(int id) {
+        Download download;
+        synchronized (downloads) {
+            download = downloads.remove(id);
+        }
+        if (download == null) {
+            return false;
+        }
+        if (!cancel(download)) {
+            download.manifest.delete();
+            download.journal.delete();
+        }
+        return true;
+    }
+
+    private boolean cancel(final Download download) {
+        if (!download.stop(TransferState.CANCELED)) {
+            return false;
+        }
+        controlExecutor.execute(() -> {
+            download.getSink().delete();
+            download.manifest.delete();
+            download.journal.delete();
+        });
+        return true;
+    }
+
+    private int nextId() {
+        // Ids are negative so they never collide with the ids TransferUtility
+        // gives to its transfer records.
+        return -lastId.incrementAndGet();
+    }
+
+    /**
+     * Lists the downloads that were unfinished or completed when the app was
+     * last running. Unfinished downloads come back paused.
+     */
+    private void loadManifests() {
+        File[] files = manifestDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".json")) {
+                continue;
+            }
+            try {
+                DownloadManifest manifest = DownloadManifest.load(file);
+                Download download = new Download(nextId(), manifest);
+                download.bytesTransferred.set(manifest.getBytesWritten());
+                download.state = manifest.isCompleted()
+                        ? TransferState.COMPLETED
+                        : TransferState.PAUSED;
+                downloads.put(download.id, download);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable download manifest " + file, e);
+                file.delete();
+            }
+        }
+    }
+
+    private void start(final Download download) {
+        download.setState(TransferState.WAITING);
+        controlExecutor.execute(() -> {
+            try {
+                prepare(download);
+            } catch (AmazonClientException | IOException e) {
+                download.fail(e);
+                return;
+            }
+            download.scheduleRanges();
+        });
+    }
+
+    /**
+     * Looks up the object and allocates the destination at its full size.
+     * What was written before is only kept if the object has not changed
+     * since.
+     */
+    private void prepare(Download download) throws IOException {
+        DownloadManifest manifest = download.manifest;
+        ObjectMetadata metadata = s3.getObjectMetadata(bucket, manifest.key);
+        long length = manifest.memberLength >= 0
+                ? manifest.memberLength
+                : metadata.getContentLength();
+        DownloadSink sink = download.getSink();
+
+        if (manifest.memberLength < 0 && ContentCompression.isCompressed(metadata)) {
+            // Decompressed straight into the destination, starting over
+            // every time
+            manifest.resetStreamed(ContentCompression.getUncompressedLength(metadata),
+                    metadata.getETag(), true);
+            download.journal.delete();
+            manifest.save();
+            download.bytesTransferred.set(0);
+            return;
+        }
+        if (!sink.isSeekable()) {
+            // Written from start to end, starting over every time
+            manifest.resetStreamed(length, metadata.getETag(), false);
+            download.journal.delete();
+            manifest.save();
+            download.bytesTransferred.set(0);
+            return;
+        }
+        if (!manifest.matches(length, metadata.getETag()) || manifest.isStreamed()
+                || sink.length() != length) {
+            manifest.reset(length, metadata.getETag());
+            download.journal.delete();
+            download.chunksDone = null;
+        }
+        sink.setLength(length);
+        // Chunks written before this process started are checked once
+        if (download.chunksDone == null) {
+            verifyChunks(download);
+        }
+        manifest.save();
+        download.bytesTransferred.set(manifest.getBytesWritten());
+    }
+
+    /*
+     * Counts as written only the chunks in the journal whose bytes in the
+     * destination still have the recorded CRC-32C, and drops the other
+     * records.
+     */
+    private void verifyChunks(Download download) throws IOException {
+        DownloadManifest manifest = download.manifest;
+        boolean[] done = new boolean[manifest.getRangeCount() * download.chunksPerRange];
+        long[] written = new long[manifest.getRangeCount()];
+        List<ChunkJournal.Entry> verified = new ArrayList<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Crc32c crc = new Crc32c();
+        ByteBuffer data = ByteBuffer.wrap(buffer);
+        try (FileChannel channel = download.getSink().openChannel(false)) {
+            for (ChunkJournal.Entry entry : download.journal.read()) {
+                int chunk = download.chunkAt(entry.offset, entry.length);
+                if (chunk < 0 || done[chunk]) {
+                    continue;
+                }
+                crc.reset();
+                long position = entry.offset;
+                for (int remaining = entry.length; remaining > 0; ) {
+                    data.clear();
+                    data.limit(Math.min(remaining, buffer.length));
+                    int len = channel.read(data, position);
+                    if (len == -1) {
+                        break;
+                    }
+                    crc.update(buffer, 0, len);
+                    position += len;
+                    remaining -= len;
+                }
+                if ((int) crc.getValue() != entry.crc) {
+                    Log.w(TAG, "Fetching the chunk at " + entry.offset + " of "
+                            + manifest.key + " again");
+                    continue;
+                }
+                done[chunk] = true;
+                written[chunk / download.chunksPerRange] += entry.length;
+                verified.add(entry);
+            }
+        }
+        download.journal.rewrite(verified);
+        for (int range = 0; range < written.length; range++) {
+            manifest.setWritten(range, written[range]);
+        }
+        download.chunksDone = done;
+    }
+
+    private void complete(Download download) {
+        try {
+            download.getSink().publish();
+            download.manifest.setCompleted();
+            download.manifest.save();
+        } catch (IOException e) {
+            download.fail(e);
+            return;
+        }
+        // The destination is whole, so its chunks need not be checked again
+        download.journal.delete();
+        download.setState(TransferState.COMPLETED);
+    }
+
+    /**
+     * A single ranged download.
+     */
+    public class Download extends ParallelTransfer {
+        private final DownloadManifest manifest;
+        private final ChunkJournal journal;
+
+        // Null until needed if the download was read back from its manifest
+        private volatile DownloadSink sink;
+
+        // The size of the chunks, and how many there are in a full range
+        private final int chunkSize;
+        private final int chunksPerRange;
+
+        // Which chunks are on disk, by range and then by chunk in the range;
+        // null until they were checked in this process. Each range only
+        // touches its own chunks.
+        private volatile boolean[] chunksDone;
+
+        // The responses being read, so that they can be aborted on pause
+        private final Set<S3ObjectInputStream> openStreams = new HashSet<>();
+
+        private Download(int id, DownloadManifest manifest) {
+            super(id);
+            this.manifest = manifest;
+            this.journal = new ChunkJournal(manifest.getJournalFile());
+            this.chunkSize = (int) Math.min(CHUNK_SIZE, manifest.rangeSize);
+            this.chunksPerRange = (int) ((manifest.rangeSize + chunkSize - 1) / chunkSize);
+        }
+
+        /*
+         * Returns the index of the chunk that starts at the offset and has
+         * the length, or -1 if no chunk of this download does.
+         */
+        private int chunkAt(long offset, int length) {
+            int range = (int) (offset / manifest.rangeSize);
+            long inRange = offset - manifest.getRangeOffset(range);
+            if (offset < 0 || range >= manifest.getRangeCount() || inRange % chunkSize != 0
+                    || length != getChunkLength(range, (int) (inRange / chunkSize))) {
+                return -1;
+            }
+            return range * chunksPerRange + (int) (inRange / chunkSize);
+        }
+
+        private long getChunkLength(int range, int chunk) {
+            return Math.min(chunkSize, manifest.getRangeLength(range) - (long) chunk * chunkSize);
+        }
+
+        private DownloadSink getSink() {
+            DownloadSink current = sink;
+            if (current == null) {
+                current = DownloadSink.open(context, manifest.filePath);
+                sink = current;
+            }
+            return current;
+        }
+
+        @Override
+        public String getKey() {
+            return manifest.key;
+        }
+
+        @Override
+        public String getAbsoluteFilePath() {
+            return manifest.filePath;
+        }
+
+        @Override
+        public long getBytesTotal() {
+            // The length is unknown until the object has been looked up.
+            return Math.max(manifest.getLength(), 0);
+        }
+
+        @Override
+        void stopParts() {
+            // Interrupting a thread that writes to a FileChannel would close
+            // the channel, so the responses are aborted instead.
+            for (Future<?> future : partFutures) {
+                future.cancel(false);
+            }
+            partFutures.clear();
+            synchronized (openStreams) {
+                for (S3ObjectInputStream in : openStreams) {
+                    in.abort();
+                }
+            }
+            // Paused, failed or canceled; an append reopens it on resume
+            journal.close();
+        }
+
+        private synchronized void scheduleRanges() {
+            if (state != TransferState.WAITING) {
+                return;
+            }
+            partFutures.clear();
+            List<Integer> missing = new ArrayList<>();
+            for (int range = 0; range < manifest.getRangeCount(); range++) {
+                if (manifest.getWritten(range) < manifest.getRangeLength(range)) {
+                    missing.add(range);
+                }
+            }
+            setState(TransferState.IN_PROGRESS);
+            if (manifest.isStreamed()) {
+                partsRemaining.set(1);
+                partFutures.add(rangeExecutor.submit(this::downloadStreamed));
+                return;
+            }
+            if (missing.isEmpty()) {
+                controlExecutor.execute(() -> complete(this));
+                return;
+            }
+            partsRemaining.set(missing.size());
+            for (final int range : missing) {
+                partFutures.add(rangeExecutor.submit(() -> downloadRange(range)));
+            }
+        }
+
+        /*
+         * Fetches the chunks of the range that are not on disk yet, one run
+         * of consecutive missing chunks per request. A chunk counts once its
+         * bytes were forced to disk and recorded in the journal; a chunk
+         * cut short by an error or a pause is fetched again from its start.
+         */
+        private void downloadRange(int range) {
+            long rangeOffset = manifest.getRangeOffset(range);
+            long rangeLength = manifest.getRangeLength(range);
+            int chunks = (int) ((rangeLength + chunkSize - 1) / chunkSize);
+            int base = range * chunksPerRange;
+            boolean[] done = chunksDone;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            Crc32c crc = new Crc32c();
+
+            for (int attempt = 0; ; attempt++) {
+                if (state != TransferState.IN_PROGRESS) {
+                    return;
+                }
+                int first = 0;
+                while (first < chunks && done[base + first]) {
+                    first++;
+                }
+                if (first == chunks) {
+                    break;
+                }
+                int last = first;
+                while (last + 1 < chunks && !done[base + last + 1]) {
+                    last++;
+                }
+                long runStart = rangeOffset + (long) first * chunkSize;
+                long runEnd = rangeOffset
+                        + Math.min((long) (last + 1) * chunkSize, rangeLength) - 1;
+
+                ConcurrencyController.Permit permit = concurrency.acquire();
+                if (permit == null) {
+                    return;
+                }
+                if (state != TransferState.IN_PROGRESS) {
+                    // Paused or canceled while waiting for its turn
+                    permit.close();
+                    return;
+                }
+
+                S3ObjectInputStream in = null;
+                FileChannel channel = null;
+                int chunk = first;
+                long chunkStart = runStart;
+                long position = runStart;
+                try {
+                    GetObjectRequest request = new GetObjectRequest(bucket, manifest.key)
+                            .withRange(manifest.objectOffset + runStart,
+                                    manifest.objectOffset + runEnd);
+                    // Makes sure every range comes from the same version of
+                    // the object.
+                    request.setMatchingETagConstraints(
+                            Collections.singletonList(manifest.getETag()));
+                    S3Object object = s3.getObject(request);
+                    if (object == null) {
+                        fail(new IOException("Object changed during download: " + manifest.key));
+                        return;
+                    }
+                    in = object.getObjectContent();
+                    synchronized (openStreams) {
+                        openStreams.add(in);
+                    }
+
+                    channel = getSink().openChannel(true);
+                    crc.reset();
+                    long chunkEnd = chunkStart + getChunkLength(range, chunk);
+                    for (int len; state == TransferState.IN_PROGRESS && position <= runEnd
+                            && (len = in.read(buffer)) != -1; ) {
+                        len = (int) Math.min(len, runEnd + 1 - position);
+                        for (int off = 0; off < len; ) {
+                            int n = (int) Math.min(len - off, chunkEnd - position);
+                            ByteBuffer data = ByteBuffer.wrap(buffer, off, n);
+                            while (data.hasRemaining()) {
+                                position += channel.write(data, position);
+                            }
+                            crc.update(buffer, off, n);
+                            off += n;
+                            if (position == chunkEnd) {
+                                // On disk first, then in the journal
+                                int chunkLength = (int) (chunkEnd - chunkStart);
+                                channel.force(false);
+                                journal.append(chunkStart, chunkLength, (int) crc.getValue());
+                                done[base + chunk] = true;
+                                manifest.setWritten(range,
+                                        manifest.getWritten(range) + chunkLength);
+                                chunk++;
+                                chunkStart = position;
+                                chunkEnd = chunk <= last
+                                        ? chunkStart + getChunkLength(range, chunk)
+                                        : chunkStart;
+                                crc.reset();
+                            }
+                        }
+                        permit.addBytes(len);
+                        addProgress(len);
+                    }
+                    if (position > runEnd) {
+                        manifest.save();
+                        // The next run of missing chunks starts afresh
+                        attempt = -1;
+                        continue;
+                    }
+                    if (state != TransferState.IN_PROGRESS) {
+                        // The part of a chunk that was not recorded is dropped
+                        addProgress(-(position - chunkStart));
+                        in.abort();
+                        saveProgress();
+                        return;
+                    }
+                    throw new IOException("Range ended early at " + position);
+                } catch (AmazonClientException | IOException e) {
+                    // The recorded chunks stay valid; the next attempt or the
+                    // resumed download fetches the rest.
+                    addProgress(-(position - chunkStart));
+                    saveProgress();
+                    // The permit is given back before waiting to retry
+                    permit.fail(e);
+                    permit.close();
+                    if (!backOff(e, attempt, maxRetries)) {
+                        return;
+                    }
+                } finally {
+                    permit.close();
+                    if (in != null) {
+                        synchronized (openStreams) {
+                            openStreams.remove(in);
+                        }
+                    }
+                    closeQuietly(in);
+                    closeQuietly(channel);
+                    if (state != TransferState.IN_PROGRESS) {
+                        // A chunk recorded while the download was stopping
+                        // opened the journal again
+                        journal.close();
+                    }
+                }
+            }
+
+            if (partsRemaining.decrementAndGet() == 0 && state == TransferState.IN_PROGRESS) {
+                complete(this);
+            }
+        }
+
+        /*
+         * Fetches the object in one request and writes it from start to end,
+         * decompressed if it is compressed. A failed attempt starts over from
+         * the beginning.
+         */
+        private void downloadStreamed() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int attempt = 0; ; attempt++) {
+                if (state != TransferState.IN_PROGRESS) {
+                    return;
+                }
+                ConcurrencyController.Permit permit = concurrency.acquire();
+                if (permit == null) {
+                    return;
+                }
+                if (state != TransferState.IN_PROGRESS) {
+                    permit.close();
+                    return;
+                }
+
+                S3ObjectInputStream in = null;
+                FileOutputStream out = null;
+                long written = 0;
+                try {
+                    GetObjectRequest request = new GetObjectRequest(bucket, manifest.key);
+                    if (manifest.memberLength >= 0) {
+                        request.setRange(manifest.objectOffset,
+                                manifest.objectOffset + manifest.memberLength - 1);
+                    }
+                    request.setMatchingETagConstraints(
+                            Collections.singletonList(manifest.getETag()));
+                    S3Object object = s3.getObject(request);
+                    if (object == null) {
+                        fail(new IOException("Object changed during download: " + manifest.key));
+                        return;
+                    }
+                    in = object.getObjectContent();
+                    synchronized (openStreams) {
+                        openStreams.add(in);
+                    }
+
+                    InputStream data = manifest.isCompressed()
+                            ? ContentCompression.decompress(in)
+                            : in;
+                    out = getSink().openStream();
+                    for (int len; state == TransferState.IN_PROGRESS
+                            && (len = data.read(buffer)) != -1; ) {
+                        out.write(buffer, 0, len);
+                        written += len;
+                        permit.addBytes(len);
+                        addProgress(len);
+                    }
+                    if (state != TransferState.IN_PROGRESS) {
+                        in.abort();
+                        return;
+                    }
+                    if (getSink().isSeekable()) {
+                        // A pipe to a document provider cannot be synced
+                        out.getFD().sync();
+                    }
+                    manifest.setWritten(0, written);
+                    break;
+                } catch (AmazonClientException | IOException e) {
+                    addProgress(-written);
+                    permit.fail(e);
+                    permit.close();
+                    if (!backOff(e, attempt, maxRetries)) {
+                        return;
+                    }
+                } finally {
+                    if (in != null) {
+                        synchronized (openStreams) {
+                            openStreams.remove(in);
+                        }
+                    }
+                    permit.close();
+                    closeQuietly(in);
+                    closeQuietly(out);
+                }
+            }
+
+            if (partsRemaining.decrementAndGet() == 0 && state == TransferState.IN_PROGRESS) {
+                complete(this);
+            }
+        }
+
+        private void saveProgress() {
+            try {
+                manifest.save();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to save the progress of download " + id, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * StatsActivity shows the {@link TransferMetrics} of the uploads and the
+ * downloads, updated every second, and exports them to a file.
+ */
+public class StatsActivity extends Activity {
+    private static final String TAG = StatsActivity.class.getSimpleName();
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    // Bars for the throughput of the last minute, lowest first
+    private static final char[] BARS = {
+            ' ', '▁', '▂', '▃', '▄', '▅', '▆', '▇', '█'
+    };
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            showStats();
+            handler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    private Util util;
+    private TransferMetrics transferMetrics;
+    private TextView textStats;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stats);
+        util = new Util();
+        transferMetrics = util.getTransferMetrics();
+        textStats = findViewById(R.id.textStats);
+        Button btnExport = findViewById(R.id.buttonExport);
+        btnExport.setOnClickListener(view ->
+                new ExportTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR));
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+
+    private void showStats() {
+        StringBuilder text = new StringBuilder();
+        appendStats(text, "Uploads", transferMetrics.getStats(TransferType.UPLOAD));
+        text.append('\n');
+        appendStats(text, "Downloads", transferMetrics.getStats(TransferType.DOWNLOAD));
+        textStats.setText(text);
+    }
+
+    private void appendStats(StringBuilder text, String title, TransferMetrics.Stats stats) {
+        text.append(title).append('\n')
+                .append(String.format(Locale.US, "  completed %d, failed %d, canceled %d\n",
+                        stats.completed, stats.failed, stats.canceled))
+                .append("  last minute ").append(sparkline(stats.getRecent())).append('\n');
+        Histogram throughput = stats.throughput;
+        text.append(String.format(Locale.US, "  throughput/s   p50 %s  p90 %s  max %s\n",
+                util.getBytesString(throughput.getValueAtPercentile(50)),
+                util.getBytesString(throughput.getValueAtPercentile(90)),
+                util.getBytesString(throughput.getMax())));
+        appendMillis(text, "first byte", stats.timeToFirstByte);
+        appendMillis(text, "paused", stats.pauses);
+        appendMillis(text, "duration", stats.durations);
+        Histogram retries = stats.retries;
+        text.append(String.format(Locale.US, "  retries        p50 %d  p99 %d  max %d\n",
+                retries.getValueAtPercentile(50), retries.getValueAtPercentile(99),
+                retries.getMax()));
+    }
+
+    private static void appendMillis(StringBuilder text, String name, Histogram histogram) {
+        text.append(String.format(Locale.US, "  %-14s p50 %d ms  p99 %d ms  max %d ms (%d)\n",
+                name, histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                histogram.getMax(), histogram.getCount()));
+    }
+
+    /*
+     * Draws each second as a bar, scaled to the busiest one.
+     */
+    private static String sparkline(long[] values) {
+        long max = 1;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        char[] bars = new char[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bars[i] = BARS[(int) ((values[i] * (BARS.length - 1) + max - 1) / max)];
+        }
+        return new String(bars);
+    }
+
+    /**
+     * This async task writes the metrics to a file next to the downloads.
+     */
+    private class ExportTask extends AsyncTask<Void, Void, File> {
+        @Override
+        protected File doInBackground(Void... inputs) {
+            try {
+                return transferMetrics.export(new File(getExternalFilesDir(null), "metrics"));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to export the metrics", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            Toast.makeText(StatsActivity.this,
+                    file != null
+                            ? "Metrics exported to " + file
+                            : "Unable to export the metrics. See error log for details",
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.http.HttpClient;
+import com.amazonaws.http.HttpRequest;
+import com.amazonaws.http.HttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * An HttpClient that passes the bodies of requests and responses through a
+ * {@link BandwidthLimiter}. Given to the S3 client, it limits the
+ * TransferUtility as well as the multipart uploads and ranged downloads.
+ */
+class ThrottledHttpClient implements HttpClient {
+    // The most read at once, so that the waits stay short and even
+    private static final int MAX_READ = 16 * 1024;
+
+    private final HttpClient client;
+    private final BandwidthLimiter limiter;
+
+    ThrottledHttpClient(HttpClient client, BandwidthLimiter limiter) {
+        this.client = client;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        // Requests for the same object belong to the same transfer
+        String name = request.getUri().getRawPath();
+
+        if (request.getContent() != null) {
+            BandwidthLimiter.Throttle throttle = limiter.open(name, true);
+            try {
+                HttpRequest throttled = new HttpRequest(request.getMethod(), request.getUri(),
+                        request.getHeaders(),
+                        new ThrottledInputStream(request.getContent(), throttle));
+                throttled.setStreaming(request.isStreaming());
+                return throttleResponse(client.execute(throttled), name);
+            } finally {
+                throttle.close();
+            }
+        }
+        return throttleResponse(client.execute(request), name);
+    }
+
+    private HttpResponse throttleResponse(HttpResponse response, String name) {
+        InputStream content = response.getRawContent();
+        if (content == null) {
+            return response;
+        }
+        HttpResponse.Builder builder = HttpResponse.builder()
+                .statusCode(response.getStatusCode())
+                .statusText(response.getStatusText())
+                .content(new ThrottledInputStream(content, limiter.open(name, false)));
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void shutdown() {
+        client.shutdown();
+    }
+
+    /*
+     * Waits for the bytes of each read. Closing it releases the Throttle.
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final BandwidthLimiter.Throttle throttle;
+
+        ThrottledInputStream(InputStream in, BandwidthLimiter.Throttle throttle) {
+            super(in);
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                throttle.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, Math.min(length, MAX_READ));
+            if (read > 0) {
+                throttle.acquire(read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                throttle.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.SystemClock;
+
+/**
+ * Hands out bytes at a steady rate. A caller takes the bytes it is about to
+ * send or has just received and is told how long to wait; the bucket may go
+ * into debt, so a large read is simply paid for by a longer wait and no
+ * caller is starved. A little credit builds up while the bucket is idle so
+ * short gaps do not lower the average rate.
+ */
+class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // The credit kept at most, as a share of a second of bytes
+    private static final int BURST_DIVISOR = 4;
+
+    // Bytes per second, or 0 for no limit
+    private long rate;
+    private double tokens;
+    private long lastRefill = SystemClock.elapsedRealtimeNanos();
+
+    TokenBucket(long bytesPerSecond) {
+        rate = bytesPerSecond;
+    }
+
+    /**
+     * Changes the rate. Bytes already taken are paid for at the new rate.
+     *
+     * @param bytesPerSecond the new rate, or 0 for no limit
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        refill();
+        rate = bytesPerSecond;
+        tokens = Math.min(tokens, rate / BURST_DIVISOR);
+    }
+
+    /**
+     * Takes the bytes from the bucket.
+     *
+     * @return how long to wait in nanoseconds before using them
+     */
+    synchronized long take(int bytes) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (rate > 0) {
+            tokens = Math.min(rate / BURST_DIVISOR,
+                    tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
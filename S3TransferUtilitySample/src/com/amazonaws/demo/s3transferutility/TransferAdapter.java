@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseIntArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ProgressBar;
+import android.widget.RadioButton;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows {@link TransferRow}s in a RecyclerView. A single row can be checked
+ * to pick the transfer the buttons act on. Rows are identified by their
+ * transfer id, which also serves as the stable item id.
+ */
+class TransferAdapter extends RecyclerView.Adapter<TransferAdapter.ViewHolder> {
+
+    // No transfer has id 0
+    static final int NO_SELECTION = 0;
+
+    // Rebinds only the parts of a row that change while a transfer runs
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
+    interface OnSelectionChangedListener {
+        void onSelectionChanged(int checkedId);
+    }
+
+    private final Util util;
+    private final OnSelectionChangedListener selectionListener;
+    private final SparseIntArray positions = new SparseIntArray();
+    private List<TransferRow> rows = new ArrayList<>();
+    private int checkedId = NO_SELECTION;
+
+    TransferAdapter(Util util, OnSelectionChangedListener selectionListener) {
+        this.util = util;
+        this.selectionListener = selectionListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replaces the rows, notifying only the rows that were added, removed or
+     * changed.
+     */
+    void setRows(final List<TransferRow> newRows) {
+        final List<TransferRow> oldRows = rows;
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldRows.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newRows.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldRows.get(oldPosition).id == newRows.get(newPosition).id;
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return oldRows.get(oldPosition).hasSameContents(newRows.get(newPosition));
+            }
+        }, false);
+        rows = newRows;
+        rebuildPositions();
+        if (positions.indexOfKey(checkedId) < 0) {
+            setCheckedId(NO_SELECTION);
+        }
+        diff.dispatchUpdatesTo(this);
+    }
+
+    /**
+     * @return the row of the given transfer, or null if it is not listed
+     */
+    TransferRow findRow(int id) {
+        int position = positions.get(id, RecyclerView.NO_POSITION);
+        return position == RecyclerView.NO_POSITION ? null : rows.get(position);
+    }
+
+    /**
+     * Rebinds the progress of a row after its values were updated.
+     */
+    void notifyRowChanged(int id) {
+        int position = positions.get(id, RecyclerView.NO_POSITION);
+        if (position != RecyclerView.NO_POSITION) {
+            notifyItemChanged(position, PAYLOAD_PROGRESS);
+        }
+    }
+
+    /**
+     * Adds a row at the end of the list.
+     */
+    void addRow(TransferRow row) {
+        rows.add(row);
+        rebuildPositions();
+        notifyItemInserted(rows.size() - 1);
+    }
+
+    void removeRow(int id) {
+        int position = positions.get(id, RecyclerView.NO_POSITION);
+        if (position == RecyclerView.NO_POSITION) {
+            return;
+        }
+        rows.remove(position);
+        rebuildPositions();
+        if (checkedId == id) {
+            setCheckedId(NO_SELECTION);
+        }
+        notifyItemRemoved(position);
+    }
+
+    int getCheckedId() {
+        return checkedId;
+    }
+
+    private void setCheckedId(int id) {
+        if (checkedId == id) {
+            return;
+        }
+        int oldPosition = positions.get(checkedId, RecyclerView.NO_POSITION);
+        checkedId = id;
+        if (oldPosition != RecyclerView.NO_POSITION) {
+            notifyItemChanged(oldPosition);
+        }
+        int newPosition = positions.get(id, RecyclerView.NO_POSITION);
+        if (newPosition != RecyclerView.NO_POSITION) {
+            notifyItemChanged(newPosition);
+        }
+        selectionListener.onSelectionChanged(checkedId);
+    }
+
+    private void rebuildPositions() {
+        positions.clear();
+        for (int i = 0; i < rows.size(); i++) {
+            positions.put(rows.get(i).id, i);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).id;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.record_item, parent, false);
+        final ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                setCheckedId(rows.get(position).id);
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        TransferRow row = rows.get(position);
+        holder.radio.setChecked(row.id == checkedId);
+        holder.fileName.setText(row.fileName);
+        bindProgress(holder, row);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position,
+            @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+        } else {
+            bindProgress(holder, rows.get(position));
+        }
+    }
+
+    private void bindProgress(ViewHolder holder, TransferRow row) {
+        int progress = row.getProgress();
+        holder.progressBar.setProgress(progress);
+        holder.bytes.setText(util.getBytesString(row.bytesTransferred) + "/"
+                + util.getBytesString(row.bytesTotal));
+        holder.state.setText(row.getState().toString());
+        holder.percentage.setText(progress + "%");
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final RadioButton radio;
+        final TextView fileName;
+        final ProgressBar progressBar;
+        final TextView bytes;
+        final TextView state;
+        final TextView percentage;
+
+        ViewHolder(View view) {
+            super(view);
+            radio = view.findViewById(R.id.radioButton1);
+            fileName = view.findViewById(R.id.textFileName);
+            progressBar = view.findViewById(R.id.progressBar1);
+            bytes = view.findViewById(R.id.textBytes);
+            state = view.findViewById(R.id.textState);
+            percentage = view.findViewById(R.id.textPercentage);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * The helpers of {@link Util} that need no Android classes. They run on every
+ * progress update and every copied document, and are kept apart so that the
+ * JMH benchmarks in the benchmarks directory can measure them on a plain JVM.
+ */
+public final class TransferHelpers {
+    // The buffer used to copy documents
+    static final int COPY_BUFFER_SIZE = 2046;
+
+    private static final String[] QUANTIFIERS = {
+            "KB", "MB", "GB", "TB"
+    };
+
+    private TransferHelpers() {
+    }
+
+    /**
+     * Converts number of bytes into proper scale.
+     *
+     * @param bytes number of bytes to be converted.
+     * @return A string that represents the bytes in a proper scale.
+     */
+    public static String formatBytes(long bytes) {
+        double speedNum = bytes;
+        for (int i = 0; ; i++) {
+            if (i >= QUANTIFIERS.length) {
+                return "";
+            }
+            speedNum /= 1024;
+            if (speedNum < 512) {
+                return String.format(Locale.US, "%.2f", speedNum) + " " + QUANTIFIERS[i];
+            }
+        }
+    }
+
+    /**
+     * Copies the stream to the end through the buffer. Neither stream is
+     * closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out, byte[] buffer)
+            throws IOException {
+        long copied = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+}
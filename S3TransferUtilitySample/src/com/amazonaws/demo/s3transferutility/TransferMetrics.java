@@ -0,0 +1,361 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how the transfers go, uploads and downloads apart: their
+ * throughput second by second, the time to the first byte each time one
+ * starts or resumes, their retries, how long they stay paused, how long they
+ * take and how they end. The values go into {@link Histogram}s, which the
+ * stats screen shows and {@link #export} writes out.
+ *
+ * Transfers are followed through their TransferListener callbacks. The same
+ * transfer may be reported by several listeners, such as the one of the
+ * TransferScheduler and the one of the activity; since the callbacks carry
+ * totals and states, the repeated ones change nothing. Callbacks come on the
+ * main thread, and snapshots may be taken on any thread.
+ */
+public class TransferMetrics {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    // How many seconds of combined throughput are kept
+    static final int RECENT_SECONDS = 60;
+
+    /**
+     * The metrics of one type of transfer.
+     */
+    static class Stats {
+        // Bytes per second of each transfer, measured over one second
+        final Histogram throughput;
+        // Milliseconds from start or resume to the first byte
+        final Histogram timeToFirstByte;
+        // Retries of each finished transfer
+        final Histogram retries;
+        // Milliseconds from pause to resume
+        final Histogram pauses;
+        // Milliseconds from the first start to completion
+        final Histogram durations;
+        int completed;
+        int failed;
+        int canceled;
+
+        // Bytes moved by all the transfers in each of the last seconds, as a
+        // ring ending with the second recentEnd
+        final long[] recent;
+        long recentEnd;
+
+        Stats() {
+            throughput = new Histogram();
+            timeToFirstByte = new Histogram();
+            retries = new Histogram();
+            pauses = new Histogram();
+            durations = new Histogram();
+            recent = new long[RECENT_SECONDS];
+        }
+
+        Stats(Stats other, long nowSecond) {
+            throughput = new Histogram(other.throughput);
+            timeToFirstByte = new Histogram(other.timeToFirstByte);
+            retries = new Histogram(other.retries);
+            pauses = new Histogram(other.pauses);
+            durations = new Histogram(other.durations);
+            completed = other.completed;
+            failed = other.failed;
+            canceled = other.canceled;
+            recent = other.recent.clone();
+            recentEnd = other.recentEnd;
+            advance(nowSecond);
+        }
+
+        /**
+         * @return the bytes moved in each of the last seconds, oldest first
+         */
+        long[] getRecent() {
+            long[] ordered = new long[RECENT_SECONDS];
+            for (int i = 0; i < RECENT_SECONDS; i++) {
+                ordered[i] = recent[(int) ((recentEnd + 1 + i) % RECENT_SECONDS)];
+            }
+            return ordered;
+        }
+
+        void addRecent(long second, long bytes) {
+            advance(second);
+            recent[(int) (second % RECENT_SECONDS)] += bytes;
+        }
+
+        private void advance(long second) {
+            if (second <= recentEnd) {
+                return;
+            }
+            long cleared = Math.min(second - recentEnd, RECENT_SECONDS);
+            for (long s = second - cleared + 1; s <= second; s++) {
+                recent[(int) (s % RECENT_SECONDS)] = 0;
+            }
+            recentEnd = second;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONArray recentJson = new JSONArray();
+            for (long bytes : getRecent()) {
+                recentJson.put(bytes);
+            }
+            return new JSONObject()
+                    .put("completed", completed)
+                    .put("failed", failed)
+                    .put("canceled", canceled)
+                    .put("throughputBytesPerSecond", throughput.toJson())
+                    .put("timeToFirstByteMs", timeToFirstByte.toJson())
+                    .put("retries", retries.toJson())
+                    .put("pausesMs", pauses.toJson())
+                    .put("durationsMs", durations.toJson())
+                    .put("recentBytesPerSecond", recentJson);
+        }
+    }
+
+    /*
+     * What is known of one transfer until it ends.
+     */
+    private static class Recorder {
+        TransferState state;
+        long bytes;
+        int retries;
+        // 0 until the transfer is first seen running
+        long startedAt;
+        // 0 unless it is running and has not moved a byte since it started
+        long waitingSince;
+        // 0 unless it is paused
+        long pausedAt;
+        // 0 until the first byte of the current throughput window
+        long windowStart;
+        long windowBytes;
+    }
+
+    private final Stats uploadStats = new Stats();
+    private final Stats downloadStats = new Stats();
+    private final SparseArray<Recorder> uploadRecorders = new SparseArray<>();
+    private final SparseArray<Recorder> downloadRecorders = new SparseArray<>();
+
+    /**
+     * Wraps a listener so that the callbacks it gets are recorded first.
+     */
+    public TransferListener wrap(final TransferType type, final TransferListener listener) {
+        return new ParallelTransfer.RetryListener() {
+            @Override
+            public void onStateChanged(int id, TransferState state) {
+                TransferMetrics.this.onStateChanged(type, id, state);
+                listener.onStateChanged(id, state);
+            }
+
+            @Override
+            public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+                TransferMetrics.this.onProgressChanged(type, id, bytesCurrent);
+                listener.onProgressChanged(id, bytesCurrent, bytesTotal);
+            }
+
+            @Override
+            public void onError(int id, Exception e) {
+                listener.onError(id, e);
+            }
+
+            @Override
+            public void onRetry(int id, int retryCount) {
+                TransferMetrics.this.onRetry(type, id, retryCount);
+                if (listener instanceof ParallelTransfer.RetryListener) {
+                    ((ParallelTransfer.RetryListener) listener).onRetry(id, retryCount);
+                }
+            }
+        };
+    }
+
+    synchronized void onStateChanged(TransferType type, int id, TransferState state) {
+        Recorder recorder = recorder(type, id);
+        TransferState previous = recorder.state;
+        if (state == previous) {
+            return;
+        }
+        recorder.state = state;
+        long now = SystemClock.elapsedRealtimeNanos();
+        Stats stats = statsFor(type);
+        switch (state) {
+            case WAITING:
+            case RESUMED_WAITING:
+            case IN_PROGRESS:
+                if (isRunning(previous)) {
+                    return;
+                }
+                if (recorder.startedAt == 0) {
+                    recorder.startedAt = now;
+                }
+                if (recorder.pausedAt != 0) {
+                    stats.pauses.record(toMillis(now - recorder.pausedAt));
+                    recorder.pausedAt = 0;
+                }
+                // TransferUtility tries again by itself once the network is back
+                if (previous == TransferState.WAITING_FOR_NETWORK) {
+                    recorder.retries++;
+                }
+                recorder.waitingSince = now;
+                recorder.windowStart = 0;
+                break;
+            case PAUSED:
+                recorder.pausedAt = now;
+                recorder.waitingSince = 0;
+                break;
+            case COMPLETED:
+            case FAILED:
+            case CANCELED:
+                recordersFor(type).remove(id);
+                // Transfers that ended before this process saw them run are
+                // not counted
+                if (recorder.startedAt == 0) {
+                    return;
+                }
+                stats.retries.record(recorder.retries);
+                if (state == TransferState.COMPLETED) {
+                    stats.completed++;
+                    stats.durations.record(toMillis(now - recorder.startedAt));
+                } else if (state == TransferState.FAILED) {
+                    stats.failed++;
+                } else {
+                    stats.canceled++;
+                }
+                break;
+            default:
+                recorder.waitingSince = 0;
+                recorder.windowStart = 0;
+                break;
+        }
+    }
+
+    synchronized void onProgressChanged(TransferType type, int id, long bytesCurrent) {
+        Recorder recorder = recorder(type, id);
+        long moved = bytesCurrent - recorder.bytes;
+        recorder.bytes = bytesCurrent;
+        if (moved <= 0) {
+            // A transfer that starts over counts again from 0
+            if (moved < 0) {
+                recorder.windowStart = 0;
+            }
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        Stats stats = statsFor(type);
+        stats.addRecent(TimeUnit.NANOSECONDS.toSeconds(now), moved);
+        if (recorder.waitingSince != 0) {
+            stats.timeToFirstByte.record(toMillis(now - recorder.waitingSince));
+            recorder.waitingSince = 0;
+        }
+        if (recorder.windowStart == 0) {
+            recorder.windowStart = now;
+            recorder.windowBytes = bytesCurrent;
+        } else if (now - recorder.windowStart >= WINDOW_NS) {
+            stats.throughput.record((bytesCurrent - recorder.windowBytes) * WINDOW_NS
+                    / (now - recorder.windowStart));
+            recorder.windowStart = now;
+            recorder.windowBytes = bytesCurrent;
+        }
+    }
+
+    synchronized void onRetry(TransferType type, int id, int retryCount) {
+        Recorder recorder = recorder(type, id);
+        recorder.retries = Math.max(recorder.retries, retryCount);
+    }
+
+    /**
+     * @return a copy of the metrics of the type so far
+     */
+    synchronized Stats getStats(TransferType type) {
+        long nowSecond = TimeUnit.NANOSECONDS.toSeconds(SystemClock.elapsedRealtimeNanos());
+        return new Stats(statsFor(type), nowSecond);
+    }
+
+    /**
+     * Writes the metrics so far to a new JSON file in the directory.
+     * Histograms only list their non-empty buckets.
+     *
+     * @return the file written
+     */
+    public File export(File dir) throws IOException {
+        String json;
+        try {
+            json = new JSONObject()
+                    .put("exportedAt", System.currentTimeMillis())
+                    .put("upload", getStats(TransferType.UPLOAD).toJson())
+                    .put("download", getStats(TransferType.DOWNLOAD).toJson())
+                    .toString();
+        } catch (JSONException e) {
+            throw new IOException("Unable to serialize transfer metrics", e);
+        }
+        dir.mkdirs();
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, "transfer-metrics-" + time + ".json");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(json.getBytes(UTF_8));
+        }
+        return file;
+    }
+
+    private Recorder recorder(TransferType type, int id) {
+        SparseArray<Recorder> recorders = recordersFor(type);
+        Recorder recorder = recorders.get(id);
+        if (recorder == null) {
+            recorder = new Recorder();
+            recorders.put(id, recorder);
+        }
+        return recorder;
+    }
+
+    private Stats statsFor(TransferType type) {
+        return type == TransferType.DOWNLOAD ? downloadStats : uploadStats;
+    }
+
+    private SparseArray<Recorder> recordersFor(TransferType type) {
+        return type == TransferType.DOWNLOAD ? downloadRecorders : uploadRecorders;
+    }
+
+    private static boolean isRunning(TransferState state) {
+        return state == TransferState.WAITING
+                || state == TransferState.RESUMED_WAITING
+                || state == TransferState.IN_PROGRESS;
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
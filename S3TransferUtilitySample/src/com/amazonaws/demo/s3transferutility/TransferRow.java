@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+
+/**
+ * One row of the transfer lists. Progress updates only touch primitive
+ * fields, so refreshing a row allocates nothing; the text shown on screen is
+ * built when the row is bound.
+ */
+class TransferRow {
+    private static final TransferState[] STATES = TransferState.values();
+
+    final int id;
+    String fileName;
+    long bytesTransferred;
+    long bytesTotal;
+    int stateOrdinal;
+
+    TransferRow(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Copies the current values of a TransferUtility transfer.
+     */
+    void update(TransferObserver observer) {
+        fileName = observer.getAbsoluteFilePath();
+        bytesTransferred = observer.getBytesTransferred();
+        bytesTotal = observer.getBytesTotal();
+        stateOrdinal = observer.getState().ordinal();
+    }
+
+    /**
+     * Copies the current values of a multipart upload or ranged download.
+     */
+    void update(ParallelTransfer transfer) {
+        fileName = transfer.getAbsoluteFilePath();
+        bytesTransferred = transfer.getBytesTransferred();
+        bytesTotal = transfer.getBytesTotal();
+        stateOrdinal = transfer.getState().ordinal();
+    }
+
+    /**
+     * Copies the values of a callback. The state is kept if it is null.
+     */
+    void update(TransferState state, long bytesTransferred, long bytesTotal) {
+        this.bytesTransferred = bytesTransferred;
+        this.bytesTotal = bytesTotal;
+        if (state != null) {
+            stateOrdinal = state.ordinal();
+        }
+    }
+
+    /**
+     * Copies the values of another row of the same transfer.
+     */
+    void copyFrom(TransferRow other) {
+        fileName = other.fileName;
+        bytesTransferred = other.bytesTransferred;
+        bytesTotal = other.bytesTotal;
+        stateOrdinal = other.stateOrdinal;
+    }
+
+    TransferState getState() {
+        return STATES[stateOrdinal];
+    }
+
+    /**
+     * @return the progress in percent
+     */
+    int getProgress() {
+        return bytesTotal > 0 ? (int) (bytesTransferred * 100 / bytesTotal) : 0;
+    }
+
+    boolean hasSameContents(TransferRow other) {
+        return bytesTransferred == other.bytesTransferred
+                && bytesTotal == other.bytesTotal
+                && stateOrdinal == other.stateOrdinal
+                && (fileName == null ? other.fileName == null : fileName.equals(other.fileName));
+    }
+}
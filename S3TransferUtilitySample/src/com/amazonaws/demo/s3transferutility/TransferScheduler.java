@@ -0,0 +1,1053 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts transfers a few at a time, with separate limits for uploads and
+ * downloads. Transfers come in two priorities:
+ * <ul>
+ * <li>{@link Priority#INTERACTIVE} transfers were started by the user, who
+ * is waiting for them. They are started first, and when the limit is reached
+ * bulk transfers are paused to make room for them. The paused transfers are
+ * resumed as soon as there is room again.</li>
+ * <li>{@link Priority#BULK} transfers are background work, such as the
+ * documents of a multi-file or folder pick or the transfers of MyService.
+ * Each call queues a batch, and the batches take turns, so a small batch does
+ * not wait behind a large one.</li>
+ * </ul>
+ * Large files go through the {@link MultipartUploader} and
+ * {@link RangedDownloader}, the others through the TransferUtility.
+ * Downloads to a document or a MediaStore entry rather than a file always go
+ * through the RangedDownloader, which writes them in place. With
+ * compression on, text content is uploaded gzip compressed through the
+ * MultipartUploader whatever its size, and compressed objects are downloaded
+ * through the RangedDownloader, which decompresses them. A transfer paused
+ * by the user gives its place to the next one, and goes back to the head of
+ * its queue when it is resumed. The screens pause, resume
+ * and cancel transfers through the scheduler, so that pausing or canceling
+ * all of them also holds or drops the transfers still queued.
+ *
+ * With packing on, the small documents of a bulk batch are not uploaded one
+ * by one but together as a single {@link PackArchive}, which counts as one
+ * file of the batch.
+ *
+ * Every scheduled transfer is reported to the {@link TransferMetrics}.
+ */
+public class TransferScheduler {
+    private static final String TAG = TransferScheduler.class.getSimpleName();
+
+    public enum Priority {
+        INTERACTIVE,
+        BULK
+    }
+
+    /**
+     * Receives the changes of the scheduled transfers on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called when a scheduled transfer starts, makes progress or changes
+         * state.
+         *
+         * @param state the new state, or null if only the progress changed
+         * @param bytesTotal the size of the transfer, or 0 if not known yet
+         */
+        void onTransferChanged(TransferType type, int id, TransferState state,
+                long bytesTransferred, long bytesTotal);
+    }
+
+    /**
+     * The combined progress of the queued bulk transfers of one type.
+     */
+    public static class Progress {
+        public final int filesTotal;
+        public final int filesCompleted;
+        public final int filesFailed;
+        public final long bytesTotal;
+        public final long bytesTransferred;
+
+        Progress(int filesTotal, int filesCompleted, int filesFailed, long bytesTotal,
+                long bytesTransferred) {
+            this.filesTotal = filesTotal;
+            this.filesCompleted = filesCompleted;
+            this.filesFailed = filesFailed;
+            this.bytesTotal = bytesTotal;
+            this.bytesTransferred = bytesTransferred;
+        }
+    }
+
+    private final Context context;
+    private final Util util;
+    private final TransferUtility transferUtility;
+    private final MultipartUploader multipartUploader;
+    private final RangedDownloader rangedDownloader;
+    private final TransferMetrics metrics;
+    private final boolean compression;
+    private final long packThreshold;
+    private final Lane uploads;
+    private final Lane downloads;
+
+    // Finds the documents of a batch
+    private final ExecutorService listingExecutor = Executors.newSingleThreadExecutor();
+
+    // Starts, pauses and resumes transfers, which may copy files or touch
+    // the TransferUtility database
+    private final ExecutorService startExecutor = Executors.newCachedThreadPool();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param context Android context
+     * @param util the Util used to copy small documents
+     * @param transferUtility transfers small files
+     * @param multipartUploader uploads large files
+     * @param rangedDownloader downloads large objects
+     * @param metrics records how the transfers go
+     * @param maxUploads how many uploads run at the same time
+     * @param maxDownloads how many downloads run at the same time
+     * @param compression whether text is uploaded compressed and compressed
+     *            objects are looked for on download
+     * @param packThreshold documents of bulk batches smaller than this are
+     *            packed into one object, or 0 to upload each on its own
+     */
+    public TransferScheduler(Context context, Util util, TransferUtility transferUtility,
+            MultipartUploader multipartUploader, RangedDownloader rangedDownloader,
+            TransferMetrics metrics, int maxUploads, int maxDownloads, boolean compression,
+            long packThreshold) {
+        this.context = context.getApplicationContext();
+        this.util = util;
+        this.transferUtility = transferUtility;
+        this.multipartUploader = multipartUploader;
+        this.rangedDownloader = rangedDownloader;
+        this.metrics = metrics;
+        this.compression = compression;
+        this.packThreshold = packThreshold;
+        uploads = new Lane(TransferType.UPLOAD, maxUploads);
+        downloads = new Lane(TransferType.DOWNLOAD, maxDownloads);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queues the documents. Each is uploaded under its display name; bulk
+     * documents are queued as one batch.
+     */
+    public void uploadDocuments(final List<Uri> uris, final Priority priority) {
+        listingExecutor.execute(() -> {
+            List<Item> items = new ArrayList<>(uris.size());
+            for (Uri uri : uris) {
+                items.add(queryDocument(uri, priority));
+            }
+            if (priority == Priority.BULK) {
+                items = pack(items, "pack");
+            }
+            uploads.enqueue(items, priority);
+        });
+    }
+
+    /**
+     * Queues every document in the folder and its subfolders as one bulk
+     * batch. Each is uploaded under its path, starting with the folder name.
+     *
+     * @param treeUri a folder picked with ACTION_OPEN_DOCUMENT_TREE
+     */
+    @RequiresApi(21)
+    public void uploadTree(final Uri treeUri) {
+        listingExecutor.execute(() -> {
+            Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                    DocumentsContract.getTreeDocumentId(treeUri));
+            String folder = queryDocument(rootUri, Priority.BULK).key;
+            uploads.enqueue(pack(listTree(treeUri), folder), Priority.BULK);
+        });
+    }
+
+    /**
+     * Queues the upload of a file.
+     */
+    public void uploadFile(String key, File file, Priority priority) {
+        uploads.enqueue(Collections.<Item>singletonList(
+                new UploadItem(key, file.length(), priority, null, file, null)), priority);
+    }
+
+    /**
+     * Queues the download of an object.
+     *
+     * @param size the size of the object, or -1 if it is not known
+     */
+    public void download(String key, File file, long size, Priority priority) {
+        download(key, new FileDownloadSink(file), size, priority);
+    }
+
+    /**
+     * Queues the download of an object to a file, a document or a MediaStore
+     * entry.
+     *
+     * @param size the size of the object, or -1 if it is not known
+     */
+    public void download(String key, DownloadSink sink, long size, Priority priority) {
+        download(key, k -> sink, size, priority);
+    }
+
+    /**
+     * Queues the download of an object to a sink made by the factory when
+     * the download starts, off the main thread.
+     *
+     * @param size the size of the object, or -1 if it is not known
+     */
+    public void download(String key, DownloadSink.Factory sinkFactory, long size,
+            Priority priority) {
+        downloads.enqueue(Collections.<Item>singletonList(
+                new DownloadItem(key, Math.max(size, 0), priority, sinkFactory, size)),
+                priority);
+    }
+
+    /**
+     * Queues the download of one member of a pack.
+     */
+    public void downloadMember(String key, PackArchive.Member member, File file,
+            Priority priority) {
+        downloadMember(key, member, new FileDownloadSink(file), priority);
+    }
+
+    /**
+     * Queues the download of one member of a pack to a file, a document or a
+     * MediaStore entry.
+     */
+    public void downloadMember(String key, PackArchive.Member member, DownloadSink sink,
+            Priority priority) {
+        downloadMember(key, member, k -> sink, priority);
+    }
+
+    /**
+     * Queues the download of one member of a pack to a sink made by the
+     * factory when the download starts, off the main thread.
+     */
+    public void downloadMember(String key, PackArchive.Member member,
+            DownloadSink.Factory sinkFactory, Priority priority) {
+        DownloadItem item = new DownloadItem(key, member.size, priority, sinkFactory,
+                member.size);
+        item.member = member;
+        downloads.enqueue(Collections.<Item>singletonList(item), priority);
+    }
+
+    /**
+     * Pauses a transfer, whether it was scheduled or not.
+     *
+     * @return false if the transfer is not running
+     */
+    public boolean pause(TransferType type, int id) {
+        return pauseTransfer(type, id);
+    }
+
+    /**
+     * Resumes a paused transfer. A scheduled one runs in its place again, and
+     * the queued transfers held by {@link #pauseAll} start again as there is
+     * room.
+     *
+     * @return false if the transfer is not paused
+     */
+    public boolean resume(TransferType type, int id) {
+        return laneFor(type).resume(id);
+    }
+
+    /**
+     * Cancels a transfer, whether it was scheduled or not.
+     *
+     * @return false if the transfer is already over
+     */
+    public boolean cancel(TransferType type, int id) {
+        laneFor(type).forget(id);
+        return cancelTransfer(type, id);
+    }
+
+    /**
+     * Pauses every transfer of the type, and holds the queued ones until a
+     * transfer is resumed.
+     */
+    public void pauseAll(final TransferType type) {
+        laneFor(type).hold();
+        startExecutor.execute(() -> {
+            transferUtility.pauseAllWithType(type);
+            if (type == TransferType.UPLOAD) {
+                multipartUploader.pauseAll();
+            } else {
+                rangedDownloader.pauseAll();
+            }
+        });
+    }
+
+    /**
+     * Cancels every transfer of the type, and drops the queued ones.
+     */
+    public void cancelAll(final TransferType type) {
+        final List<Item> dropped = laneFor(type).drop();
+        startExecutor.execute(() -> {
+            for (Item item : dropped) {
+                item.detach();
+                item.finished(TransferState.CANCELED);
+            }
+            transferUtility.cancelAllWithType(type);
+            if (type == TransferType.UPLOAD) {
+                multipartUploader.cancelAll();
+            } else {
+                rangedDownloader.cancelAll();
+            }
+        });
+    }
+
+    private boolean pauseTransfer(TransferType type, int id) {
+        if (id < 0) {
+            return type == TransferType.UPLOAD
+                    ? multipartUploader.pause(id)
+                    : rangedDownloader.pause(id);
+        }
+        return transferUtility.pause(id);
+    }
+
+    /*
+     * @return the resumed transfer, or null if it was not paused
+     */
+    private Object resumeTransfer(TransferType type, int id) {
+        if (id < 0) {
+            return type == TransferType.UPLOAD
+                    ? multipartUploader.resume(id)
+                    : rangedDownloader.resume(id);
+        }
+        return transferUtility.resume(id);
+    }
+
+    private boolean cancelTransfer(TransferType type, int id) {
+        if (id < 0) {
+            return type == TransferType.UPLOAD
+                    ? multipartUploader.cancel(id)
+                    : rangedDownloader.cancel(id);
+        }
+        return transferUtility.cancel(id);
+    }
+
+    /**
+     * @return the combined progress of the bulk transfers of the type queued
+     *         since its queue was last empty
+     */
+    public Progress getProgress(TransferType type) {
+        return laneFor(type).getProgress();
+    }
+
+    private Lane laneFor(TransferType type) {
+        return type == TransferType.DOWNLOAD ? downloads : uploads;
+    }
+
+    private void notifyChanged(Item item, int id, TransferState state) {
+        for (Listener listener : listeners) {
+            listener.onTransferChanged(item.lane().type, id, state, item.bytesTransferred,
+                    item.bytesTotal);
+        }
+    }
+
+    private static boolean isStopped(TransferState state) {
+        return state == TransferState.COMPLETED
+                || state == TransferState.FAILED
+                || state == TransferState.CANCELED
+                || state == TransferState.PAUSED;
+    }
+
+    /*
+     * The queue and the running transfers of one type.
+     */
+    private class Lane {
+        private final TransferType type;
+        private final int maxRunning;
+
+        // Guarded by this
+        private final ArrayDeque<Item> interactive = new ArrayDeque<>();
+        private final ArrayDeque<Item> preempted = new ArrayDeque<>();
+        private final ArrayDeque<ArrayDeque<Item>> batches = new ArrayDeque<>();
+        private final SparseArray<Item> running = new SparseArray<>();
+        // Paused by the user; they take up no place until they are resumed
+        private final SparseArray<Item> paused = new SparseArray<>();
+        // Running bulk transfers, most recently started last
+        private final List<Item> runningBulk = new ArrayList<>();
+        // Handed to the start executor, not started yet
+        private final List<Item> starting = new ArrayList<>();
+        private int pausing;
+        // Set by pauseAll until a transfer is resumed: no bulk transfer
+        // starts, and those that were starting are paused
+        private boolean holding;
+        private int filesTotal;
+        private int filesCompleted;
+        private int filesFailed;
+        private long bytesTotal;
+        private long bytesCompleted;
+
+        Lane(TransferType type, int maxRunning) {
+            this.type = type;
+            this.maxRunning = maxRunning;
+        }
+
+        synchronized void enqueue(List<Item> items, Priority priority) {
+            if (items.isEmpty()) {
+                return;
+            }
+            if (priority == Priority.INTERACTIVE) {
+                interactive.addAll(items);
+                preemptBulk();
+            } else {
+                // A new round of batches starts counting from zero
+                if (batches.isEmpty() && preempted.isEmpty() && runningBulk.isEmpty()
+                        && countPausedBulk() == 0) {
+                    filesTotal = 0;
+                    filesCompleted = 0;
+                    filesFailed = 0;
+                    bytesTotal = 0;
+                    bytesCompleted = 0;
+                }
+                ArrayDeque<Item> batch = new ArrayDeque<>(items);
+                batches.add(batch);
+                filesTotal += items.size();
+                for (Item item : items) {
+                    item.batch = batch;
+                    bytesTotal += item.size;
+                }
+            }
+            startNext();
+        }
+
+        synchronized Progress getProgress() {
+            long bytesTransferred = bytesCompleted;
+            for (Item item : runningBulk) {
+                bytesTransferred += item.bytesTransferred;
+            }
+            for (int i = 0; i < paused.size(); i++) {
+                if (paused.valueAt(i).priority == Priority.BULK) {
+                    bytesTransferred += paused.valueAt(i).bytesTransferred;
+                }
+            }
+            return new Progress(filesTotal, filesCompleted, filesFailed, bytesTotal,
+                    bytesTransferred);
+        }
+
+        /*
+         * Pauses the most recently started bulk transfers until the waiting
+         * interactive ones fit.
+         */
+        private void preemptBulk() {
+            int free = maxRunning - (running.size() + starting.size() - pausing);
+            for (int i = runningBulk.size() - 1; i >= 0 && free < interactive.size(); i--) {
+                final Item item = runningBulk.get(i);
+                if (item.preempted) {
+                    continue;
+                }
+                item.preempted = true;
+                pausing++;
+                free++;
+                startExecutor.execute(item::pause);
+            }
+        }
+
+        private int countPausedBulk() {
+            int count = 0;
+            for (int i = 0; i < paused.size(); i++) {
+                if (paused.valueAt(i).priority == Priority.BULK) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /*
+         * Starts queued transfers while there is room: interactive ones
+         * first, then the preempted ones, then one from each batch in turn.
+         */
+        private void startNext() {
+            while (running.size() + starting.size() < maxRunning) {
+                Item item = interactive.poll();
+                if (item == null && !holding) {
+                    item = preempted.poll();
+                }
+                if (item == null && !holding && !batches.isEmpty()) {
+                    ArrayDeque<Item> batch = batches.poll();
+                    item = batch.poll();
+                    if (!batch.isEmpty()) {
+                        batches.add(batch);
+                    }
+                }
+                if (item == null) {
+                    return;
+                }
+                starting.add(item);
+                startExecutor.execute(item.id == 0 ? item::start : item::resume);
+            }
+        }
+
+        synchronized void started(Item item, int id) {
+            starting.remove(item);
+            item.id = id;
+            running.put(id, item);
+            if (item.priority == Priority.BULK) {
+                runningBulk.add(item);
+            }
+            if (item.canceled) {
+                startExecutor.execute(item::cancel);
+            } else if (holding && item.priority == Priority.BULK) {
+                startExecutor.execute(item::pause);
+            }
+        }
+
+        synchronized void failedToStart(Item item) {
+            starting.remove(item);
+            settle(item, item.canceled ? TransferState.CANCELED : TransferState.FAILED);
+            startNext();
+        }
+
+        /*
+         * Resumes a transfer. One paused by the user goes back to the head
+         * of its queue, and is resumed once there is room for it.
+         */
+        boolean resume(int id) {
+            synchronized (this) {
+                holding = false;
+                Item item = paused.get(id);
+                if (item != null) {
+                    paused.remove(id);
+                    if (item.priority == Priority.INTERACTIVE) {
+                        interactive.addFirst(item);
+                        preemptBulk();
+                    } else {
+                        item.batch.addFirst(item);
+                        if (!batches.contains(item.batch)) {
+                            batches.addFirst(item.batch);
+                        }
+                    }
+                    startNext();
+                    return true;
+                }
+            }
+            boolean resumed = resumeTransfer(type, id) != null;
+            synchronized (this) {
+                startNext();
+            }
+            return resumed;
+        }
+
+        /*
+         * Drops a transfer that waits to be resumed, after making room for an
+         * interactive one or after the user resumed it, before it is
+         * canceled. Running and paused transfers are taken care of when they
+         * report the cancellation.
+         */
+        synchronized void forget(int id) {
+            Item item = removeQueued(preempted, id);
+            if (item == null) {
+                item = removeQueued(interactive, id);
+            }
+            if (item == null) {
+                for (ArrayDeque<Item> batch : batches) {
+                    item = removeQueued(batch, id);
+                    if (item != null) {
+                        if (batch.isEmpty()) {
+                            batches.remove(batch);
+                        }
+                        break;
+                    }
+                }
+            }
+            if (item != null) {
+                item.detach();
+                item.finished(TransferState.CANCELED);
+                settle(item, TransferState.CANCELED);
+            }
+        }
+
+        private Item removeQueued(ArrayDeque<Item> queue, int id) {
+            for (Item item : queue) {
+                if (item.id == id) {
+                    queue.remove(item);
+                    return item;
+                }
+            }
+            return null;
+        }
+
+        synchronized void hold() {
+            holding = true;
+        }
+
+        /*
+         * Empties the queues, and cancels the transfers that are starting
+         * once they have started.
+         *
+         * @return the transfers that were queued
+         */
+        synchronized List<Item> drop() {
+            List<Item> dropped = new ArrayList<>(interactive);
+            dropped.addAll(preempted);
+            for (ArrayDeque<Item> batch : batches) {
+                dropped.addAll(batch);
+            }
+            interactive.clear();
+            preempted.clear();
+            batches.clear();
+            for (Item item : dropped) {
+                settle(item, TransferState.CANCELED);
+            }
+            for (Item item : starting) {
+                item.canceled = true;
+            }
+            holding = false;
+            return dropped;
+        }
+
+        /*
+         * Frees the place of a transfer that is no longer running. Called on
+         * the main thread.
+         */
+        synchronized void stopped(Item item, TransferState state) {
+            if (running.get(item.id) == item) {
+                running.remove(item.id);
+                runningBulk.remove(item);
+                if (item.preempted) {
+                    pausing--;
+                    item.preempted = false;
+                    if (state == TransferState.PAUSED) {
+                        // Made room for an interactive transfer; resumed later
+                        preempted.addFirst(item);
+                        startNext();
+                        return;
+                    }
+                }
+                if (state == TransferState.PAUSED) {
+                    // Paused by the user, who may resume it in the same place
+                    paused.put(item.id, item);
+                    startNext();
+                    return;
+                }
+            } else if (paused.get(item.id) == item && state != TransferState.PAUSED) {
+                // Resumed by the user and then finished, or canceled
+                paused.remove(item.id);
+            } else {
+                return;
+            }
+            item.detach();
+            item.finished(state);
+            settle(item, state);
+            startNext();
+        }
+
+        /*
+         * Counts a transfer that is over in the progress of its batch.
+         */
+        private void settle(Item item, TransferState state) {
+            if (item.priority != Priority.BULK) {
+                return;
+            }
+            if (state == TransferState.COMPLETED) {
+                filesCompleted++;
+                bytesCompleted += item.size;
+            } else if (state == TransferState.CANCELED) {
+                // No longer part of the batch
+                filesTotal--;
+                bytesTotal -= item.size;
+            } else {
+                filesFailed++;
+                bytesTotal -= item.size;
+            }
+        }
+    }
+
+    /*
+     * A queued transfer. It listens to its own transfer once started.
+     */
+    private abstract class Item implements ParallelTransfer.RetryListener {
+        final String key;
+        final long size;
+        final Priority priority;
+
+        // 0 until started
+        int id;
+
+        // Set under the lock of the lane
+        boolean preempted;
+        boolean canceled;
+
+        // The queue of its batch, for bulk transfers
+        ArrayDeque<Item> batch;
+
+        // Set on the main thread
+        volatile long bytesTransferred;
+        volatile long bytesTotal;
+
+        // The transfer, once started
+        volatile TransferObserver observer;
+        volatile ParallelTransfer parallelTransfer;
+
+        Item(String key, long size, Priority priority) {
+            this.key = key;
+            this.size = size;
+            this.priority = priority;
+            bytesTotal = size;
+        }
+
+        abstract Lane lane();
+
+        /*
+         * Starts the transfer. Runs off the main thread.
+         */
+        abstract void start();
+
+        void started(ParallelTransfer transfer) {
+            parallelTransfer = transfer;
+            lane().started(this, transfer.getId());
+            transfer.addWatcher(this);
+            checkStopped(transfer.getState());
+        }
+
+        void started(TransferObserver transferObserver) {
+            observer = transferObserver;
+            lane().started(this, transferObserver.getId());
+            transferObserver.setTransferListener(this);
+            // A small transfer may have finished before the listener was set
+            transferObserver.refresh();
+            checkStopped(transferObserver.getState());
+        }
+
+        /*
+         * Catches up with a transfer that stopped before its listener was set.
+         */
+        private void checkStopped(final TransferState state) {
+            final int startedId = id;
+            mainHandler.post(() -> {
+                metrics.onStateChanged(lane().type, startedId, state);
+                notifyChanged(this, startedId, state);
+                if (isStopped(state)) {
+                    lane().stopped(this, state);
+                }
+            });
+        }
+
+        void pause() {
+            pauseTransfer(lane().type, id);
+        }
+
+        void cancel() {
+            cancelTransfer(lane().type, id);
+        }
+
+        void resume() {
+            Object resumed = resumeTransfer(lane().type, id);
+            if (resumed == null) {
+                // Canceled by the user while it was paused
+                detach();
+                lane().failedToStart(this);
+                return;
+            }
+            lane().started(this, id);
+        }
+
+        /*
+         * Called once the transfer is over for the scheduler.
+         */
+        void finished(TransferState state) {
+        }
+
+        void detach() {
+            if (observer != null) {
+                observer.cleanTransferListener();
+            }
+            if (parallelTransfer != null) {
+                parallelTransfer.removeWatcher(this);
+            }
+        }
+
+        @Override
+        public void onStateChanged(int id, TransferState state) {
+            metrics.onStateChanged(lane().type, id, state);
+            notifyChanged(this, id, state);
+            if (isStopped(state)) {
+                lane().stopped(this, state);
+            }
+        }
+
+        @Override
+        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            this.bytesTransferred = bytesCurrent;
+            this.bytesTotal = bytesTotal;
+            metrics.onProgressChanged(lane().type, id, bytesCurrent);
+            notifyChanged(this, id, null);
+        }
+
+        @Override
+        public void onRetry(int id, int retryCount) {
+            metrics.onRetry(lane().type, id, retryCount);
+        }
+
+        @Override
+        public void onError(int id, Exception e) {
+            Log.e(TAG, "Error transferring " + key, e);
+        }
+    }
+
+    private class UploadItem extends Item {
+        // The document, the file or the pack to upload
+        final Uri uri;
+        final File file;
+        final PackUploadSource pack;
+
+        UploadItem(String key, long size, Priority priority, Uri uri, File file,
+                PackUploadSource pack) {
+            super(key, size, priority);
+            this.uri = uri;
+            this.file = file;
+            this.pack = pack;
+        }
+
+        @Override
+        void finished(TransferState state) {
+            if (pack != null
+                    && (state == TransferState.COMPLETED || state == TransferState.CANCELED)) {
+                pack.delete();
+            }
+        }
+
+        @Override
+        Lane lane() {
+            return uploads;
+        }
+
+        /*
+         * Large documents are read in place, small ones are copied first.
+         */
+        @Override
+        void start() {
+            try {
+                if (pack != null) {
+                    started(multipartUploader.upload(key, pack));
+                    return;
+                }
+                if (compression && ContentCompression.isCompressible(
+                        uri != null ? context.getContentResolver().getType(uri) : null, key)) {
+                    try {
+                        UploadSource source = file != null
+                                ? new FileUploadSource(file)
+                                : ContentUploadSource.open(context, uri);
+                        started(multipartUploader.uploadCompressed(key, source));
+                        return;
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to read " + uri + " in place, sending it as is", e);
+                    }
+                }
+                if (file != null) {
+                    if (multipartUploader.shouldUploadInParts(file.length())) {
+                        started(multipartUploader.upload(key, file));
+                    } else {
+                        started(transferUtility.upload(key, file));
+                    }
+                    return;
+                }
+
+                try {
+                    ContentUploadSource source = ContentUploadSource.open(context, uri);
+                    if (multipartUploader.shouldUploadInParts(source.length())) {
+                        started(multipartUploader.upload(key, source));
+                        return;
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to read " + uri + " in place, copying it instead", e);
+                }
+                started(transferUtility.upload(key, util.copyContentUriToFile(context, uri)));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to upload " + (uri != null ? uri : file), e);
+                lane().failedToStart(this);
+            }
+        }
+    }
+
+    private class DownloadItem extends Item {
+        final DownloadSink.Factory sinkFactory;
+
+        // -1 if not known
+        final long objectSize;
+
+        // Set when only this member of a pack is downloaded
+        PackArchive.Member member;
+
+        DownloadItem(String key, long size, Priority priority,
+                DownloadSink.Factory sinkFactory, long objectSize) {
+            super(key, size, priority);
+            this.sinkFactory = sinkFactory;
+            this.objectSize = objectSize;
+        }
+
+        @Override
+        Lane lane() {
+            return downloads;
+        }
+
+        @Override
+        void start() {
+            DownloadSink sink;
+            try {
+                sink = sinkFactory.create(key);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to make the destination of " + key, e);
+                lane().failedToStart(this);
+                return;
+            }
+            if (member != null) {
+                started(rangedDownloader.downloadMember(key, member, sink));
+                return;
+            }
+            // The TransferUtility only writes to files
+            File file = sink.getFile();
+            if (file == null || rangedDownloader.shouldDownloadInRanges(objectSize)
+                    || (compression && rangedDownloader.isCompressed(key))) {
+                started(rangedDownloader.download(key, sink));
+            } else {
+                started(transferUtility.download(key, file));
+            }
+        }
+    }
+
+    /*
+     * Replaces the small documents among the items by a single pack named
+     * after the batch, if there are at least two of them.
+     */
+    private List<Item> pack(List<Item> items, String name) {
+        if (packThreshold <= 0) {
+            return items;
+        }
+        List<Item> unpacked = new ArrayList<>();
+        List<Uri> uris = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (Item item : items) {
+            UploadItem upload = (UploadItem) item;
+            if (upload.uri != null && upload.size > 0 && upload.size < packThreshold) {
+                uris.add(upload.uri);
+                names.add(upload.key);
+                sizes.add(upload.size);
+            } else {
+                unpacked.add(item);
+            }
+        }
+        if (uris.size() < 2) {
+            return items;
+        }
+
+        String key = name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date()) + PackArchive.SUFFIX;
+        try {
+            PackUploadSource source = PackUploadSource.create(context, uris, names, sizes);
+            unpacked.add(0, new UploadItem(key, source.length(), Priority.BULK, null, null,
+                    source));
+            return unpacked;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to pack " + uris.size() + " documents, uploading each", e);
+            return items;
+        }
+    }
+
+    private Item queryDocument(Uri uri, Priority priority) {
+        String name = uri.getLastPathSegment();
+        long size = 0;
+        try (Cursor cursor = context.getContentResolver().query(uri, new String[] {
+                OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE
+        }, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                if (!cursor.isNull(0)) {
+                    name = cursor.getString(0);
+                }
+                size = cursor.getLong(1);
+            }
+        }
+        return new UploadItem(name, size, priority, uri, null, null);
+    }
+
+    @RequiresApi(21)
+    private List<Item> listTree(Uri treeUri) {
+        ContentResolver resolver = context.getContentResolver();
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                DocumentsContract.Document.COLUMN_SIZE
+        };
+        List<Item> items = new ArrayList<>();
+
+        // Folders still to be listed, as document id and key prefix
+        ArrayDeque<String[]> folders = new ArrayDeque<>();
+        String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+        Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, rootId);
+        folders.add(new String[] { rootId, queryDocument(rootUri, Priority.BULK).key + "/" });
+
+        while (!folders.isEmpty()) {
+            String[] folder = folders.poll();
+            Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                    folder[0]);
+            try (Cursor cursor = resolver.query(childrenUri, projection, null, null, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    String documentId = cursor.getString(0);
+                    String key = folder[1] + cursor.getString(1);
+                    if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                        folders.add(new String[] { documentId, key + "/" });
+                    } else {
+                        items.add(new UploadItem(key, cursor.getLong(3), Priority.BULK,
+                                DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId),
+                                null, null));
+                    }
+                }
+            }
+        }
+        return items;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-memory copy of the transfer records, uploads and downloads apart,
+ * indexed by id. The records are read once, off the main thread, and then
+ * kept current by the callbacks of the transfers and of the
+ * {@link TransferScheduler}. The screens copy their rows from here instead of
+ * reading every record of the TransferUtility database each time they are
+ * shown, and a screen that comes back reads only the rows in its
+ * {@link Changes}.
+ *
+ * Callbacks come on the main thread, and the rows may be read on any thread.
+ */
+class TransferSnapshot {
+    private static final String TAG = TransferSnapshot.class.getSimpleName();
+
+    interface Listener {
+        /**
+         * Called on the main thread when a transfer is added, changes or is
+         * removed.
+         *
+         * @param state the new state, or null if it did not change
+         */
+        void onTransferChanged(TransferType type, int id, TransferState state);
+    }
+
+    /**
+     * Collects the ids of the transfers of one type that changed, until they
+     * are taken.
+     */
+    static class Changes {
+        private final TransferType type;
+        private final SparseBooleanArray ids = new SparseBooleanArray();
+
+        private Changes(TransferType type) {
+            this.type = type;
+        }
+    }
+
+    private final TransferUtility transferUtility;
+    private final MultipartUploader multipartUploader;
+    private final RangedDownloader rangedDownloader;
+
+    // Guarded by this
+    private final Records uploads;
+    private final Records downloads;
+    private final List<Changes> changes = new ArrayList<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param transferUtility holds the records of the small transfers
+     * @param multipartUploader holds the multipart uploads
+     * @param rangedDownloader holds the ranged downloads
+     * @param metrics records the transfers that are followed here
+     */
+    TransferSnapshot(TransferUtility transferUtility, MultipartUploader multipartUploader,
+            RangedDownloader rangedDownloader, TransferMetrics metrics) {
+        this.transferUtility = transferUtility;
+        this.multipartUploader = multipartUploader;
+        this.rangedDownloader = rangedDownloader;
+        uploads = new Records(TransferType.UPLOAD, metrics);
+        downloads = new Records(TransferType.DOWNLOAD, metrics);
+    }
+
+    /**
+     * Reads every record. It reads the database, so it should not be called
+     * on the main thread.
+     */
+    void load() {
+        List<TransferObserver> uploadObservers =
+                transferUtility.getTransfersWithType(TransferType.UPLOAD);
+        List<TransferObserver> downloadObservers =
+                transferUtility.getTransfersWithType(TransferType.DOWNLOAD);
+        synchronized (this) {
+            // The engine transfers are listed after the observers
+            for (TransferObserver observer : uploadObservers) {
+                uploads.add(observer);
+            }
+            for (MultipartUploader.Upload upload : multipartUploader.getUploads()) {
+                uploads.add(upload);
+            }
+            for (TransferObserver observer : downloadObservers) {
+                downloads.add(observer);
+            }
+            for (RangedDownloader.Download download : rangedDownloader.getDownloads()) {
+                downloads.add(download);
+            }
+        }
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return copies of the rows of the transfers of the type
+     */
+    synchronized List<TransferRow> getRows(TransferType type) {
+        List<TransferRow> rows = recordsFor(type).rows;
+        List<TransferRow> copies = new ArrayList<>(rows.size());
+        for (TransferRow row : rows) {
+            TransferRow copy = new TransferRow(row.id);
+            copy.copyFrom(row);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Copies the values of a transfer into a row of a screen.
+     *
+     * @return false if the transfer is not listed
+     */
+    synchronized boolean readRow(TransferType type, int id, TransferRow into) {
+        TransferRow row = recordsFor(type).rowsById.get(id);
+        if (row == null) {
+            return false;
+        }
+        into.copyFrom(row);
+        return true;
+    }
+
+    /**
+     * Starts collecting the ids of the transfers of the type that change.
+     */
+    synchronized Changes track(TransferType type) {
+        Changes tracked = new Changes(type);
+        changes.add(tracked);
+        return tracked;
+    }
+
+    synchronized void untrack(Changes tracked) {
+        changes.remove(tracked);
+    }
+
+    /**
+     * Moves the ids collected so far into the given array.
+     */
+    synchronized void takeChanges(Changes tracked, SparseBooleanArray into) {
+        for (int i = 0; i < tracked.ids.size(); i++) {
+            into.put(tracked.ids.keyAt(i), true);
+        }
+        tracked.ids.clear();
+    }
+
+    /**
+     * Follows a TransferUtility transfer again after it was resumed.
+     */
+    void watch(TransferType type, int id) {
+        synchronized (this) {
+            Records records = recordsFor(type);
+            TransferObserver observer = records.observers.get(id);
+            if (observer != null) {
+                observer.setTransferListener(records.listener);
+            }
+        }
+    }
+
+    /**
+     * Forgets a transfer whose record was deleted.
+     */
+    void remove(TransferType type, int id) {
+        synchronized (this) {
+            recordsFor(type).remove(id);
+            markChanged(type, id);
+        }
+        notifyChanged(type, id, null);
+    }
+
+    /**
+     * Takes the changes reported by the TransferScheduler. A transfer it
+     * started is looked up and added the first time it is reported.
+     */
+    void onScheduledTransferChanged(TransferType type, int id, TransferState state,
+            long bytesTransferred, long bytesTotal) {
+        synchronized (this) {
+            Records records = recordsFor(type);
+            TransferRow row = records.rowsById.get(id);
+            if (row == null) {
+                row = records.lookUp(id);
+                if (row == null) {
+                    return;
+                }
+            }
+            row.update(state, bytesTransferred, bytesTotal);
+            markChanged(type, id);
+        }
+        notifyChanged(type, id, state);
+    }
+
+    private Records recordsFor(TransferType type) {
+        return type == TransferType.DOWNLOAD ? downloads : uploads;
+    }
+
+    // Called with the lock held
+    private void markChanged(TransferType type, int id) {
+        for (Changes tracked : changes) {
+            if (tracked.type == type) {
+                tracked.ids.put(id, true);
+            }
+        }
+    }
+
+    private void notifyChanged(TransferType type, int id, TransferState state) {
+        for (Listener listener : listeners) {
+            listener.onTransferChanged(type, id, state);
+        }
+    }
+
+    private static boolean isActive(TransferState state) {
+        return TransferState.WAITING.equals(state)
+                || TransferState.WAITING_FOR_NETWORK.equals(state)
+                || TransferState.IN_PROGRESS.equals(state);
+    }
+
+    /*
+     * The rows of one type, in the order they were added, and what they are
+     * read from.
+     */
+    private class Records {
+        final TransferType type;
+        final List<TransferRow> rows = new ArrayList<>();
+        final SparseArray<TransferRow> rowsById = new SparseArray<>();
+        final SparseArray<TransferObserver> observers = new SparseArray<>();
+        final SparseArray<ParallelTransfer> transfers = new SparseArray<>();
+        final TransferListener listener;
+
+        Records(TransferType type, TransferMetrics metrics) {
+            this.type = type;
+            listener = metrics.wrap(type, new RowUpdater(type));
+        }
+
+        void add(TransferObserver observer) {
+            TransferRow row = put(observer.getId());
+            row.update(observer);
+            observers.put(observer.getId(), observer);
+            // Sets listeners to in progress transfers
+            if (isActive(observer.getState())) {
+                observer.setTransferListener(listener);
+            }
+        }
+
+        void add(ParallelTransfer transfer) {
+            TransferRow row = put(transfer.getId());
+            row.update(transfer);
+            transfers.put(transfer.getId(), transfer);
+            // Engine transfers live in memory, so they are always followed
+            transfer.addWatcher(listener);
+        }
+
+        /*
+         * Adds a transfer that started after the records were read.
+         */
+        TransferRow lookUp(int id) {
+            if (id < 0) {
+                ParallelTransfer transfer = type == TransferType.DOWNLOAD
+                        ? rangedDownloader.getDownload(id)
+                        : multipartUploader.getUpload(id);
+                if (transfer == null) {
+                    return null;
+                }
+                add(transfer);
+            } else {
+                TransferObserver observer = transferUtility.getTransferById(id);
+                if (observer == null) {
+                    return null;
+                }
+                add(observer);
+            }
+            return rowsById.get(id);
+        }
+
+        void remove(int id) {
+            TransferRow row = rowsById.get(id);
+            if (row == null) {
+                return;
+            }
+            rows.remove(row);
+            rowsById.remove(id);
+            TransferObserver observer = observers.get(id);
+            if (observer != null) {
+                observer.cleanTransferListener();
+                observers.remove(id);
+            }
+            ParallelTransfer transfer = transfers.get(id);
+            if (transfer != null) {
+                transfer.removeWatcher(listener);
+                transfers.remove(id);
+            }
+        }
+
+        private TransferRow put(int id) {
+            TransferRow row = new TransferRow(id);
+            rows.add(row);
+            rowsById.put(id, row);
+            return row;
+        }
+    }
+
+    /*
+     * Copies the values that the callbacks carry into the rows.
+     */
+    private class RowUpdater implements TransferListener {
+        private final TransferType type;
+
+        RowUpdater(TransferType type) {
+            this.type = type;
+        }
+
+        @Override
+        public void onStateChanged(int id, TransferState state) {
+            if (update(id, state, -1, -1)) {
+                notifyChanged(type, id, state);
+            }
+        }
+
+        @Override
+        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
+            if (update(id, null, bytesCurrent, bytesTotal)) {
+                notifyChanged(type, id, null);
+            }
+        }
+
+        @Override
+        public void onError(int id, Exception e) {
+            Log.e(TAG, "Error during " + type + ": " + id, e);
+        }
+
+        private boolean update(int id, TransferState state, long bytesTransferred,
+                long bytesTotal) {
+            synchronized (TransferSnapshot.this) {
+                TransferRow row = recordsFor(type).rowsById.get(id);
+                if (row == null) {
+                    return false;
+                }
+                if (bytesTransferred < 0) {
+                    bytesTransferred = row.bytesTransferred;
+                    bytesTotal = row.bytesTotal;
+                }
+                row.update(state, bytesTransferred, bytesTotal);
+                markChanged(type, id);
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseBooleanArray;
+
+/**
+ * Coalesces transfer callbacks into at most one UI update per interval.
+ * Progress callbacks can arrive hundreds of times a second when many
+ * transfers run at once; instead of redrawing the list for each of them, the
+ * ids of the transfers that changed are collected and handed over together.
+ *
+ * All methods must be called on the main thread.
+ */
+class TransferUpdateThrottler {
+
+    interface Listener {
+        /**
+         * Called with the ids of the transfers that changed since the last
+         * call. The array is only valid during the call.
+         */
+        void onTransfersChanged(SparseBooleanArray changedIds);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final SparseBooleanArray changedIds = new SparseBooleanArray();
+    private final long intervalMs;
+    private final Listener listener;
+
+    private long lastUpdate;
+    private boolean scheduled;
+
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            scheduled = false;
+            lastUpdate = SystemClock.uptimeMillis();
+            listener.onTransfersChanged(changedIds);
+            changedIds.clear();
+        }
+    };
+
+    /**
+     * @param intervalMs the minimum time between two updates
+     * @param listener receives the updates
+     */
+    TransferUpdateThrottler(long intervalMs, Listener listener) {
+        this.intervalMs = intervalMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Records that a transfer changed, scheduling an update if none is
+     * pending.
+     */
+    void markChanged(int id) {
+        changedIds.put(id, true);
+        if (!scheduled) {
+            scheduled = true;
+            long delay = lastUpdate + intervalMs - SystemClock.uptimeMillis();
+            handler.postDelayed(update, Math.max(delay, 0));
+        }
+    }
+
+    /**
+     * Drops the pending update.
+     */
+    void cancel() {
+        handler.removeCallbacks(update);
+        scheduled = false;
+        changedIds.clear();
+    }
+}
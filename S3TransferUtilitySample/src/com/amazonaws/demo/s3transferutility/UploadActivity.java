@@ -16,7 +16,7 @@
 package com.amazonaws.demo.s3transferutility;
 
 import android.app.Activity;
-import android.app.ListActivity;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
@@ -24,37 +24,27 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.view.View;
 import android.widget.Button;
-import android.widget.ProgressBar;
-import android.widget.RadioButton;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
- * UploadActivity is a ListActivity of uploading, and uploaded records as well
- * as buttons for managing the uploads and creating new ones.
+ * UploadActivity is an Activity listing uploading, and uploaded records as
+ * well as buttons for managing the uploads and creating new ones.
  */
-public class UploadActivity extends ListActivity {
-
-    // Indicates that no upload is currently selected
-    private static final int INDEX_NOT_CHECKED = -1;
+public class UploadActivity extends Activity {
 
     // TAG for logging;
     private static final String TAG = "UploadActivity";
@@ -63,10 +53,16 @@ public class UploadActivity extends ListActivity {
 
     private static final int UPLOAD_IN_BACKGROUND_REQUEST_CODE = 1;
 
+    private static final int UPLOAD_FOLDER_REQUEST_CODE = 2;
+
+    // Transfer callbacks are turned into at most one list update per interval
+    private static final long UPDATE_INTERVAL_MS = 100;
+
     // Button for upload operations
     private Button btnUploadFile;
     private Button btnUploadFileInBackground;
     private Button btnUploadImage;
+    private Button btnUploadFolder;
     private Button btnPause;
     private Button btnResume;
     private Button btnCancel;
@@ -77,137 +73,136 @@ public class UploadActivity extends ListActivity {
     // The TransferUtility is the primary class for managing transfer to S3
     static TransferUtility transferUtility;
 
-    // The SimpleAdapter adapts the data about transfers to rows in the UI
-    static SimpleAdapter simpleAdapter;
+    // The TransferAdapter shows one row per transfer
+    static TransferAdapter transferAdapter;
 
-    // A List of all transfers
-    static List<TransferObserver> observers;
+    // Collects the transfers that changed between two list updates
+    static TransferUpdateThrottler updateThrottler;
 
-    /**
-     * This map is used to provide data to the SimpleAdapter above. See the
-     * fillMap() function for how it relates observers to rows in the displayed
-     * activity.
-     */
-    static ArrayList<HashMap<String, Object>> transferRecordMaps;
+    // Uploads large files in parts
+    static MultipartUploader multipartUploader;
+
+    // Starts uploads a few at a time, the ones the user waits for first
+    static TransferScheduler transferScheduler;
+
+    // Shows the combined progress of the batch uploads
+    static TextView textBatchProgress;
+
+    // The transfer records, kept in memory
+    static TransferSnapshot transferSnapshot;
+
+    // Marks the uploads that changed for the next list update
+    private static final TransferSnapshot.Listener snapshotListener = (type, id, state) -> {
+        if (type == TransferType.UPLOAD) {
+            updateThrottler.markChanged(id);
+        }
+    };
 
-    // Which row in the UI is currently checked (if any)
-    static int checkedIndex;
+    // The uploads that changed since the list was last brought up to date
+    private TransferSnapshot.Changes changes;
+    private final SparseBooleanArray changedIds = new SparseBooleanArray();
 
     // Reference to the utility class
     static Util util;
 
+    // Whether the clients above are set up, and whether the activity is in
+    // the foreground
+    private boolean clientsReady;
+    private boolean resumed;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_upload);
 
-        // Initializes TransferUtility, always do this before using it.
-        util = new Util();
-        transferUtility = util.getTransferUtility(this);
-        checkedIndex = INDEX_NOT_CHECKED;
-        transferRecordMaps = new ArrayList<>();
+        final Util readyUtil = new Util();
+        util = readyUtil;
         initUI();
+        // The clients are set up in the background so that the screen shows
+        // at once; the list fills in when they are ready
+        util.whenReady(this, () -> {
+            transferUtility = readyUtil.getTransferUtility(this);
+            multipartUploader = readyUtil.getMultipartUploader(this);
+            transferScheduler = readyUtil.getTransferScheduler(this);
+            transferSnapshot = readyUtil.getTransferSnapshot(this);
+            clientsReady = true;
+            updateButtonAvailability();
+            if (resumed) {
+                showTransfers();
+            }
+        }, e -> Toast.makeText(this, "Unable to set up the S3 clients, check "
+                + "awsconfiguration.json: " + e.getMessage(), Toast.LENGTH_LONG).show());
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
+        if (clientsReady) {
+            showTransfers();
+        }
+    }
+
+    private void showTransfers() {
         // Get the data from any transfer's that have already happened,
         initData();
+        // Scheduled uploads are added to the list as they start, one by one
+        transferSnapshot.addListener(snapshotListener);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Clear transfer listeners to prevent memory leak, or
-        // else this activity won't be garbage collected.
-        if (observers != null && !observers.isEmpty()) {
-            for (TransferObserver observer : observers) {
-                observer.cleanTransferListener();
-            }
+        resumed = false;
+        if (!clientsReady) {
+            return;
+        }
+        transferSnapshot.removeListener(snapshotListener);
+        updateThrottler.cancel();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (changes != null) {
+            transferSnapshot.untrack(changes);
         }
     }
 
     /**
-     * Gets all relevant transfers from the Transfer Service for populating the
-     * UI
+     * Lists the transfers from the snapshot the first time, and afterwards
+     * updates only the rows of the transfers that changed in the meantime.
      */
-    static void initData() {
-        transferRecordMaps.clear();
-        // Use TransferUtility to get all upload transfers.
-        observers = transferUtility.getTransfersWithType(TransferType.UPLOAD);
-        TransferListener listener = new UploadListener();
-        for (TransferObserver observer : observers) {
-            observer.refresh();
-
-            // For each transfer we will will create an entry in
-            // transferRecordMaps which will display
-            // as a single row in the UI
-            HashMap<String, Object> map = new HashMap<>();
-            util.fillMap(map, observer, false);
-            transferRecordMaps.add(map);
-
-            // Sets listeners to in progress transfers
-            if (TransferState.WAITING.equals(observer.getState())
-                    || TransferState.WAITING_FOR_NETWORK.equals(observer.getState())
-                    || TransferState.IN_PROGRESS.equals(observer.getState())) {
-                observer.setTransferListener(listener);
-            }
+    private void initData() {
+        if (changes == null) {
+            changes = transferSnapshot.track(TransferType.UPLOAD);
+            transferAdapter.setRows(transferSnapshot.getRows(TransferType.UPLOAD));
+            updateBatchProgress();
+            return;
         }
-        simpleAdapter.notifyDataSetChanged();
+        transferSnapshot.takeChanges(changes, changedIds);
+        updateRows(changedIds);
+        changedIds.clear();
     }
 
     private void initUI() {
-        /*
-         * This adapter takes the data in transferRecordMaps and displays it,
-         * with the keys of the map being related to the columns in the adapter
-         */
-        simpleAdapter = new SimpleAdapter(this, transferRecordMaps,
-                R.layout.record_item, new String[] {
-                        "checked", "fileName", "progress", "bytes", "state", "percentage"
-                },
-                new int[] {
-                        R.id.radioButton1, R.id.textFileName, R.id.progressBar1, R.id.textBytes,
-                        R.id.textState, R.id.textPercentage
-                });
-        simpleAdapter.setViewBinder((view, data, textRepresentation) -> {
-            switch (view.getId()) {
-                case R.id.radioButton1:
-                    RadioButton radio = (RadioButton) view;
-                    radio.setChecked((Boolean) data);
-                    return true;
-                case R.id.progressBar1:
-                    ProgressBar progress = (ProgressBar) view;
-                    progress.setProgress((Integer) data);
-                    return true;
-                case R.id.textFileName:
-                case R.id.textBytes:
-                case R.id.textState:
-                case R.id.textPercentage:
-                    TextView text = (TextView) view;
-                    text.setText(data.toString());
-                    return true;
-            }
-            return false;
-        });
-        setListAdapter(simpleAdapter);
-
-        // Updates checked index when an item is clicked
-        getListView().setOnItemClickListener((adapterView, view, pos, id) -> {
-            if (checkedIndex != pos) {
-                transferRecordMaps.get(pos).put("checked", true);
-                if (checkedIndex >= 0) {
-                    transferRecordMaps.get(checkedIndex).put("checked", false);
-                }
-                checkedIndex = pos;
-                updateButtonAvailability();
-                simpleAdapter.notifyDataSetChanged();
-            }
-        });
+        // Updates the buttons when a row is checked
+        transferAdapter = new TransferAdapter(util, checkedId -> updateButtonAvailability());
+        RecyclerView recyclerView = findViewById(R.id.transferList);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.addItemDecoration(
+                new DividerItemDecoration(this, layoutManager.getOrientation()));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(transferAdapter);
+        updateThrottler = new TransferUpdateThrottler(UPDATE_INTERVAL_MS,
+                UploadActivity::updateRows);
 
         btnUploadFile = findViewById(R.id.buttonUploadFile);
         btnUploadFileInBackground = findViewById(R.id.buttonUploadFileInBackground);
         btnUploadImage = findViewById(R.id.buttonUploadImage);
+        btnUploadFolder = findViewById(R.id.buttonUploadFolder);
+        textBatchProgress = findViewById(R.id.textBatchProgress);
         btnPause = findViewById(R.id.buttonPause);
         btnResume = findViewById(R.id.buttonResume);
         btnCancel = findViewById(R.id.buttonCancel);
@@ -224,6 +219,7 @@ public class UploadActivity extends ListActivity {
                 intent.setAction(Intent.ACTION_OPEN_DOCUMENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
                 intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                 intent.setType("*/*");
             } else {
                 intent.setAction(Intent.ACTION_GET_CONTENT);
@@ -242,6 +238,7 @@ public class UploadActivity extends ListActivity {
                 intent.setAction(Intent.ACTION_OPEN_DOCUMENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
                 intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                 intent.setType("*/*");
             } else {
                 intent.setAction(Intent.ACTION_GET_CONTENT);
@@ -260,6 +257,7 @@ public class UploadActivity extends ListActivity {
                 intent.setAction(Intent.ACTION_OPEN_DOCUMENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
                 intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
             } else {
                 intent.setAction(Intent.ACTION_GET_CONTENT);
             }
@@ -268,10 +266,18 @@ public class UploadActivity extends ListActivity {
             startActivityForResult(intent, UPLOAD_REQUEST_CODE);
         });
 
+        // Picking a whole folder needs Android Lollipop or later
+        btnUploadFolder.setEnabled(Build.VERSION.SDK_INT >= 21);
+        btnUploadFolder.setOnClickListener(view -> {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+            startActivityForResult(intent, UPLOAD_FOLDER_REQUEST_CODE);
+        });
+
         btnPause.setOnClickListener(view -> {
             // Make sure the user has selected a transfer
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                Boolean paused = transferUtility.pause(observers.get(checkedIndex).getId());
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                boolean paused = transferScheduler.pause(TransferType.UPLOAD, id);
                 /**
                  * If paused does not return true, it is likely because the
                  * user is trying to pause an upload that is not in a
@@ -289,18 +295,19 @@ public class UploadActivity extends ListActivity {
 
         btnResume.setOnClickListener(view -> {
             // Make sure the user has selected a transfer
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                TransferObserver resumed = transferUtility.resume(observers.get(checkedIndex)
-                        .getId());
-                // Sets a new transfer listener to the original observer.
-                // This will overwrite existing listener.
-                observers.get(checkedIndex).setTransferListener(new UploadListener());
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                boolean resumed = transferScheduler.resume(TransferType.UPLOAD, id);
+                if (!isMultipartUpload(id)) {
+                    // The snapshot follows the transfer again
+                    transferSnapshot.watch(TransferType.UPLOAD, id);
+                }
                 /**
-                 * If resume returns null, it is likely because the transfer
+                 * If resume returns false, it is likely because the transfer
                  * is not in a resumable state (For instance it is already
                  * running).
                  */
-                if (resumed == null) {
+                if (!resumed) {
                     Toast.makeText(
                             UploadActivity.this,
                             "Cannot resume transfer.  You can only resume transfers in a PAUSED state.",
@@ -311,8 +318,9 @@ public class UploadActivity extends ListActivity {
 
         btnCancel.setOnClickListener(view -> {
             // Make sure a transfer is selected
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                Boolean canceled = transferUtility.cancel(observers.get(checkedIndex).getId());
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                boolean canceled = transferScheduler.cancel(TransferType.UPLOAD, id);
                 /*
                  * If cancel returns false, it is likely because the
                  * transfer is already canceled
@@ -328,113 +336,173 @@ public class UploadActivity extends ListActivity {
 
         btnDelete.setOnClickListener(view -> {
             // Make sure a transfer is selected
-            if (checkedIndex >= 0 && checkedIndex < observers.size()) {
-                transferUtility.deleteTransferRecord(observers.get(checkedIndex).getId());
-                observers.remove(checkedIndex);
-                transferRecordMaps.remove(checkedIndex);
-                checkedIndex = INDEX_NOT_CHECKED;
-                updateButtonAvailability();
-                updateList();
+            int id = transferAdapter.getCheckedId();
+            if (id != TransferAdapter.NO_SELECTION) {
+                if (isMultipartUpload(id)) {
+                    multipartUploader.deleteTransferRecord(id);
+                } else {
+                    transferUtility.deleteTransferRecord(id);
+                }
+                transferSnapshot.remove(TransferType.UPLOAD, id);
+                transferAdapter.removeRow(id);
             }
         });
 
-        btnPauseAll.setOnClickListener(view -> transferUtility.pauseAllWithType(TransferType.UPLOAD));
+        // The queued transfers are held or dropped too
+        btnPauseAll.setOnClickListener(
+                view -> transferScheduler.pauseAll(TransferType.UPLOAD));
 
-        btnCancelAll.setOnClickListener(view -> transferUtility.cancelAllWithType(TransferType.UPLOAD));
+        btnCancelAll.setOnClickListener(
+                view -> transferScheduler.cancelAll(TransferType.UPLOAD));
 
         updateButtonAvailability();
     }
 
     /*
-     * Updates the ListView according to the observers.
+     * Lists a upload that started after the list was loaded.
+     */
+    private static void addRow(int id) {
+        TransferRow row = new TransferRow(id);
+        if (transferSnapshot.readRow(TransferType.UPLOAD, id, row)) {
+            transferAdapter.addRow(row);
+        }
+    }
+
+    /*
+     * Copies the current values of the transfers that changed into their
+     * rows. Only those rows are bound again, and only the parts of them that
+     * show progress.
      */
-    static void updateList() {
-        TransferObserver observer;
-        HashMap<String, Object> map;
-        for (int i = 0; i < observers.size(); i++) {
-            observer = observers.get(i);
-            map = transferRecordMaps.get(i);
-            util.fillMap(map, observer, i == checkedIndex);
+    static void updateRows(SparseBooleanArray changedIds) {
+        for (int i = 0; i < changedIds.size(); i++) {
+            int id = changedIds.keyAt(i);
+            TransferRow row = transferAdapter.findRow(id);
+            if (row == null) {
+                addRow(id);
+            } else if (transferSnapshot.readRow(TransferType.UPLOAD, id, row)) {
+                transferAdapter.notifyRowChanged(id);
+            } else {
+                transferAdapter.removeRow(id);
+            }
+        }
+        updateBatchProgress();
+    }
+
+    /*
+     * Shows how far the batch uploads have come, if there are any.
+     */
+    private static void updateBatchProgress() {
+        TransferScheduler.Progress progress = transferScheduler.getProgress(TransferType.UPLOAD);
+        if (progress.filesTotal == 0) {
+            textBatchProgress.setVisibility(View.GONE);
+            return;
         }
-        simpleAdapter.notifyDataSetChanged();
+        textBatchProgress.setVisibility(View.VISIBLE);
+        textBatchProgress.setText(textBatchProgress.getContext().getString(
+                R.string.batch_progress,
+                progress.filesCompleted,
+                progress.filesTotal,
+                progress.filesFailed,
+                util.getBytesString(progress.bytesTransferred),
+                util.getBytesString(progress.bytesTotal)));
+    }
 
+    /*
+     * Multipart uploads have negative ids, TransferUtility records positive
+     * ones.
+     */
+    private static boolean isMultipartUpload(int id) {
+        return id < 0;
     }
 
     /*
-     * Enables or disables buttons according to checkedIndex.
+     * Enables or disables buttons according to the checked row.
      */
     private void updateButtonAvailability() {
-        boolean availability = checkedIndex >= 0;
+        boolean availability = transferAdapter.getCheckedId() != TransferAdapter.NO_SELECTION;
         btnPause.setEnabled(availability);
         btnResume.setEnabled(availability);
         btnCancel.setEnabled(availability);
         btnDelete.setEnabled(availability);
+        btnPauseAll.setEnabled(clientsReady);
+        btnCancelAll.setEnabled(clientsReady);
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == UPLOAD_REQUEST_CODE) {
             if (resultCode == Activity.RESULT_OK) {
-                Uri uri = data.getData();
-                try {
-                    File file = readContentToFile(uri);
-                    beginUpload(file);
-                } catch (IOException e) {
-                    Toast.makeText(this,
-                            "Unable to find selected file. See error log for details",
-                            Toast.LENGTH_LONG).show();
-                    Log.e(TAG, "Unable to upload file from the given uri", e);
+                List<Uri> uris = getPickedUris(data);
+                for (Uri uri : uris) {
+                    keepReadPermission(uri, data.getFlags());
                 }
+                // A single document starts ahead of batches, several are
+                // queued as a batch and uploaded a few at a time
+                util.whenReady(this, () -> transferScheduler.uploadDocuments(uris,
+                        uris.size() > 1
+                                ? TransferScheduler.Priority.BULK
+                                : TransferScheduler.Priority.INTERACTIVE));
             }
         } else if (requestCode == UPLOAD_IN_BACKGROUND_REQUEST_CODE) {
             if (resultCode == Activity.RESULT_OK) {
-                Uri uri = data.getData();
-
-                try {
-                    File file = readContentToFile(uri);
-                    beginUploadInBackground(file);
-                } catch (IOException e) {
-                    Toast.makeText(this,
-                            "Unable to find selected file. See error log for details",
-                            Toast.LENGTH_LONG).show();
-                    Log.e(TAG, "Unable to upload file from the given uri", e);
+                List<Uri> uris = getPickedUris(data);
+                for (Uri uri : uris) {
+                    keepReadPermission(uri, data.getFlags());
                 }
+                beginUploadInBackground(uris);
+            }
+        } else if (requestCode == UPLOAD_FOLDER_REQUEST_CODE) {
+            if (resultCode == Activity.RESULT_OK && Build.VERSION.SDK_INT >= 21) {
+                Uri treeUri = data.getData();
+                keepReadPermission(treeUri, data.getFlags());
+                util.whenReady(this, () -> transferScheduler.uploadTree(treeUri));
             }
         }
     }
 
-    /*
-     * Begins to upload the file specified by the file path.
+    /**
+     * Returns the documents returned by a picker. When several documents are
+     * picked they come as ClipData instead of the Intent data.
+     * @param data the Intent returned by the picker
+     * @return the Uris of the picked documents
      */
-    private void beginUpload(File file) {
-        TransferObserver observer = transferUtility.upload(
-                file.getName(),
-                file
-        );
-
-        /*
-         * Note that usually we set the transfer listener after initializing the
-         * transfer. However it isn't required in this sample app. The flow is
-         * click upload button -> start an activity for image selection
-         * startActivityForResult -> onActivityResult -> beginUpload -> onResume
-         * -> set listeners to in progress transfers.
-         */
-        // observer.setTransferListener(new UploadListener());
+    private static List<Uri> getPickedUris(Intent data) {
+        List<Uri> uris = new ArrayList<>();
+        ClipData clipData = data.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                uris.add(clipData.getItemAt(i).getUri());
+            }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
+        }
+        return uris;
     }
 
     /*
-     * Begins to upload the file specified by the file path.
+     * Begins to upload the documents specified by the content URIs.
      */
-    private void beginUploadInBackground(File file) {
+    private void beginUploadInBackground(List<Uri> uris) {
         // Wrap the upload call from a background service to
         // support long-running downloads. Uncomment the following
         // code in order to start a upload from the background
         // service.
         Context context = getApplicationContext();
         Intent intent = new Intent(context, MyService.class);
-        intent.putExtra(MyService.INTENT_KEY_NAME, file.getName());
         intent.putExtra(MyService.INTENT_TRANSFER_OPERATION, MyService.TRANSFER_OPERATION_UPLOAD);
-        intent.putExtra(MyService.INTENT_FILE, file);
+        // The service reads the documents itself, so it needs our permission.
+        // Several documents go in a single Intent as a batch.
+        if (uris.size() == 1) {
+            intent.putExtra(MyService.INTENT_KEY_NAME, getDisplayName(uris.get(0)));
+            intent.setData(uris.get(0));
+        } else {
+            ClipData clipData = ClipData.newRawUri(null, uris.get(0));
+            for (int i = 1; i < uris.size(); i++) {
+                clipData.addItem(new ClipData.Item(uris.get(i)));
+            }
+            intent.setClipData(clipData);
+        }
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         context.startService(intent);
 
         /*
@@ -448,22 +516,20 @@ public class UploadActivity extends ListActivity {
     }
 
     /**
-     * Copies the resource associated with the Uri to a new File in the cache directory, and returns the File
+     * Keeps the permission to read the document across restarts, so that an
+     * interrupted multipart upload can be resumed later.
      * @param uri the Uri
-     * @return a copy of the Uri's content as a File in the cache directory
-     * @throws IOException if openInputStream fails or writing to the OutputStream fails
+     * @param flags the flags of the Intent that returned the Uri
      */
-    private File readContentToFile(Uri uri) throws IOException {
-        final File file = new File(getCacheDir(), getDisplayName(uri));
-        try (
-            final InputStream in = getContentResolver().openInputStream(uri);
-            final OutputStream out = new FileOutputStream(file, false);
-        ) {
-            byte[] buffer = new byte[1024];
-            for (int len; (len = in.read(buffer)) != -1; ) {
-                out.write(buffer, 0, len);
+    private void keepReadPermission(Uri uri, int flags) {
+        if (Build.VERSION.SDK_INT >= 19
+                && (flags & Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION) != 0) {
+            try {
+                getContentResolver().takePersistableUriPermission(uri,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w(TAG, "Unable to keep the permission to read " + uri, e);
             }
-            return file;
         }
     }
 
@@ -486,31 +552,4 @@ public class UploadActivity extends ListActivity {
         Log.w(TAG, "Couldnt determine DISPLAY_NAME for Uri.  Falling back to Uri path: " + uri.getPath());
         return uri.getPath();
     }
-
-    /*
-     * A TransferListener class that can listen to a upload task and be notified
-     * when the status changes.
-     */
-    static class UploadListener implements TransferListener {
-
-        // Simply updates the UI list when notified.
-        @Override
-        public void onError(int id, Exception e) {
-            Log.e(TAG, "Error during upload: " + id, e);
-            updateList();
-        }
-
-        @Override
-        public void onProgressChanged(int id, long bytesCurrent, long bytesTotal) {
-            Log.d(TAG, String.format("onProgressChanged: %d, total: %d, current: %d",
-                    id, bytesTotal, bytesCurrent));
-            updateList();
-        }
-
-        @Override
-        public void onStateChanged(int id, TransferState newState) {
-            Log.d(TAG, "onStateChanged: " + id + ", " + newState);
-            updateList();
-        }
-    }
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The on-disk record of a multipart upload. It remembers the upload id S3
+ * handed out and the ETag of every part that has been uploaded, so that an
+ * interrupted upload only has to send the parts that are missing. The
+ * checksums of the parts are kept with them, and once the upload completes,
+ * those of the whole object.
+ *
+ * A compressed upload is different: its parts hold consecutive pieces of a
+ * single gzip stream and cannot be matched to offsets in the source, so it
+ * starts over when resumed.
+ */
+class UploadManifest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File manifestFile;
+
+    final String key;
+    final String sourcePath;
+    final long length;
+    final long lastModified;
+    final long partSize;
+    final boolean compressed;
+
+    private String uploadId;
+    private boolean completed;
+    private final TreeMap<Integer, String> eTags = new TreeMap<>();
+    private final TreeMap<Integer, PartChecksums.Result> checksums = new TreeMap<>();
+    // Null until the upload completes with the checksums of every part
+    private JSONObject objectChecksums;
+
+    UploadManifest(File manifestFile, String key, UploadSource source, long partSize,
+            boolean compressed) {
+        this(manifestFile, key, source.getPath(), source.length(), source.lastModified(),
+                partSize, compressed);
+    }
+
+    private UploadManifest(File manifestFile, String key, String sourcePath, long length,
+            long lastModified, long partSize, boolean compressed) {
+        this.manifestFile = manifestFile;
+        this.key = key;
+        this.sourcePath = sourcePath;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.partSize = partSize;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Returns the file that holds the manifest for uploading the given source
+     * to the given key. The same key and source always map to the same
+     * manifest.
+     */
+    static File fileFor(File manifestDir, String key, String sourcePath) {
+        String name = key + "\n" + sourcePath;
+        return new File(manifestDir, UUID.nameUUIDFromBytes(name.getBytes(UTF_8)) + ".json");
+    }
+
+    /**
+     * Reads a manifest previously written by {@link #save()}.
+     *
+     * @throws IOException if the file cannot be read or is not a manifest
+     */
+    static UploadManifest load(File manifestFile) throws IOException {
+        byte[] data = new byte[(int) manifestFile.length()];
+        try (InputStream in = new FileInputStream(manifestFile)) {
+            int offset = 0;
+            for (int len; offset < data.length
+                    && (len = in.read(data, offset, data.length - offset)) != -1; ) {
+                offset += len;
+            }
+        }
+
+        try {
+            JSONObject json = new JSONObject(new String(data, UTF_8));
+            UploadManifest manifest = new UploadManifest(manifestFile,
+                    json.getString("key"),
+                    json.getString("source"),
+                    json.getLong("length"),
+                    json.getLong("lastModified"),
+                    json.getLong("partSize"),
+                    json.optBoolean("compressed"));
+            manifest.uploadId = json.optString("uploadId", null);
+            manifest.completed = json.optBoolean("completed");
+            JSONObject parts = json.getJSONObject("parts");
+            Iterator<String> partNumbers = parts.keys();
+            while (partNumbers.hasNext()) {
+                String partNumber = partNumbers.next();
+                manifest.eTags.put(Integer.valueOf(partNumber), parts.getString(partNumber));
+            }
+            // Manifests written before checksums were kept have none
+            JSONObject partChecksums = json.optJSONObject("checksums");
+            if (partChecksums != null) {
+                partNumbers = partChecksums.keys();
+                while (partNumbers.hasNext()) {
+                    String partNumber = partNumbers.next();
+                    manifest.checksums.put(Integer.valueOf(partNumber),
+                            PartChecksums.Result.fromJson(
+                                    partChecksums.getJSONObject(partNumber)));
+                }
+            }
+            manifest.objectChecksums = json.optJSONObject("objectChecksums");
+            return manifest;
+        } catch (JSONException | NumberFormatException e) {
+            throw new IOException("Malformed upload manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * Writes the manifest to disk. The new content is written to a temporary
+     * file first so that a crash never leaves a half written manifest behind.
+     */
+    synchronized void save() throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("key", key);
+            json.put("source", sourcePath);
+            json.put("length", length);
+            json.put("lastModified", lastModified);
+            json.put("partSize", partSize);
+            json.put("compressed", compressed);
+            json.put("uploadId", uploadId);
+            json.put("completed", completed);
+            JSONObject parts = new JSONObject();
+            for (Map.Entry<Integer, String> entry : eTags.entrySet()) {
+                parts.put(entry.getKey().toString(), entry.getValue());
+            }
+            json.put("parts", parts);
+            JSONObject partChecksums = new JSONObject();
+            for (Map.Entry<Integer, PartChecksums.Result> entry : checksums.entrySet()) {
+                partChecksums.put(entry.getKey().toString(), entry.getValue().toJson());
+            }
+            json.put("checksums", partChecksums);
+            json.put("objectChecksums", objectChecksums);
+        } catch (JSONException e) {
+            throw new IOException("Unable to serialize upload manifest", e);
+        }
+
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(json.toString().getBytes(UTF_8));
+        }
+        if (!tmp.renameTo(manifestFile)) {
+            throw new IOException("Unable to write upload manifest " + manifestFile);
+        }
+    }
+
+    void delete() {
+        manifestFile.delete();
+    }
+
+    /**
+     * Whether the source is still the one this manifest was written for.
+     * Parts uploaded from an older version of the content cannot be reused.
+     */
+    boolean matches(UploadSource source) {
+        return source.getPath().equals(sourcePath)
+                && source.length() == length
+                && source.lastModified() == lastModified;
+    }
+
+    int getPartCount() {
+        return (int) ((length + partSize - 1) / partSize);
+    }
+
+    long getPartLength(int partNumber) {
+        long offset = getPartOffset(partNumber);
+        return Math.min(partSize, length - offset);
+    }
+
+    long getPartOffset(int partNumber) {
+        return (partNumber - 1) * partSize;
+    }
+
+    synchronized String getUploadId() {
+        return uploadId;
+    }
+
+    synchronized void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+        eTags.clear();
+        checksums.clear();
+    }
+
+    synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Marks the upload completed, and works out the checksums of the object
+     * if those of every part are known.
+     */
+    synchronized void setCompleted() throws IOException {
+        completed = true;
+        if (!checksums.isEmpty() && checksums.keySet().equals(eTags.keySet())) {
+            try {
+                objectChecksums = PartChecksums.combine(checksums.values());
+            } catch (JSONException e) {
+                throw new IOException("Unable to serialize object checksums", e);
+            }
+        }
+    }
+
+    /**
+     * @return the CRC32C, composite SHA-256 and length of the uploaded
+     *         object, or null if they are not known
+     */
+    synchronized JSONObject getObjectChecksums() {
+        return objectChecksums;
+    }
+
+    synchronized boolean hasPart(int partNumber) {
+        return eTags.containsKey(partNumber);
+    }
+
+    /**
+     * Records an uploaded part.
+     *
+     * @param checksums the checksums of the part, or null if unknown
+     */
+    synchronized void putPart(int partNumber, String eTag, PartChecksums.Result checksums) {
+        eTags.put(partNumber, eTag);
+        if (checksums != null) {
+            this.checksums.put(partNumber, checksums);
+        } else {
+            this.checksums.remove(partNumber);
+        }
+    }
+
+    synchronized void retainParts(Map<Integer, String> uploadedParts) {
+        // Checksums only hold for parts that are still the ones we sent
+        Iterator<Integer> partNumbers = checksums.keySet().iterator();
+        while (partNumbers.hasNext()) {
+            Integer partNumber = partNumbers.next();
+            String eTag = eTags.get(partNumber);
+            if (eTag == null || !eTag.equals(uploadedParts.get(partNumber))) {
+                partNumbers.remove();
+            }
+        }
+        eTags.clear();
+        eTags.putAll(uploadedParts);
+    }
+
+    /**
+     * Total size of the parts that have already been uploaded.
+     */
+    synchronized long getBytesUploaded() {
+        if (compressed) {
+            return 0;
+        }
+        long bytes = 0;
+        for (Integer partNumber : eTags.keySet()) {
+            bytes += getPartLength(partNumber);
+        }
+        return bytes;
+    }
+
+    /**
+     * The parts in the order CompleteMultipartUpload expects them.
+     */
+    synchronized List<PartETag> getPartETags() {
+        List<PartETag> partETags = new ArrayList<>(eTags.size());
+        for (Map.Entry<Integer, String> entry : eTags.entrySet()) {
+            partETags.add(new PartETag(entry.getKey(), entry.getValue()));
+        }
+        return partETags;
+    }
+}
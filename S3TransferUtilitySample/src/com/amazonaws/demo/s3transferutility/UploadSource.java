@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015-2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.demo.s3transferutility;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Content that can be uploaded in parts. Every part is read through its own
+ * stream, so several parts can be read at the same time.
+ */
+public abstract class UploadSource {
+
+    /**
+     * @return a string that identifies the content, such as a file path or a
+     *         content URI
+     */
+    public abstract String getPath();
+
+    /**
+     * @return the length of the content in bytes
+     */
+    public abstract long length();
+
+    /**
+     * @return when the content was last modified, or 0 if that is unknown
+     */
+    public abstract long lastModified();
+
+    /**
+     * Opens a stream over part of the content.
+     *
+     * @param offset where the stream starts
+     * @param length how many bytes the stream returns
+     * @return a stream that the caller must close
+     * @throws IOException if the content cannot be read
+     */
+    public abstract InputStream openStream(long offset, long length) throws IOException;
+
+    /**
+     * Maps part of the content into memory, if the content allows it. The
+     * part is then read straight from the page cache, without being copied
+     * into buffers on the heap.
+     *
+     * @param offset where the part starts
+     * @param length the length of the part
+     * @return the part, or null if the content can only be read as a stream
+     * @throws IOException if the content cannot be read
+     */
+    public ByteBuffer openBuffer(long offset, long length) throws IOException {
+        return null;
+    }
+
+    /**
+     * Opens the source identified by a path previously returned by
+     * {@link #getPath()}.
+     *
+     * @param context Android context
+     * @param path a file path, a content URI or the list file of a pack
+     * @return the source
+     * @throws IOException if the content is not accessible anymore
+     */
+    static UploadSource open(Context context, String path) throws IOException {
+        if (path.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+            return ContentUploadSource.open(context, Uri.parse(path));
+        }
+        File file = new File(path);
+        if (path.endsWith(PackUploadSource.LIST_SUFFIX)) {
+            return PackUploadSource.open(context, file);
+        }
+        if (!file.isFile()) {
+            throw new IOException("File not found: " + path);
+        }
+        return new FileUploadSource(file);
+    }
+
+    /**
+     * A stream that ends after a fixed number of bytes.
+     */
+    static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * A stream over the remaining bytes of a buffer, such as a part returned
+     * by {@link #openBuffer}. It can be reset, so a request sent from it can
+     * be retried without buffering its body again.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+            // Like ByteArrayInputStream, reset goes back to the start until
+            // another position is marked
+            this.buffer.mark();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            buffer.reset();
+        }
+    }
+}
@@ -17,66 +17,255 @@ package com.amazonaws.demo.s3transferutility;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.mobile.client.AWSMobileClient;
 import com.amazonaws.mobile.client.Callback;
 import com.amazonaws.mobile.client.UserStateDetails;
+import com.amazonaws.http.UrlHttpClient;
 import com.amazonaws.mobile.config.AWSConfiguration;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferType;
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Locale;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Handles basic helper functions used throughout the app.
+ *
+ * AWSMobileClient is initialized in the background, starting with
+ * {@link #startBootstrap} when the app starts, and the clients are built on
+ * the same background thread. Code on the main thread waits for them with
+ * {@link #whenReady} instead of calling the getters directly.
+ *
+ * The S3 clients and TransferUtilities are kept for the whole process, one
+ * for each region, endpoint and bucket, so every Util shares their
+ * connection pools and TLS sessions.
  */
 public class Util {
     private static final String TAG = Util.class.getSimpleName();
 
+    private static final long KB = 1024;
+    private static final long MB = 1024 * 1024;
+
+    // Guards the shared objects below whose construction reads from disk, so
+    // the main thread does not wait for it in the other getters, which lock
+    // Util.class. Taken before Util.class, never after.
+    private static final Object sTransfersLock = new Object();
+
+    // Shared by every Util so that the activities and MyService see the same
+    // multipart uploads and ranged downloads
+    private static MultipartUploader sMultipartUploader;
+    private static RangedDownloader sRangedDownloader;
+
+    // The local copy of the bucket listing, shared the same way
+    private static BucketIndex sBucketIndex;
+
+    // Runs batch uploads, shared the same way
+    private static TransferScheduler sTransferScheduler;
+
+    // Records how the transfers go, shared the same way
+    private static TransferMetrics sTransferMetrics;
+
+    // The transfer records the screens list, shared the same way
+    private static TransferSnapshot sTransferSnapshot;
+
+    // Limits the bandwidth of every S3 client, so the limits hold across them
+    private static BandwidthLimiter sBandwidthLimiter;
+
+    // The S3 clients by region and endpoint, and the TransferUtilities by
+    // region, endpoint and bucket, shared the same way
+    private static final Map<ClientKey, AmazonS3Client> sS3Clients = new HashMap<>();
+    private static final Map<ClientKey, TransferUtility> sTransferUtilities =
+            new HashMap<>();
+
+    // Counted down once AWSMobileClient is initialized, null until started
+    private static CountDownLatch sCredentialsReady;
+
+    // Builds the clients, one Util after the other
+    private static final ExecutorService sBootstrapExecutor =
+            Executors.newSingleThreadExecutor();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     private AmazonS3Client sS3Client;
     private AWSCredentialsProvider sMobileClient;
     private TransferUtility sTransferUtility;
 
+    // Set when the S3 client talks to a stand-in for S3 instead of AWS
+    private String regionName;
+    private String endpoint;
+
+    public Util() {
+    }
+
+    /**
+     * Makes a Util whose S3 client talks to the given endpoint with path
+     * style requests, such as a local stand-in for S3 in tests, instead of
+     * using the configured region and Cognito credentials.
+     *
+     * @param credentials signs the requests
+     * @param region the region to sign the requests for
+     * @param endpoint the URL of the stand-in, such as http://127.0.0.1:8080
+     */
+    Util(AWSCredentialsProvider credentials, String region, String endpoint) {
+        this.sMobileClient = credentials;
+        this.regionName = region;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Starts initializing AWSMobileClient, then builds the shared clients in
+     * the background so that they are ready when the first screen needs
+     * them. Does nothing once started.
+     *
+     * @param context Android context
+     */
+    public static void startBootstrap(Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (initializeCredentials(appContext)) {
+            sBootstrapExecutor.execute(() -> {
+                try {
+                    new Util().warmUp(appContext);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to set up the clients", e);
+                }
+            });
+        }
+    }
+
+    /*
+     * Starts initializing AWSMobileClient unless it was started before.
+     *
+     * @return true if it was started by this call
+     */
+    private static boolean initializeCredentials(Context appContext) {
+        final CountDownLatch latch;
+        synchronized (Util.class) {
+            if (sCredentialsReady != null) {
+                return false;
+            }
+            latch = new CountDownLatch(1);
+            sCredentialsReady = latch;
+        }
+        AWSMobileClient.getInstance().initialize(appContext, new Callback<UserStateDetails>() {
+            @Override
+            public void onResult(UserStateDetails result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "onError: ", e);
+                latch.countDown();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Told on the main thread that the clients could not be set up.
+     */
+    public interface OnSetupFailedListener {
+        void onSetupFailed(RuntimeException e);
+    }
+
+    /**
+     * Builds the S3 client, the TransferUtility and the shared clients of
+     * this Util in the background, then runs the callback on the main thread.
+     * Once it runs, the getters return at once. Callbacks run in the order
+     * they were given. If the clients cannot be set up, the error is only
+     * logged.
+     *
+     * @param context Android context
+     * @param callback runs on the main thread once the clients are ready
+     */
+    public void whenReady(Context context, final Runnable callback) {
+        whenReady(context, callback, e -> { });
+    }
+
+    /**
+     * Like {@link #whenReady(Context, Runnable)}, but tells the listener
+     * instead of running the callback if the clients cannot be set up. They
+     * are tried again on the next call.
+     *
+     * @param context Android context
+     * @param callback runs on the main thread once the clients are ready
+     * @param failedListener runs on the main thread if they cannot be set up
+     */
+    public void whenReady(Context context, final Runnable callback,
+            final OnSetupFailedListener failedListener) {
+        final Context appContext = context.getApplicationContext();
+        startBootstrap(appContext);
+        sBootstrapExecutor.execute(() -> {
+            try {
+                warmUp(appContext);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to set up the clients", e);
+                sMainHandler.post(() -> failedListener.onSetupFailed(e));
+                return;
+            }
+            sMainHandler.post(callback);
+        });
+    }
+
+    /*
+     * Builds the clients. The credentials are waited for first, outside of
+     * the lock that guards the shared clients, so that getters of other
+     * shared objects do not wait for them.
+     */
+    private void warmUp(Context appContext) {
+        if (getS3Client(appContext) == null) {
+            throw new IllegalStateException("No Region in the S3TransferUtility section of "
+                    + "awsconfiguration.json");
+        }
+        getTransferScheduler(appContext);
+        getTransferSnapshot(appContext);
+    }
+
     /**
      * Gets an instance of AWSMobileClient which is
-     * constructed using the given Context.
+     * constructed using the given Context. Waits for its initialization,
+     * so it should not be called on the main thread.
      *
      * @param context Android context
      * @return AWSMobileClient which is a credentials provider
      */
     private AWSCredentialsProvider getCredProvider(Context context) {
         if (sMobileClient == null) {
-            final CountDownLatch latch = new CountDownLatch(1);
-            AWSMobileClient.getInstance().initialize(context, new Callback<UserStateDetails>() {
-                @Override
-                public void onResult(UserStateDetails result) {
-                    latch.countDown();
-                }
-
-                @Override
-                public void onError(Exception e) {
-                    Log.e(TAG, "onError: ", e);
-                    latch.countDown();
-                }
-            });
+            initializeCredentials(context.getApplicationContext());
+            CountDownLatch latch;
+            synchronized (Util.class) {
+                latch = sCredentialsReady;
+            }
             try {
                 latch.await();
                 sMobileClient = AWSMobileClient.getInstance();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the credentials",
+                        e);
             }
         }
         return sMobileClient;
@@ -92,11 +281,20 @@ public class Util {
     public AmazonS3Client getS3Client(Context context) {
         if (sS3Client == null) {
             try {
-                String regionString = new AWSConfiguration(context)
-                        .optJsonObject("S3TransferUtility")
-                        .getString("Region");
-                Region region = Region.getRegion(regionString);
-                sS3Client = new AmazonS3Client(getCredProvider(context), region);
+                String regionString = regionName != null ? regionName
+                        : new AWSConfiguration(context)
+                                .optJsonObject("S3TransferUtility")
+                                .getString("Region");
+                // Waits for the credentials before taking the lock
+                AWSCredentialsProvider credentials = getCredProvider(context);
+                ClientKey key = new ClientKey(regionString, endpoint, null);
+                synchronized (Util.class) {
+                    sS3Client = sS3Clients.get(key);
+                    if (sS3Client == null) {
+                        sS3Client = createS3Client(context, credentials, regionString);
+                        sS3Clients.put(key, sS3Client);
+                    }
+                }
             } catch (JSONException e) {
                 e.printStackTrace();
             }
@@ -104,6 +302,51 @@ public class Util {
         return sS3Client;
     }
 
+    private AmazonS3Client createS3Client(Context context, AWSCredentialsProvider credentials,
+            String regionString) {
+        Region region = Region.getRegion(regionString);
+        BandwidthLimiter limiter = getBandwidthLimiter(context);
+        AmazonS3Client s3Client;
+        if (limiter.isEnabled()) {
+            ClientConfiguration clientConfiguration = new ClientConfiguration();
+            s3Client = new AmazonS3Client(credentials, clientConfiguration,
+                    new ThrottledHttpClient(new UrlHttpClient(clientConfiguration), limiter));
+            s3Client.setRegion(region);
+        } else {
+            s3Client = new AmazonS3Client(credentials, region);
+        }
+        if (endpoint != null) {
+            s3Client.setEndpoint(endpoint);
+            s3Client.setS3ClientOptions(S3ClientOptions.builder()
+                    .setPathStyleAccess(true)
+                    .build());
+        }
+        return s3Client;
+    }
+
+    /**
+     * Gets the BandwidthLimiter that paces the S3 clients. Its limits are
+     * read from the S3TransferUtility section of awsconfiguration.json.
+     *
+     * @param context Android context
+     * @return the BandwidthLimiter instance
+     */
+    private BandwidthLimiter getBandwidthLimiter(Context context) {
+        synchronized (Util.class) {
+            if (sBandwidthLimiter == null) {
+                JSONObject config = new AWSConfiguration(context)
+                        .optJsonObject("S3TransferUtility");
+                sBandwidthLimiter = new BandwidthLimiter(
+                        context,
+                        config.optLong("MeteredBandwidthInKBps", 0) * KB,
+                        config.optLong("UnmeteredBandwidthInKBps", 0) * KB,
+                        config.optLong("MeteredTransferBandwidthInKBps", 0) * KB,
+                        config.optLong("UnmeteredTransferBandwidthInKBps", 0) * KB);
+            }
+            return sBandwidthLimiter;
+        }
+    }
+
     /**
      * Gets an instance of the TransferUtility which is constructed using the
      * given Context
@@ -113,38 +356,231 @@ public class Util {
      */
     public TransferUtility getTransferUtility(Context context) {
         if (sTransferUtility == null) {
-            sTransferUtility = TransferUtility.builder()
-                    .context(context)
-                    .s3Client(getS3Client(context))
-                    .awsConfiguration(new AWSConfiguration(context))
-                    .build();
+            AmazonS3Client s3Client = getS3Client(context);
+            AWSConfiguration configuration = new AWSConfiguration(context);
+            JSONObject config = configuration.optJsonObject("S3TransferUtility");
+            ClientKey key = new ClientKey(
+                    regionName != null ? regionName : config.optString("Region"),
+                    endpoint,
+                    config.optString("Bucket"));
+            synchronized (Util.class) {
+                sTransferUtility = sTransferUtilities.get(key);
+                if (sTransferUtility == null) {
+                    // Outlives the activity that asked for it
+                    sTransferUtility = TransferUtility.builder()
+                            .context(context.getApplicationContext())
+                            .s3Client(s3Client)
+                            .awsConfiguration(configuration)
+                            .build();
+                    sTransferUtilities.put(key, sTransferUtility);
+                }
+            }
         }
 
         return sTransferUtility;
     }
 
     /**
-     * Converts number of bytes into proper scale.
+     * Gets the MultipartUploader used for large files. Its settings are read
+     * from the S3TransferUtility section of awsconfiguration.json.
      *
-     * @param bytes number of bytes to be converted.
-     * @return A string that represents the bytes in a proper scale.
+     * @param context Android context
+     * @return the MultipartUploader instance
      */
-    public String getBytesString(long bytes) {
-        String[] quantifiers = new String[]{
-                "KB", "MB", "GB", "TB"
+    public MultipartUploader getMultipartUploader(Context context) {
+        // Waits for the credentials before taking the lock
+        AmazonS3Client s3Client = getS3Client(context);
+        synchronized (sTransfersLock) {
+            if (sMultipartUploader == null) {
+                JSONObject config = new AWSConfiguration(context)
+                        .optJsonObject("S3TransferUtility");
+                sMultipartUploader = new MultipartUploader(
+                        context,
+                        s3Client,
+                        config.optString("Bucket"),
+                        new File(context.getFilesDir(), "multipart"),
+                        config.optLong("MultipartThresholdInMB", 16) * MB,
+                        config.optLong("PartSizeInMB", 8) * MB,
+                        new ConcurrencyController("Parts",
+                                config.optInt("PartConcurrency", 4),
+                                config.optInt("MaxPartConcurrency", 16)),
+                        config.optInt("PartRetries", 3));
+            }
+            return sMultipartUploader;
+        }
+    }
+
+    /**
+     * Gets the RangedDownloader used for large objects. Its settings are read
+     * from the S3TransferUtility section of awsconfiguration.json.
+     *
+     * @param context Android context
+     * @return the RangedDownloader instance
+     */
+    public RangedDownloader getRangedDownloader(Context context) {
+        // Waits for the credentials before taking the lock
+        AmazonS3Client s3Client = getS3Client(context);
+        synchronized (sTransfersLock) {
+            if (sRangedDownloader == null) {
+                JSONObject config = new AWSConfiguration(context)
+                        .optJsonObject("S3TransferUtility");
+                sRangedDownloader = new RangedDownloader(
+                        context,
+                        s3Client,
+                        config.optString("Bucket"),
+                        new File(context.getFilesDir(), "ranged"),
+                        config.optLong("RangedThresholdInMB", 16) * MB,
+                        config.optLong("RangeSizeInMB", 8) * MB,
+                        new ConcurrencyController("Ranges",
+                                config.optInt("RangeConcurrency", 4),
+                                config.optInt("MaxRangeConcurrency", 16)),
+                        config.optInt("PartRetries", 3));
+            }
+            return sRangedDownloader;
+        }
+    }
+
+    /**
+     * Whether objects are downloaded into the shared Downloads collection
+     * rather than the app's external files directory, as set by
+     * SharedDownloads in the S3TransferUtility section of
+     * awsconfiguration.json. The collection is only used on Android 10 and
+     * later, which add to it without a storage permission.
+     *
+     * @param context Android context
+     */
+    public boolean isSharedDownloads(Context context) {
+        return new AWSConfiguration(context).optJsonObject("S3TransferUtility")
+                .optBoolean("SharedDownloads", false);
+    }
+
+    /**
+     * Makes the sinks of whole objects: a pending entry of the shared
+     * Downloads collection if SharedDownloads is set and the device allows
+     * it, or else a file in the app's external files directory.
+     *
+     * @param context Android context
+     */
+    public DownloadSink.Factory getDownloadSinkFactory(Context context) {
+        final Context appContext = context.getApplicationContext();
+        return key -> {
+            if (Build.VERSION.SDK_INT >= 29 && isSharedDownloads(appContext)) {
+                try {
+                    return ContentDownloadSink.createDownload(appContext,
+                            key.substring(key.lastIndexOf('/') + 1));
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to add " + key + " to the Downloads collection", e);
+                }
+            }
+            return new FileDownloadSink(
+                    new File(appContext.getExternalFilesDir(null).toString() + "/" + key));
         };
-        double speedNum = bytes;
-        for (int i = 0; ; i++) {
-            if (i >= quantifiers.length) {
-                return "";
+    }
+
+    /**
+     * Gets the TransferScheduler that starts uploads and downloads. The number
+     * of uploads and of downloads it runs at once are read from the
+     * S3TransferUtility section of awsconfiguration.json.
+     *
+     * @param context Android context
+     * @return the TransferScheduler instance
+     */
+    public TransferScheduler getTransferScheduler(Context context) {
+        // Waits for the credentials before taking the lock
+        TransferUtility transferUtility = getTransferUtility(context);
+        synchronized (sTransfersLock) {
+            if (sTransferScheduler == null) {
+                JSONObject config = new AWSConfiguration(context)
+                        .optJsonObject("S3TransferUtility");
+                sTransferScheduler = new TransferScheduler(
+                        context,
+                        this,
+                        transferUtility,
+                        getMultipartUploader(context),
+                        getRangedDownloader(context),
+                        getTransferMetrics(),
+                        config.optInt("UploadConcurrency", 4),
+                        config.optInt("DownloadConcurrency", 4),
+                        config.optBoolean("Compression", false),
+                        config.optLong("PackFilesUnderKB", 0) * KB);
+            }
+            return sTransferScheduler;
+        }
+    }
+
+    /**
+     * Gets the TransferSnapshot that the screens list the transfers from. The
+     * records are read the first time, so it should not be called on the
+     * main thread before {@link #whenReady} calls back.
+     *
+     * @param context Android context
+     * @return the TransferSnapshot instance
+     */
+    TransferSnapshot getTransferSnapshot(Context context) {
+        // Waits for the credentials before taking the lock
+        TransferUtility transferUtility = getTransferUtility(context);
+        synchronized (sTransfersLock) {
+            if (sTransferSnapshot == null) {
+                TransferSnapshot snapshot = new TransferSnapshot(
+                        transferUtility,
+                        getMultipartUploader(context),
+                        getRangedDownloader(context),
+                        getTransferMetrics());
+                snapshot.load();
+                getTransferScheduler(context).addListener(snapshot::onScheduledTransferChanged);
+                final BucketIndex bucketIndex = getBucketIndex(context);
+                // The download picker lists the bucket again to show new objects
+                snapshot.addListener((type, id, state) -> {
+                    if (type == TransferType.UPLOAD && state == TransferState.COMPLETED) {
+                        bucketIndex.invalidate();
+                    }
+                });
+                sTransferSnapshot = snapshot;
+            }
+            return sTransferSnapshot;
+        }
+    }
+
+    /**
+     * Gets the TransferMetrics that the transfer listeners report to.
+     *
+     * @return the TransferMetrics instance
+     */
+    public TransferMetrics getTransferMetrics() {
+        synchronized (Util.class) {
+            if (sTransferMetrics == null) {
+                sTransferMetrics = new TransferMetrics();
             }
-            speedNum /= 1024;
-            if (speedNum < 512) {
-                return String.format(Locale.US, "%.2f", speedNum) + " " + quantifiers[i];
+            return sTransferMetrics;
+        }
+    }
+
+    /**
+     * Gets the BucketIndex that keeps a local copy of the bucket listing for
+     * the download picker.
+     *
+     * @param context Android context
+     * @return the BucketIndex instance
+     */
+    public BucketIndex getBucketIndex(Context context) {
+        synchronized (Util.class) {
+            if (sBucketIndex == null) {
+                sBucketIndex = new BucketIndex(context);
             }
+            return sBucketIndex;
         }
     }
 
+    /**
+     * Converts number of bytes into proper scale.
+     *
+     * @param bytes number of bytes to be converted.
+     * @return A string that represents the bytes in a proper scale.
+     */
+    public String getBytesString(long bytes) {
+        return TransferHelpers.formatBytes(bytes);
+    }
+
     /**
      * Copies the data from the passed in Uri, to a new file for use with the
      * Transfer Service
@@ -155,39 +591,51 @@ public class Util {
      * @throws IOException if data read/write fails
      */
     public File copyContentUriToFile(Context context, Uri uri) throws IOException {
-        InputStream is = context.getContentResolver().openInputStream(uri);
         File copiedData = new File(context.getDir("SampleImagesDir", Context.MODE_PRIVATE),
                 UUID.randomUUID().toString());
         copiedData.createNewFile();
 
-        FileOutputStream fos = new FileOutputStream(copiedData);
-        byte[] buf = new byte[2046];
-        int read = -1;
-        while ((read = is.read(buf)) != -1) {
-            fos.write(buf, 0, read);
+        try (InputStream is = context.getContentResolver().openInputStream(uri);
+                FileOutputStream fos = new FileOutputStream(copiedData)) {
+            TransferHelpers.copy(is, fos, new byte[TransferHelpers.COPY_BUFFER_SIZE]);
         }
 
-        fos.flush();
-        fos.close();
-
         return copiedData;
     }
 
-    /**
-     * Fills in the map with information in the observer so that it can be used
-     * with a SimpleAdapter to populate the UI
+    /*
+     * Identifies a shared client. The bucket is null for S3 clients, which
+     * serve every bucket.
      */
-    public void fillMap(Map<String, Object> map, TransferObserver observer, boolean isChecked) {
-        int progress = (int) ((double) observer.getBytesTransferred() * 100 / observer
-                .getBytesTotal());
-        map.put("id", observer.getId());
-        map.put("checked", isChecked);
-        map.put("fileName", observer.getAbsoluteFilePath());
-        map.put("progress", progress);
-        map.put("bytes",
-                getBytesString(observer.getBytesTransferred()) + "/"
-                        + getBytesString(observer.getBytesTotal()));
-        map.put("state", observer.getState());
-        map.put("percentage", progress + "%");
+    private static final class ClientKey {
+        private final String region;
+        private final String endpoint;
+        private final String bucket;
+
+        ClientKey(String region, String endpoint, String bucket) {
+            this.region = region;
+            this.endpoint = endpoint;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey other = (ClientKey) o;
+            return same(region, other.region)
+                    && same(endpoint, other.endpoint)
+                    && same(bucket, other.bucket);
+        }
+
+        private static boolean same(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new String[] {region, endpoint, bucket});
+        }
     }
 }